@@ -0,0 +1,50 @@
+package com.example.rtmdet_ins_core.benchmark;
+
+import com.example.rtmdet_ins_core.InstanceSegPostprocessor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link InstanceSegPostprocessor#calcBoxIoU} over all pairs of 100 candidates, as done by NMS and merging.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BoxIoUBenchmark {
+    @Param({"SPARSE", "DENSE"})
+    public SyntheticDetections.Overlap overlap;
+
+    private int[][] boxes;
+
+    @Setup
+    public void setup() {
+        // boxes only: no mask allocation to skew the numbers with GC
+        boxes = new SyntheticDetections(100, 640, overlap, 1, false).boxes;
+    }
+
+    @Benchmark
+    public float allPairs() {
+        float sum = 0;
+        for (int i = 0; i < boxes.length; i++) {
+            for (int j = i + 1; j < boxes.length; j++) {
+                sum += InstanceSegPostprocessor.calcBoxIoU(boxes[i], boxes[j]);
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,108 @@
+package com.example.rtmdet_ins_core.benchmark;
+
+import com.example.rtmdet_ins_core.BitMask;
+import com.example.rtmdet_ins_core.FrameArena;
+import com.example.rtmdet_ins_core.InstanceSegPostprocessor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mask hot paths of post-processing on 100 candidates with 640x640 masks: packing, pairwise mask intersection
+ * (the IoU / overlap matrix), cropping, and the whole {@link InstanceSegPostprocessor#process}, with fresh arrays
+ * or a reused {@link FrameArena} (run with {@code -prof gc} to compare the allocation rates).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+@State(Scope.Thread)
+public class MaskBenchmark {
+    private static final int COUNT = 100;
+    private static final int SIZE = 640;
+
+    @Param({"SPARSE", "MEDIUM", "DENSE"})
+    public SyntheticDetections.Overlap overlap;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private SyntheticDetections detections;
+    private BitMask[] bitMasks;
+    private byte[] cropBuffer;
+    private InstanceSegPostprocessor postprocessor;
+    private FrameArena arena;
+
+    @Setup
+    public void setup() {
+        detections = new SyntheticDetections(COUNT, SIZE, overlap, 1);
+        bitMasks = encodeAll();
+        cropBuffer = new byte[SIZE * SIZE];
+        postprocessor = new InstanceSegPostprocessor(SIZE, 0.325F, 0.2F);
+        postprocessor.setNumThreads(threads);
+        arena = new FrameArena(COUNT);
+    }
+
+    @TearDown
+    public void tearDown() {
+        postprocessor.close();
+    }
+
+    @Benchmark
+    public BitMask[] encodeAll() {
+        BitMask[] encoded = new BitMask[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            int[] box = detections.boxes[i];
+            encoded[i] = BitMask.encode(detections.masks, i, box[0], box[1], box[2], box[3]);
+        }
+        return encoded;
+    }
+
+    @Benchmark
+    public long pairwiseIntersection() {
+        long sum = 0;
+        for (int i = 0; i < COUNT; i++) {
+            for (int j = i + 1; j < COUNT; j++) {
+                sum += bitMasks[i].intersection(bitMasks[j]);
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public byte[] cropAll() {
+        for (BitMask mask : bitMasks) {
+            mask.crop(mask.x1, mask.y1, mask.x2 - mask.x1, mask.y2 - mask.y1, cropBuffer);
+        }
+        return cropBuffer;
+    }
+
+    @Benchmark
+    public ArrayList<InstanceSegPostprocessor.Instance> process() {
+        return postprocessor.process(detections.copyBoxes(), detections.scores, detections.labels, detections.masks,
+                SIZE, SIZE, 0, 0);
+    }
+
+    @Benchmark
+    public ArrayList<InstanceSegPostprocessor.Instance> processWithArena() {
+        for (int i = 0; i < COUNT; i++) {
+            System.arraycopy(detections.boxes[i], 0, arena.boxes[i], 0, 4);
+        }
+        return postprocessor.process(arena.boxes, detections.scores, detections.labels, COUNT, detections.masks,
+                SIZE, SIZE, 0, 0, arena);
+    }
+}
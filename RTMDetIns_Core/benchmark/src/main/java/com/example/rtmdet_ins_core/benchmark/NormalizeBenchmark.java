@@ -0,0 +1,103 @@
+package com.example.rtmdet_ins_core.benchmark;
+
+import com.example.rtmdet_ins_core.LetterboxPreprocessor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Input normalization: the per-value subtract / divide loop of the former {@code ImageUtils.normalizeImage} of the
+ * apps against the lookup tables of {@link LetterboxPreprocessor}, one 640x640 frame per operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NormalizeBenchmark {
+    private static final int SIZE = 640;
+    private static final int PAD_VAL = 114;
+    private static final float[] MEAN = {103.53F, 116.28F, 123.675F};
+    private static final float[] STD = {57.375F, 57.12F, 58.395F};
+
+    private int[] letterboxed;      // 640x640, already the model size
+    private int[] camera;           // 1280x720, resized and padded on the fly
+    private float[] floats;
+    private FloatBuffer direct;
+    private ByteBuffer quantized;
+    private LetterboxPreprocessor nchw;
+    private LetterboxPreprocessor nhwc;
+    private LetterboxPreprocessor uint8;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        letterboxed = new int[SIZE * SIZE];
+        for (int i = 0; i < letterboxed.length; i++) {
+            letterboxed[i] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+        camera = new int[1280 * 720];
+        for (int i = 0; i < camera.length; i++) {
+            camera[i] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+
+        floats = new float[3 * SIZE * SIZE];
+        direct = ByteBuffer.allocateDirect(3 * SIZE * SIZE * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        nchw = new LetterboxPreprocessor(SIZE, PAD_VAL, MEAN, STD, LetterboxPreprocessor.Layout.NCHW);
+        nhwc = new LetterboxPreprocessor(SIZE, PAD_VAL, MEAN, STD, LetterboxPreprocessor.Layout.NHWC);
+        uint8 = new LetterboxPreprocessor(SIZE, PAD_VAL, MEAN, STD, LetterboxPreprocessor.Layout.NHWC,
+                LetterboxPreprocessor.InputType.UINT8, 0.0187F, 114);
+        quantized = ByteBuffer.allocateDirect(uint8.getInputBytes());
+    }
+
+    @Benchmark
+    public float[] divideLoop() {
+        // loop of the former ImageUtils.normalizeImage, without the getPixels / allocation around it
+        int stride = SIZE * SIZE;
+        for (int i = 0; i < SIZE; i++) {
+            for (int j = 0; j < SIZE; j++) {
+                int idx = i * SIZE + j;
+                int pixelValue = letterboxed[idx];
+                floats[idx] = ((float) (pixelValue >> 16 & 255) - MEAN[0]) / STD[0];
+                floats[idx + stride] = ((float) (pixelValue >> 8 & 255) - MEAN[1]) / STD[1];
+                floats[idx + stride * 2] = ((float) (pixelValue & 255) - MEAN[2]) / STD[2];
+            }
+        }
+        return floats;
+    }
+
+    @Benchmark
+    public LetterboxPreprocessor.Letterbox lookupNchw() {
+        return nchw.process(letterboxed, SIZE, SIZE, direct);
+    }
+
+    @Benchmark
+    public LetterboxPreprocessor.Letterbox lookupNhwc() {
+        return nhwc.process(letterboxed, SIZE, SIZE, direct);
+    }
+
+    @Benchmark
+    public LetterboxPreprocessor.Letterbox lookupUint8() {
+        return uint8.process(letterboxed, SIZE, SIZE, quantized);
+    }
+
+    @Benchmark
+    public LetterboxPreprocessor.Letterbox resizeAndLookup() {
+        return nchw.process(camera, 1280, 720, direct);
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.rtmdet_ins_core.benchmark;
+
+import com.example.rtmdet_ins_core.MaskTensor;
+
+import java.util.Random;
+
+/**
+ * Raw detector outputs shaped like RTMDet-Ins at 640x640: candidate boxes with elliptic masks, grouped in clusters
+ * so the amount of overlap (and merging) can be varied.
+ */
+public class SyntheticDetections {
+    public enum Overlap {
+        SPARSE(100),    // every candidate on its own
+        MEDIUM(25),     // about 4 candidates per object
+        DENSE(5);       // about 20 candidates per object
+
+        final int clusters;
+
+        Overlap(int clusters) {
+            this.clusters = clusters;
+        }
+    }
+
+    public final int[][] boxes;     // (n, 4) - [x1, y1, x2, y2]
+    public final float[] scores;    // (n,)
+    public final long[] labels;     // (n,)
+    public final MaskTensor masks;  // (n, size, size) - null if created without masks
+
+    public SyntheticDetections(int count, int size, Overlap overlap, long seed) {
+        this(count, size, overlap, seed, true);
+    }
+
+    /**
+     * @param withMasks false for box-only benchmarks: the (n, size, size) masks take ~41 MB for 100 candidates at
+     *                  640x640. Boxes, scores and labels do not depend on it.
+     */
+    public SyntheticDetections(int count, int size, Overlap overlap, long seed, boolean withMasks) {
+        Random random = new Random(seed);
+        boxes = new int[count][4];
+        scores = new float[count];
+        labels = new long[count];
+        masks = withMasks ? MaskTensor.wrap(new byte[count * size * size], count, size, size) : null;
+
+        // one object per cluster, candidates are jittered copies of it
+        int[][] objects = new int[overlap.clusters][];
+        long[] objectLabels = new long[overlap.clusters];
+        for (int k = 0; k < overlap.clusters; k++) {
+            int width = 40 + random.nextInt(160);
+            int height = 40 + random.nextInt(160);
+            int x1 = random.nextInt(size - width);
+            int y1 = random.nextInt(size - height);
+            objects[k] = new int[]{x1, y1, x1 + width, y1 + height};
+            objectLabels[k] = random.nextInt(5);
+        }
+
+        for (int i = 0; i < count; i++) {
+            int k = i % overlap.clusters;
+            int[] object = objects[k];
+            int jitter = Math.max(1, (object[2] - object[0]) / 10);
+            for (int c = 0; c < 4; c++) {
+                int value = object[c] + random.nextInt(2 * jitter + 1) - jitter;
+                boxes[i][c] = Math.max(0, Math.min(size - 1, value));
+            }
+            scores[i] = 0.35F + 0.65F * random.nextFloat();
+            labels[i] = random.nextInt(10) == 0 ? random.nextInt(5) : objectLabels[k];
+            if (withMasks) {
+                fillEllipse(i, boxes[i]);
+            }
+        }
+    }
+
+    private void fillEllipse(int i, int[] box) {
+        float cx = (box[0] + box[2]) / 2.0F, cy = (box[1] + box[3]) / 2.0F;
+        float rx = Math.max(1.0F, (box[2] - box[0]) / 2.0F), ry = Math.max(1.0F, (box[3] - box[1]) / 2.0F);
+        for (int y = box[1]; y <= box[3]; y++) {
+            for (int x = box[0]; x <= box[2]; x++) {
+                float dx = (x - cx) / rx, dy = (y - cy) / ry;
+                if (dx * dx + dy * dy <= 1.0F) {
+                    masks.set(i, y, x, (byte) 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Boxes are clamped in place by post-processing, hand it a copy.
+     */
+    public int[][] copyBoxes() {
+        int[][] copy = new int[boxes.length][];
+        for (int i = 0; i < boxes.length; i++) {
+            copy[i] = boxes[i].clone();
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,16 @@
+package com.example.rtmdet_ins_core;
+
+/**
+ * Reusable ARGB pixel buffer of a video frame. Sources fill it and get it back through
+ * {@link FrameSource#recycle} once it has been processed or dropped.
+ */
+public class ArgbFrame {
+    public final int[] pixels;      // row-major, width * height used
+    public int width;
+    public int height;
+    public long timestampNanos;     // capture time, in the clock of the source
+
+    public ArgbFrame(int capacity) {
+        this.pixels = new int[capacity];
+    }
+}
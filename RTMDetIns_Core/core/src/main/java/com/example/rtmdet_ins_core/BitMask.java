@@ -0,0 +1,166 @@
+package com.example.rtmdet_ins_core;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Binary mask limited to its box, packed 64 pixels per {@code long}.
+ * <p>
+ * Words are aligned on absolute x coordinates (word k holds x in [64k, 64k + 63]), so two masks can be
+ * AND-ed / OR-ed word by word without shifting. Bits outside the box are always 0.
+ * <p>
+ * A mask can be {@link #reset} to another box, keeping its words when they are large enough, so that the masks
+ * of a frame can be pooled (see {@link FrameArena}).
+ */
+public class BitMask {
+    public int x1, y1, x2, y2;          // box of the mask, inclusive - read only, see reset()
+
+    private int wordStart;              // index of the word holding x1
+    private int wordsPerRow;
+    private int numWords;               // height * wordsPerRow, words used in words
+    private long[] words;               // (>= numWords,)
+    private int area = -1;              // number of foreground pixels, lazily counted
+
+    public BitMask(int x1, int y1, int x2, int y2) {
+        reset(x1, y1, x2, y2);
+    }
+
+    /**
+     * Empty the mask and move it to box [x1, x2] x [y1, y2] (inclusive). The words are only reallocated if they
+     * are too few for the new box.
+     */
+    public void reset(int x1, int y1, int x2, int y2) {
+        this.x1 = x1;
+        this.y1 = y1;
+        this.x2 = x2;
+        this.y2 = y2;
+        this.wordStart = x1 >>> 6;
+        this.wordsPerRow = (x2 >>> 6) - wordStart + 1;
+        this.numWords = (y2 - y1 + 1) * wordsPerRow;
+        if (words == null || words.length < numWords) {
+            words = new long[numWords];
+        } else {
+            Arrays.fill(words, 0, numWords, 0L);
+        }
+        area = -1;
+    }
+
+    /**
+     * Length of the words held by the mask, used or not.
+     */
+    public int getCapacity() {
+        return words.length;
+    }
+
+    /**
+     * Pack mask {@code i} of {@code masks} inside box [x1, x2] x [y1, y2] (inclusive).
+     */
+    public static BitMask encode(MaskTensor masks, int i, int x1, int y1, int x2, int y2) {
+        return encode(masks, i, x1, y1, x2, y2, null);
+    }
+
+    /**
+     * Same as {@link #encode(MaskTensor, int, int, int, int, int)}, into {@code reuse} if not null.
+     */
+    public static BitMask encode(MaskTensor masks, int i, int x1, int y1, int x2, int y2, BitMask reuse) {
+        BitMask mask = reuse;
+        if (mask == null) {
+            mask = new BitMask(x1, y1, x2, y2);
+        } else {
+            mask.reset(x1, y1, x2, y2);
+        }
+        ByteBuffer data = masks.getData();
+        long[] words = mask.words;
+        int area = 0;
+
+        for (int y = y1; y <= y2; y++) {
+            int row = masks.offset(i, y, 0);
+            int wordRow = (y - y1) * mask.wordsPerRow - mask.wordStart;
+            for (int x = x1; x <= x2; ) {
+                // fill one word at a time
+                int wordEnd = Math.min(x2, x | 63);
+                long word = 0;
+                for (; x <= wordEnd; x++) {
+                    if (data.get(row + x) != 0) {
+                        word |= 1L << x;    // shift distance is taken mod 64
+                    }
+                }
+                words[wordRow + ((x - 1) >>> 6)] = word;
+                area += Long.bitCount(word);
+            }
+        }
+        mask.area = area;
+        return mask;
+    }
+
+    public int getArea() {
+        if (area < 0) {
+            int count = 0;
+            for (int k = 0; k < numWords; k++) {
+                count += Long.bitCount(words[k]);
+            }
+            area = count;
+        }
+        return area;
+    }
+
+    public boolean get(int x, int y) {
+        if (x < x1 || x > x2 || y < y1 || y > y2) {
+            return false;
+        }
+        long word = words[(y - y1) * wordsPerRow + (x >>> 6) - wordStart];
+        return (word & (1L << x)) != 0;
+    }
+
+    /**
+     * Number of foreground pixels shared with {@code other}.
+     */
+    public int intersection(BitMask other) {
+        int top = Math.max(y1, other.y1);
+        int bottom = Math.min(y2, other.y2);
+        int firstWord = Math.max(wordStart, other.wordStart);
+        int lastWord = Math.min(wordStart + wordsPerRow, other.wordStart + other.wordsPerRow) - 1;
+        if (top > bottom || firstWord > lastWord) {
+            return 0;
+        }
+
+        int inter = 0;
+        for (int y = top; y <= bottom; y++) {
+            int a = (y - y1) * wordsPerRow - wordStart;
+            int b = (y - other.y1) * other.wordsPerRow - other.wordStart;
+            for (int k = firstWord; k <= lastWord; k++) {
+                inter += Long.bitCount(words[a + k] & other.words[b + k]);
+            }
+        }
+        return inter;
+    }
+
+    /**
+     * OR {@code other} into this mask, word by word. The box of {@code other} must lie inside this box.
+     */
+    public void or(BitMask other) {
+        if (other.x1 < x1 || other.x2 > x2 || other.y1 < y1 || other.y2 > y2) {
+            throw new IllegalArgumentException("Mask box is not inside the target box");
+        }
+        for (int y = other.y1; y <= other.y2; y++) {
+            int a = (y - y1) * wordsPerRow - wordStart;
+            int b = (y - other.y1) * other.wordsPerRow - other.wordStart;
+            for (int k = other.wordStart; k < other.wordStart + other.wordsPerRow; k++) {
+                words[a + k] |= other.words[b + k];
+            }
+        }
+        area = -1;
+    }
+
+    /**
+     * Unpack the rectangle [x, x + width) x [y, y + height) into {@code out} as 0 / 1 values, row-major.
+     */
+    public void crop(int x, int y, int width, int height, byte[] out) {
+        int idx = 0;
+        for (int j = 0; j < height; j++) {
+            for (int k = 0; k < width; k++) {
+                out[idx++] = (byte) (get(x + k, y + j) ? 1 : 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.rtmdet_ins_core;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Scanner;
+
+/**
+ * Class names of a model by class id, shared by the detector and all its results: detections only store ids.
+ */
+public class ClassTable {
+    private final String[] names;
+
+    public ClassTable(String[] names) {
+        this.names = names.clone();
+    }
+
+    /**
+     * One class name per line, the line index being the class id.
+     */
+    public static ClassTable read(InputStream inputStream) {
+        ArrayList<String> names = new ArrayList<>();
+        try (Scanner scanner = new Scanner(inputStream)) {
+            while (scanner.hasNextLine()) {
+                names.add(scanner.nextLine());
+            }
+        }
+        return new ClassTable(names.toArray(new String[0]));
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * Name of {@code classId}, null if the model has no such class.
+     */
+    public String getName(int classId) {
+        return classId >= 0 && classId < names.length ? names[classId] : null;
+    }
+}
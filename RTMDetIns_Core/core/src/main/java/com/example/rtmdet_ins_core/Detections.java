@@ -0,0 +1,80 @@
+package com.example.rtmdet_ins_core;
+
+import java.util.Arrays;
+
+/**
+ * Detections of one image, struct-of-arrays: detection i has its box at {@code boxes[4 * i, 4 * i + 4)} and its
+ * score, class id, mask and track id at index i of the other arrays. Only the first {@link #count} are valid.
+ * <p>
+ * Nothing is boxed nor allocated per detection, and label names are looked up in the {@link ClassTable} of the
+ * detector. {@link #reset} empties the result so that it can be filled again for the next frame: the arrays only
+ * grow when a frame has more detections than any before.
+ */
+public class Detections {
+    public final ClassTable classes;    // names of the class ids
+    public int count;                   // number of valid detections
+    public float[] boxes;               // (4 * capacity,) - x1, y1, x2, y2 in original image coordinates
+    public float[] scores;              // (capacity,) - confidence score between 0 and 1
+    public int[] classIds;              // (capacity,)
+    public InstanceMask[] masks;        // (capacity,) - mask corresponding to box (size of mask = size of box)
+    public int[] trackIds;              // (capacity,) - id of the instance across frames, -1 until set by TemporalTracker
+
+    public Detections(ClassTable classes, int capacity) {
+        this.classes = classes;
+        this.boxes = new float[4 * capacity];
+        this.scores = new float[capacity];
+        this.classIds = new int[capacity];
+        this.masks = new InstanceMask[capacity];
+        this.trackIds = new int[capacity];
+        Arrays.fill(trackIds, -1);
+    }
+
+    public int getCapacity() {
+        return scores.length;
+    }
+
+    /**
+     * Remove all detections, keeping the arrays.
+     */
+    public void reset() {
+        Arrays.fill(masks, 0, count, null);
+        Arrays.fill(trackIds, 0, count, -1);
+        count = 0;
+    }
+
+    /**
+     * Append a detection, growing the arrays if full.
+     *
+     * @param box x1, y1, x2, y2
+     * @return index of the detection
+     */
+    public int add(int[] box, float score, int classId, InstanceMask mask) {
+        if (count == getCapacity()) {
+            grow(Math.max(2 * count, 8));
+        }
+        int i = count++;
+        boxes[4 * i] = box[0];
+        boxes[4 * i + 1] = box[1];
+        boxes[4 * i + 2] = box[2];
+        boxes[4 * i + 3] = box[3];
+        scores[i] = score;
+        classIds[i] = classId;
+        masks[i] = mask;
+        trackIds[i] = -1;
+        return i;
+    }
+
+    public String getLabel(int i) {
+        return classes.getName(classIds[i]);
+    }
+
+    private void grow(int capacity) {
+        int old = getCapacity();
+        boxes = Arrays.copyOf(boxes, 4 * capacity);
+        scores = Arrays.copyOf(scores, capacity);
+        classIds = Arrays.copyOf(classIds, capacity);
+        masks = Arrays.copyOf(masks, capacity);
+        trackIds = Arrays.copyOf(trackIds, capacity);
+        Arrays.fill(trackIds, old, capacity, -1);
+    }
+}
@@ -0,0 +1,91 @@
+package com.example.rtmdet_ins_core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Fixed set of detectors (each with its own runtime instance) handed out to worker threads, so that several
+ * images can be detected concurrently while every detector is only used by one thread at a time.
+ * <p>
+ * More instances with fewer threads each favour throughput, fewer instances with more threads favour latency.
+ */
+public class DetectorPool<D> {
+    public interface Factory<D> {
+        D create(int index) throws Exception;
+    }
+
+    public interface Task<D, R> {
+        R run(D detector) throws Exception;
+    }
+
+    public interface Cleanup<D> {
+        void close(D detector);
+    }
+
+    private final List<D> detectors = new ArrayList<>();
+    private final BlockingQueue<D> available;
+    private final Cleanup<D> cleanup;
+
+    /**
+     * @param cleanup closes a detector, in {@link #close} or on the detectors already created when the factory fails
+     */
+    public DetectorPool(int size, Factory<D> factory, Cleanup<D> cleanup) {
+        available = new ArrayBlockingQueue<>(size);
+        this.cleanup = cleanup;
+        for (int i = 0; i < size; i++) {
+            D detector;
+            try {
+                detector = factory.create(i);
+            } catch (Exception e) {
+                for (D created : detectors) {
+                    try {
+                        cleanup.close(created);
+                    } catch (RuntimeException closeError) {
+                        e.addSuppressed(closeError);
+                    }
+                }
+                throw new IllegalStateException("Failed to create detector " + i + " of " + size, e);
+            }
+            detectors.add(detector);
+            available.add(detector);
+        }
+    }
+
+    public int size() {
+        return detectors.size();
+    }
+
+    /**
+     * Take a detector, waiting until one is free. It must be given back with {@link #release}.
+     */
+    public D acquire() throws InterruptedException {
+        return available.take();
+    }
+
+    public void release(D detector) {
+        available.add(detector);
+    }
+
+    /**
+     * Run {@code task} with a free detector, waiting until one is available.
+     */
+    public <R> R run(Task<D, R> task) throws Exception {
+        D detector = acquire();
+        try {
+            return task.run(detector);
+        } finally {
+            release(detector);
+        }
+    }
+
+    /**
+     * Wait until every detector is back, then close them all.
+     */
+    public void close() throws InterruptedException {
+        for (int i = 0; i < detectors.size(); i++) {
+            cleanup.close(available.take());
+        }
+    }
+}
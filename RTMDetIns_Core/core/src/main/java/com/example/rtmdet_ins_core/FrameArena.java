@@ -0,0 +1,132 @@
+package com.example.rtmdet_ins_core;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Scratch arrays of one frame from extract to the end of post-processing, sized for the maximum number of
+ * detections of the model and reused frame after frame: the raw boxes / scores / labels filled by the apps, and
+ * the flags, candidates, packed masks, merge matrix and merge chains of {@link InstanceSegPostprocessor}.
+ * <p>
+ * Arrays only grow when a frame has more detections (or larger boxes) than any before. {@link #getAllocatedBytes}
+ * counts everything the arena allocated, so tests and metrics can check that a warmed-up arena allocates nothing
+ * per frame. Not thread-safe: a frame owns its arena until post-processing returns.
+ */
+public class FrameArena {
+    // raw outputs of the model, filled by the apps
+    public int[][] boxes;           // (capacity, 4) - [x1, y1, x2, y2] in model input coordinates
+    public float[] scores;          // (capacity,)
+    public long[] labels;           // (capacity,)
+
+    // post-processing scratch
+    boolean[] isSkipped;            // (capacity,)
+    int[] candidates;               // (capacity,)
+    BitMask[] bitMasks;             // (capacity,) - current mask of each detection, packed or merged
+    boolean[] mergeMatrix;          // (capacity * capacity,) - used as (n, n) for a frame of n detections
+    int[] mergeNext;                // (capacity,) - next detection merged into the same instance, -1 at the end
+    int[] mergeTail;                // (capacity,) - last detection of the chain starting at an index
+
+    private BitMask[] packedPool;   // (capacity,) - packed masks, kept across frames
+    private BitMask[] mergedPool;   // (capacity,) - merged masks, kept across frames
+    private int capacity = 0;
+    private final AtomicLong allocatedBytes = new AtomicLong();  // masks are packed from several threads
+
+    public FrameArena(int capacity) {
+        this.boxes = new int[0][];
+        this.scores = new float[0];
+        this.labels = new long[0];
+        this.isSkipped = new boolean[0];
+        this.candidates = new int[0];
+        this.bitMasks = new BitMask[0];
+        this.mergeMatrix = new boolean[0];
+        this.mergeNext = new int[0];
+        this.mergeTail = new int[0];
+        this.packedPool = new BitMask[0];
+        this.mergedPool = new BitMask[0];
+        ensureCapacity(capacity);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Bytes allocated by the arena since it was created: arrays and pooled masks, including their growth.
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    public void ensureCapacity(int n) {
+        if (n <= capacity) {
+            return;
+        }
+        int old = capacity;
+        boxes = Arrays.copyOf(boxes, n);
+        for (int i = old; i < n; i++) {
+            boxes[i] = new int[4];
+        }
+        scores = Arrays.copyOf(scores, n);
+        labels = Arrays.copyOf(labels, n);
+        isSkipped = new boolean[n];
+        candidates = new int[n];
+        bitMasks = new BitMask[n];
+        mergeMatrix = new boolean[n * n];
+        mergeNext = new int[n];
+        mergeTail = new int[n];
+        packedPool = Arrays.copyOf(packedPool, n);
+        mergedPool = Arrays.copyOf(mergedPool, n);
+        capacity = n;
+
+        // array data only, 4 bytes per reference: 41 bytes per detection, new box rows and the merge matrix
+        allocatedBytes.addAndGet(41L * n + 16L * (n - old) + (long) n * n);
+    }
+
+    /**
+     * Prepare the post-processing scratch for a frame of {@code n} detections, growing if needed.
+     */
+    void reset(int n) {
+        ensureCapacity(n);
+        Arrays.fill(isSkipped, 0, n, false);
+        Arrays.fill(bitMasks, 0, n, null);
+        Arrays.fill(mergeMatrix, 0, n * n, false);
+        Arrays.fill(mergeNext, 0, n, -1);
+        for (int i = 0; i < n; i++) {
+            mergeTail[i] = i;
+        }
+    }
+
+    /**
+     * Mask {@code i} of {@code masks} packed inside the box, into the pooled mask of index {@code i}.
+     */
+    BitMask pack(MaskTensor masks, int i, int x1, int y1, int x2, int y2) {
+        BitMask pooled = packedPool[i];
+        int before = pooled == null ? 0 : pooled.getCapacity();
+        BitMask mask = BitMask.encode(masks, i, x1, y1, x2, y2, pooled);
+        packedPool[i] = mask;
+        countGrowth(before, mask);
+        return mask;
+    }
+
+    /**
+     * Empty pooled mask of index {@code i} for the merged instance, over box [x1, x2] x [y1, y2].
+     */
+    BitMask merged(int i, int x1, int y1, int x2, int y2) {
+        BitMask mask = mergedPool[i];
+        int before = mask == null ? 0 : mask.getCapacity();
+        if (mask == null) {
+            mask = new BitMask(x1, y1, x2, y2);
+            mergedPool[i] = mask;
+        } else {
+            mask.reset(x1, y1, x2, y2);
+        }
+        countGrowth(before, mask);
+        return mask;
+    }
+
+    private void countGrowth(int before, BitMask mask) {
+        if (mask.getCapacity() != before) {
+            allocatedBytes.addAndGet(8L * mask.getCapacity());
+        }
+    }
+}
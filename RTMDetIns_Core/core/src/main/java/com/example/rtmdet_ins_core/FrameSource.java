@@ -0,0 +1,22 @@
+package com.example.rtmdet_ins_core;
+
+/**
+ * Producer of video frames for {@link StreamingExecutor}: a camera, a video decoder or a synthetic generator.
+ * <p>
+ * The source pushes frames at its own rate from its own thread. Every frame handed to the sink comes back through
+ * {@link #recycle}, processed or dropped, so sources can fill a fixed set of buffers.
+ */
+public interface FrameSource<F> {
+    interface Sink<F> {
+        void onFrame(F frame);
+    }
+
+    void start(Sink<F> sink);
+
+    /**
+     * Stop producing frames. Frames still held by the consumer are recycled later.
+     */
+    void stop();
+
+    void recycle(F frame);
+}
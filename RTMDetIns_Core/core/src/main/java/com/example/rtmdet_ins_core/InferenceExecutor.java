@@ -0,0 +1,107 @@
+package com.example.rtmdet_ins_core;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs detection requests (pre-process, inference, post-process) on a dedicated worker thread and
+ * delivers results through a callback executor, e.g. the UI thread.
+ * <p>
+ * Only the latest request matters: submitting a new one cancels the previous one if it has not started,
+ * and the result of any request that is no longer the latest is dropped instead of delivered.
+ */
+public class InferenceExecutor<I, O> {
+    public interface Task<I, O> {
+        O run(I input) throws Exception;
+    }
+
+    public interface Callback<O> {
+        void onResult(O result);
+
+        void onError(Throwable error);
+    }
+
+    private final Task<I, O> task;
+    private final Executor callbackExecutor;
+    private final ExecutorService worker;
+    private final AtomicLong generation = new AtomicLong();     // id of the latest request
+    private Future<?> pending;
+
+    public InferenceExecutor(Task<I, O> task, Executor callbackExecutor) {
+        this.task = task;
+        this.callbackExecutor = callbackExecutor;
+        this.worker = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "inference");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queue {@code input}, superseding any earlier request. The callback is only called if this is still
+     * the latest request when the result is ready.
+     */
+    public synchronized Future<?> submit(final I input, final Callback<O> callback) {
+        final long id = generation.incrementAndGet();
+        if (pending != null) {
+            pending.cancel(false);
+        }
+        pending = worker.submit(() -> {
+            if (isStale(id)) {
+                return;
+            }
+            O result;
+            try {
+                result = task.run(input);
+            } catch (final Exception e) {
+                deliver(id, () -> callback.onError(e));
+                return;
+            }
+            final O finalResult = result;
+            deliver(id, () -> callback.onResult(finalResult));
+        });
+        return pending;
+    }
+
+    /**
+     * Drop the current request: it is not started if still queued, and its result is not delivered.
+     */
+    public synchronized void cancel() {
+        generation.incrementAndGet();
+        if (pending != null) {
+            pending.cancel(false);
+            pending = null;
+        }
+    }
+
+    /**
+     * Cancel pending work and stop the worker. {@code cleanup} (may be null) runs on the worker thread once
+     * the running request, if any, has finished, so it can safely release the detector.
+     */
+    public synchronized void shutdown(Runnable cleanup) {
+        cancel();
+        if (cleanup != null) {
+            worker.execute(cleanup);
+        }
+        worker.shutdown();
+    }
+
+    private boolean isStale(long id) {
+        return generation.get() != id;
+    }
+
+    private void deliver(final long id, final Runnable delivery) {
+        if (isStale(id)) {
+            return;
+        }
+        callbackExecutor.execute(() -> {
+            // a newer request may have arrived while the result was queued
+            if (!isStale(id)) {
+                delivery.run();
+            }
+        });
+    }
+}
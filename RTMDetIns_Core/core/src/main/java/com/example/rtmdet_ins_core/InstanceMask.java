@@ -0,0 +1,185 @@
+package com.example.rtmdet_ins_core;
+
+import java.util.Arrays;
+
+/**
+ * Binary mask of an instance with the size of its box in the original image, 1 bit per pixel.
+ * <p>
+ * The mask is kept at model resolution (cropped to the box in the model input) with the transform to the
+ * original image, and only upscaled when its pixels are read: {@link #get} and {@link #copyTo} upscale it once
+ * and cache the result (packed 64 pixels per {@code long}, row-major, bit {@code y * width + x}), while
+ * {@link #upscale} writes it straight into a buffer of the caller, without caching. Callers that only need boxes
+ * never pay for the upscaling. Apps turn it into a bitmap only when one is asked for.
+ */
+public class InstanceMask {
+    private final int width, height;    // size of the box in the original image
+
+    // source mask at model resolution, packed like the upscaled one, null when created upscaled
+    private final long[] srcWords;
+    private final int srcWidth, srcHeight;
+    // source column of pixel x: floor(startX + (x + 0.5) * stepX), clamped; same for rows
+    private final float startX, startY;
+    private final float stepX, stepY;
+
+    private volatile long[] words;      // (ceil(width * height / 64),) - upscaled mask, created on first access
+
+    /**
+     * Empty mask, already at its final size.
+     */
+    public InstanceMask(int width, int height) {
+        this.width = Math.max(width, 0);
+        this.height = Math.max(height, 0);
+        this.srcWords = null;
+        this.srcWidth = this.srcHeight = 0;
+        this.startX = this.startY = this.stepX = this.stepY = 0;
+        this.words = new long[(this.width * this.height + 63) >>> 6];
+    }
+
+    private InstanceMask(byte[] mask, int srcWidth, int srcHeight, int width, int height,
+                         float startX, float startY, float stepX, float stepY) {
+        this.width = Math.max(width, 0);
+        this.height = Math.max(height, 0);
+        this.srcWidth = Math.max(srcWidth, 0);
+        this.srcHeight = Math.max(srcHeight, 0);
+        this.srcWords = new long[(this.srcWidth * this.srcHeight + 63) >>> 6];
+        for (int bit = 0; bit < this.srcWidth * this.srcHeight; bit++) {
+            if (mask[bit] != 0) {
+                srcWords[bit >>> 6] |= 1L << bit;      // shift distance is taken mod 64
+            }
+        }
+        this.startX = startX;
+        this.startY = startY;
+        this.stepX = stepX;
+        this.stepY = stepY;
+    }
+
+    /**
+     * Scale a 0 / 1 mask ({@code srcWidth * srcHeight}, row-major) to {@code width * height}, nearest neighbour like
+     * {@code Bitmap.createScaledBitmap} without filtering. Upscaled on first access.
+     */
+    public static InstanceMask scale(byte[] mask, int srcWidth, int srcHeight, int width, int height) {
+        return new InstanceMask(mask, srcWidth, srcHeight, width, height, 0.0F, 0.0F,
+                (float) srcWidth / Math.max(width, 1), (float) srcHeight / Math.max(height, 1));
+    }
+
+    /**
+     * Mask of {@code instance} over its box in the original image, mapped through the letterbox transform
+     * (original = (model - pad) * origSize / (inferSize - 2 * pad)) used for the box. Upscaled on first access.
+     */
+    public static InstanceMask of(InstanceSegPostprocessor.Instance instance, int inferSize, int origWidth, int origHeight,
+                                  int padX, int padY) {
+        int[] box = instance.box;
+        float stepX = (inferSize - padX * 2) / (float) origWidth;     // model pixels per original pixel
+        float stepY = (inferSize - padY * 2) / (float) origHeight;
+        return new InstanceMask(instance.mask, instance.maskWidth, instance.maskHeight, box[2] - box[0], box[3] - box[1],
+                box[0] * stepX + padX - instance.maskX, box[1] * stepY + padY - instance.maskY, stepX, stepY);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public boolean isUpscaled() {
+        return words != null;
+    }
+
+    public boolean get(int x, int y) {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            return false;
+        }
+        int bit = y * width + x;
+        return (upscaled()[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    public void set(int x, int y) {
+        int bit = y * width + x;
+        upscaled()[bit >>> 6] |= 1L << bit;
+    }
+
+    /**
+     * Bytes held by the mask pixels: model resolution mask, plus the upscaled one once created.
+     */
+    public int getByteCount() {
+        long[] upscaled = words;
+        return ((srcWords == null ? 0 : srcWords.length) + (upscaled == null ? 0 : upscaled.length)) * 8;
+    }
+
+    /**
+     * Unpack the rectangle [x, x + w) x [y, y + h) of the upscaled mask into {@code out} from {@code offset},
+     * {@code stride} bytes per row, as {@code value} where set and 0 elsewhere (e.g. 255 for the pixels of an
+     * ALPHA_8 bitmap).
+     */
+    public void copyTo(int x, int y, int w, int h, byte[] out, int offset, int stride, byte value) {
+        long[] words = upscaled();
+        for (int j = 0; j < h; j++) {
+            int bit = (y + j) * width + x;
+            int idx = offset + j * stride;
+            for (int k = 0; k < w; k++, bit++) {
+                out[idx + k] = (words[bit >>> 6] & (1L << bit)) != 0 ? value : 0;
+            }
+        }
+    }
+
+    /**
+     * Upscale the whole mask into {@code out} from {@code offset}, {@code stride} bytes per row, as {@code value}
+     * where set and 0 elsewhere, without creating nor using the cached upscaled mask.
+     */
+    public void upscale(byte[] out, int offset, int stride, byte value) {
+        if (srcWords == null) {
+            copyTo(0, 0, width, height, out, offset, stride, value);
+            return;
+        }
+        if (srcWidth == 0 || srcHeight == 0) {
+            for (int y = 0; y < height; y++) {
+                Arrays.fill(out, offset + y * stride, offset + y * stride + width, (byte) 0);
+            }
+            return;
+        }
+        for (int y = 0; y < height; y++) {
+            int srcRow = srcRow(y) * srcWidth;
+            int idx = offset + y * stride;
+            for (int x = 0; x < width; x++) {
+                int bit = srcRow + srcCol(x);
+                out[idx + x] = (srcWords[bit >>> 6] & (1L << bit)) != 0 ? value : 0;
+            }
+        }
+    }
+
+    private long[] upscaled() {
+        long[] upscaled = words;
+        if (upscaled == null) {
+            // racing threads compute the same pixels, either copy can be kept
+            upscaled = new long[(width * height + 63) >>> 6];
+            if (srcWidth > 0 && srcHeight > 0) {
+                int[] cols = new int[width];
+                for (int x = 0; x < width; x++) {
+                    cols[x] = srcCol(x);
+                }
+                int bit = 0;
+                for (int y = 0; y < height; y++) {
+                    int srcRow = srcRow(y) * srcWidth;
+                    for (int x = 0; x < width; x++, bit++) {
+                        int srcBit = srcRow + cols[x];
+                        if ((srcWords[srcBit >>> 6] & (1L << srcBit)) != 0) {
+                            upscaled[bit >>> 6] |= 1L << bit;
+                        }
+                    }
+                }
+            }
+            words = upscaled;
+        }
+        return upscaled;
+    }
+
+    private int srcCol(int x) {
+        return Math.max(0, Math.min((int) Math.floor(startX + (x + 0.5F) * stepX), srcWidth - 1));
+    }
+
+    private int srcRow(int y) {
+        return Math.max(0, Math.min((int) Math.floor(startY + (y + 0.5F) * stepY), srcHeight - 1));
+    }
+}
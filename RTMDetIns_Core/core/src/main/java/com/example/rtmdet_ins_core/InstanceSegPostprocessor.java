@@ -0,0 +1,389 @@
+package com.example.rtmdet_ins_core;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Backend-agnostic post-processing of RTMDet-Ins outputs: score filtering, optional class-aware NMS,
+ * merging of redundant instances and cropping of masks to their boxes.
+ * <p>
+ * Plain Java on purpose: every runtime (ONNX, TFLite, Pytorch Mobile) feeds the same raw outputs in,
+ * and the hot path can be tested / profiled on a desktop JVM.
+ */
+public class InstanceSegPostprocessor {
+    // constant of current model family
+    public static final float BOX_IOU_THRES = 0.7F;
+    public static final float MASK_IOU_THRES = 0.7F;
+    public static final float OVERLAP_THRES = 0.8F;
+    public static final float EPS = 1e-6F;
+
+    // constant of post-processing
+    public static final int BOX_THRES = 20;    // ignore too small boxes
+
+    public static class Instance {
+        public int[] box;       // (4,) - format x1, y1, x2, y2 in original image coordinates
+        public byte[] mask;     // (maskHeight * maskWidth,) - binary mask cropped to box, at model resolution
+        public int maskX;       // top-left of the mask in the model input
+        public int maskY;
+        public int maskWidth;
+        public int maskHeight;
+        public float score;     // confidence score between 0 and 1
+        public int label;       // class index
+
+        public Instance(int[] box, byte[] mask, int maskX, int maskY, int maskWidth, int maskHeight, float score, int label) {
+            this.box = box;
+            this.mask = mask;
+            this.maskX = maskX;
+            this.maskY = maskY;
+            this.maskWidth = maskWidth;
+            this.maskHeight = maskHeight;
+            this.score = score;
+            this.label = label;
+        }
+    }
+
+    private final int inferSize;        // input size of the model
+    private final float commonThres;    // confidence threshold for common bounding box
+    private final float personThres;    // confidence threshold for person (special case)
+    private final float nmsBoxIouThres; // class-aware NMS threshold, <= 0 to disable
+
+    private int numThreads = 1;         // threads used for the pairwise mask comparisons
+    private ExecutorService executor;   // null when running on the caller thread only
+
+    public InstanceSegPostprocessor(int inferSize, float commonThres, float personThres) {
+        this(inferSize, commonThres, personThres, 0F);
+    }
+
+    public InstanceSegPostprocessor(int inferSize, float commonThres, float personThres, float nmsBoxIouThres) {
+        this.inferSize = inferSize;
+        this.commonThres = commonThres;
+        this.personThres = personThres;
+        this.nmsBoxIouThres = nmsBoxIouThres;
+    }
+
+    public int getInferSize() {
+        return inferSize;
+    }
+
+    public synchronized int getNumThreads() {
+        return numThreads;
+    }
+
+    /**
+     * Number of threads used to pack masks and compute the pairwise IoU / overlap matrix.
+     * 1 (default) runs everything on the calling thread. Results do not depend on this value.
+     */
+    public synchronized void setNumThreads(int numThreads) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("numThreads must be >= 1: " + numThreads);
+        }
+        if (numThreads == this.numThreads) {
+            return;
+        }
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+        this.numThreads = numThreads;
+        if (numThreads > 1) {
+            executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+                private int count = 0;
+
+                @Override
+                public synchronized Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "postprocess-" + count++);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    public synchronized void close() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+        numThreads = 1;
+    }
+
+    /**
+     * @param boxes  (n, 4) - [x1, y1, x2, y2] in model input coordinates, modified in place
+     * @param scores (n,)
+     * @param labels (n,)
+     * @param masks  (n, inferSize, inferSize) - binary masks, read only
+     */
+    public ArrayList<Instance> process(int[][] boxes, float[] scores, long[] labels, MaskTensor masks, int origWidth, int origHeight, int padX, int padY) {
+        return process(boxes, scores, labels, boxes.length, masks, origWidth, origHeight, padX, padY, new FrameArena(boxes.length));
+    }
+
+    /**
+     * Same as {@link #process(int[][], float[], long[], MaskTensor, int, int, int, int)} on the {@code n} first raw
+     * outputs of {@code arena} (filled by the caller), with all the scratch arrays and packed masks taken from the
+     * arena: once warmed up, only the returned instances are allocated.
+     */
+    public ArrayList<Instance> process(FrameArena arena, int n, MaskTensor masks, int origWidth, int origHeight, int padX, int padY) {
+        return process(arena.boxes, arena.scores, arena.labels, n, masks, origWidth, origHeight, padX, padY, arena);
+    }
+
+    /**
+     * Same as {@link #process(FrameArena, int, MaskTensor, int, int, int, int)} on raw outputs held by the caller,
+     * e.g. pooled output buffers, only the scratch being taken from {@code arena}.
+     */
+    public ArrayList<Instance> process(int[][] boxes, float[] scores, long[] labels, int n, MaskTensor masks,
+                                       int origWidth, int origHeight, int padX, int padY, FrameArena arena) {
+        arena.reset(n);
+        final boolean[] isSkipped = arena.isSkipped;
+
+        // 1. Filter our low score boxes
+        for (int i = 0; i < n; i++) {
+            if (scores[i] >= commonThres || (labels[i] == 0 && scores[i] >= personThres))
+                continue;
+            isSkipped[i] = true;
+        }
+
+        // 2. NMS (only for models exported without it)
+        if (nmsBoxIouThres > 0) {
+            for (int i = 0; i < n; i++) {
+                if (isSkipped[i])
+                    continue;
+
+                int[] box1 = boxes[i];
+
+                for (int j = i + 1; j < n; j++) {
+                    if (isSkipped[j] || labels[i] != labels[j])
+                        continue;
+
+                    float boxIoU = calcBoxIoU(box1, boxes[j]);
+
+                    if (boxIoU > nmsBoxIouThres) {
+                        if (scores[i] > scores[j]) {
+                            isSkipped[j] = true;
+                        } else {
+                            isSkipped[i] = true;
+                        }
+                    }
+                }
+            }
+        }
+
+        // 3. Normalize box coordinates (between 0 and infer size - 1)
+        for (int i = 0; i < n; i++) {
+            if (isSkipped[i])
+                continue;
+
+            int x1 = boxes[i][0];
+            int y1 = boxes[i][1];
+            int x2 = boxes[i][2];
+            int y2 = boxes[i][3];
+
+            if (x1 >= x2 || y1 >= y2) {
+                isSkipped[i] = true;
+                continue;
+            }
+
+            x1 = Math.min(Math.max(padX, x1), inferSize - 1 - padX);
+            y1 = Math.min(Math.max(padY, y1), inferSize - 1 - padY);
+            x2 = Math.min(Math.max(padX, x2), inferSize - 1 - padX);
+            y2 = Math.min(Math.max(padY, y2), inferSize - 1 - padY);
+
+            boxes[i][0] = x1; boxes[i][1] = y1; boxes[i][2] = x2; boxes[i][3] = y2;
+        }
+
+        // 4. Reduce redundant boxes: NMS + Merged overlapping boxes
+        final int[] candidates = arena.candidates;
+        int numCandidates = 0;
+        for (int i = 0; i < n; i++) {
+            if (!isSkipped[i]) {
+                candidates[numCandidates++] = i;
+            }
+        }
+
+        // pack each candidate once, limited to its box
+        final BitMask[] bitMasks = arena.bitMasks;
+        runParallel(numCandidates, t -> {
+            int i = candidates[t];
+            bitMasks[i] = arena.pack(masks, i, boxes[i][0], boxes[i][1], boxes[i][2], boxes[i][3]);
+        });
+
+        // pairwise merge conditions, computed in parallel: they only depend on the (i, j) pair
+        final int count = numCandidates;
+        final boolean[] mergeMatrix = arena.mergeMatrix;
+        runParallel(numCandidates, t -> {
+            int i = candidates[t];
+            for (int u = t + 1; u < count; u++) {
+                int j = candidates[u];
+                mergeMatrix[i * n + j] = shouldMerge(boxes[i], boxes[j], labels[i], labels[j], bitMasks[i], bitMasks[j]);
+            }
+        });
+
+        // greedy suppression, in the same order as a sequential scan; the detections merged into i are chained
+        // from mergeNext[i], each one followed by the chain of its own merged detections
+        final int[] mergeNext = arena.mergeNext;
+        final int[] mergeTail = arena.mergeTail;
+        for (int i = 0; i < n; i++) {
+            if (isSkipped[i]) {
+                continue;
+            }
+
+            for (int j = i + 1; j < n; j++) {
+                if (isSkipped[j]) {
+                    continue;
+                }
+
+                if (mergeMatrix[i * n + j]) {
+                    int kept = scores[i] > scores[j] ? i : j;
+                    int merged = kept == i ? j : i;
+                    isSkipped[merged] = true;
+                    mergeNext[mergeTail[kept]] = merged;
+                    mergeTail[kept] = mergeTail[merged];
+                }
+
+                if (isSkipped[i]) {
+                    break;
+                }
+            }
+        }
+
+        // 5. Merge masks
+        for (int i = 0; i < n; i++) {
+            if (isSkipped[i] || mergeNext[i] < 0) {
+                continue;
+            }
+
+            // merge box
+            int[] curBox = boxes[i];
+            for (int j = mergeNext[i]; j >= 0; j = mergeNext[j]) {
+                int[] box2 = boxes[j];
+                curBox[0] = Math.min(curBox[0], box2[0]);
+                curBox[1] = Math.min(curBox[1], box2[1]);
+                curBox[2] = Math.max(curBox[2], box2[2]);
+                curBox[3] = Math.max(curBox[3], box2[3]);
+            }
+
+            // merge mask, word by word
+            BitMask mergedMask = arena.merged(i, curBox[0], curBox[1], curBox[2], curBox[3]);
+            mergedMask.or(bitMasks[i]);
+            for (int j = mergeNext[i]; j >= 0; j = mergeNext[j]) {
+                mergedMask.or(bitMasks[j]);
+            }
+            bitMasks[i] = mergedMask;
+        }
+
+        // 6. Refine boxes coordinates and crop masks
+        ArrayList<Instance> instances = new ArrayList<>();
+
+        for (int i = 0; i < n; i++) {
+            if (isSkipped[i]) {
+                continue;
+            }
+
+            // actual box coordinates
+            int x1 = boxes[i][0];
+            int y1 = boxes[i][1];
+            int x2 = boxes[i][2];
+            int y2 = boxes[i][3];
+            int actualX1 = (int) ((x1 - padX) / (float) (inferSize - padX * 2) * origWidth);
+            int actualY1 = (int) ((y1 - padY) / (float) (inferSize - padY * 2) * origHeight);
+            int actualX2 = (int) ((x2 - padX) / (float) (inferSize - padX * 2) * origWidth);
+            int actualY2 = (int) ((y2 - padY) / (float) (inferSize - padY * 2) * origHeight);
+            // check box size
+            if ((actualX2 - actualX1 + 1) + (actualY2 - actualY1 + 1) < BOX_THRES)
+                continue;
+
+            // crop current mask (H x W) to final mask (same size with box)
+            int maskHeight = y2 - y1;
+            int maskWidth = x2 - x1;
+            byte[] croppedMask = new byte[maskWidth * maskHeight];
+            bitMasks[i].crop(x1, y1, maskWidth, maskHeight, croppedMask);
+
+            instances.add(new Instance(new int[]{actualX1, actualY1, actualX2, actualY2}, croppedMask, x1, y1, maskWidth, maskHeight, scores[i], (int) labels[i]));
+        }
+
+        return instances;
+    }
+
+    private static boolean shouldMerge(int[] box1, int[] box2, long label1, long label2, BitMask mask1, BitMask mask2) {
+        float boxIoU = calcBoxIoU(box1, box2);
+
+        // masks live inside their boxes: nothing to compare without box overlap,
+        // and different classes can only merge through the box IoU condition
+        if (boxIoU == 0 || (label1 != label2 && boxIoU <= BOX_IOU_THRES)) {
+            return false;
+        }
+
+        // calculate mask IoU and overlap on the overlapping words only
+        float maskInter = mask1.intersection(mask2);
+        float mask1Area = mask1.getArea();
+        float mask2Area = mask2.getArea();
+
+        float maskIoU = maskInter / (mask1Area + mask2Area - maskInter + EPS);
+        float mask1Overlap = maskInter / (mask1Area + EPS);
+        float mask2Overlap = maskInter / (mask2Area + EPS);
+
+        return (boxIoU > BOX_IOU_THRES && maskIoU > MASK_IOU_THRES) ||
+                (label1 == label2 && (Math.max(mask1Overlap, mask2Overlap) > OVERLAP_THRES));
+    }
+
+    private interface IndexTask {
+        void run(int index);
+    }
+
+    /**
+     * Run {@code task} for indices [0, count). Indices are striped over the executor threads
+     * so that the decreasing row lengths of the upper triangle stay balanced.
+     */
+    private void runParallel(final int count, final IndexTask task) {
+        ExecutorService executor;
+        int numTasks;
+        synchronized (this) {
+            executor = this.executor;
+            numTasks = Math.min(numThreads, count);
+        }
+        if (executor == null || numTasks < 2) {
+            for (int k = 0; k < count; k++) {
+                task.run(k);
+            }
+            return;
+        }
+
+        final int stride = numTasks;
+        ArrayList<Future<?>> futures = new ArrayList<>(numTasks);
+        for (int t = 0; t < numTasks; t++) {
+            final int first = t;
+            futures.add(executor.submit(() -> {
+                for (int k = first; k < count; k += stride) {
+                    task.run(k);
+                }
+            }));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    public static float calcBoxIoU(int[] box1, int[] box2) {
+        int x1 = Math.max(box1[0], box2[0]);
+        int y1 = Math.max(box1[1], box2[1]);
+        int x2 = Math.min(box1[2], box2[2]);
+        int y2 = Math.min(box1[3], box2[3]);
+        float inter = Math.max(0, x2 - x1 + 1) * Math.max(0, y2 - y1 + 1);
+        if (inter == 0) {
+            return 0;
+        }
+        float area1 = (box1[2] - box1[0] + 1) * (box1[3] - box1[1] + 1);
+        float area2 = (box2[2] - box2[0] + 1) * (box2[3] - box2[1] + 1);
+        return inter / (area1 + area2 - inter);
+    }
+}
@@ -0,0 +1,291 @@
+package com.example.rtmdet_ins_core;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Fused resize (keep ratio, downscale only) + center pad + normalize, in one pass over the source pixels.
+ * <p>
+ * Replaces the former {@code resizeKeepRatio -> pad -> normalizeImage} of the apps: the letterboxed image is never
+ * materialized, every input value is bilinearly sampled from the ARGB source (or set to the pad value) and
+ * written normalized straight into the runtime input buffer, in the layout the model expects.
+ * <p>
+ * Sampling is done in fixed point and rounded to 8 bits, like the scaled bitmap it replaces, so normalization
+ * is a lookup in a 256-entry table per channel.
+ * <p>
+ * Models with a quantized uint8 / int8 input get raw quantized bytes instead of floats: the tables then hold
+ * {@code round(normalized / scale) + zeroPoint}, clamped to the range of the type.
+ */
+public class LetterboxPreprocessor {
+    public enum Layout {
+        NCHW,   // planar (3, size, size) - ONNX, Pytorch
+        NHWC    // interleaved (size, size, 3) - TFLite
+    }
+
+    public enum InputType {
+        FLOAT32,
+        UINT8,
+        INT8
+    }
+
+    /**
+     * Placement of the resized image inside the (size, size) input.
+     */
+    public static class Letterbox {
+        public final int width, height;     // size of the resized image
+        public final int padX, padY;        // offset of the resized image in the input
+
+        public Letterbox(int width, int height, int padX, int padY) {
+            this.width = width;
+            this.height = height;
+            this.padX = padX;
+            this.padY = padY;
+        }
+    }
+
+    private interface RowWriter {
+        void write(int y, boolean padOnly);
+    }
+
+    private static final int ONE = 256;             // fixed point 1.0 of the sampling weights
+    private static final int HALF = ONE * ONE / 2;
+
+    private final int size;
+    private final Layout layout;
+    private final InputType inputType;
+    // an output row (all channels of one y) is built in an array, then copied into the buffer in one go
+    private final int pixelStride;                  // distance between neighbour pixels of a channel in a row
+    private final int channelStride;                // distance between channels of a pixel in a row
+    private final float[] floatLut;                 // (3, 256) - normalized value of each 8-bit value, FLOAT32 only
+    private final byte[] quantLut;                  // (3, 256) - quantized normalized value, UINT8 / INT8 only
+    private final float[] floatPadRow;              // output row made of the pad value only, FLOAT32 only
+    private final byte[] quantPadRow;               // output row made of the pad value only, UINT8 / INT8 only
+
+    public LetterboxPreprocessor(int size, int padValue, float[] mean, float[] std) {
+        this(size, padValue, mean, std, Layout.NCHW);
+    }
+
+    public LetterboxPreprocessor(int size, int padValue, float[] mean, float[] std, Layout layout) {
+        this(size, padValue, mean, std, layout, InputType.FLOAT32, 1.0F, 0);
+    }
+
+    /**
+     * @param mean, std per channel, in R, G, B order of the source pixels
+     * @param scale, zeroPoint quantization of the model input, ignored for FLOAT32
+     */
+    public LetterboxPreprocessor(int size, int padValue, float[] mean, float[] std, Layout layout,
+                                 InputType inputType, float scale, int zeroPoint) {
+        this.size = size;
+        this.layout = layout;
+        this.inputType = inputType;
+        this.pixelStride = layout == Layout.NCHW ? 1 : 3;
+        this.channelStride = layout == Layout.NCHW ? size : 1;
+
+        float[] normalized = new float[3 * 256];
+        for (int c = 0; c < 3; c++) {
+            for (int v = 0; v < 256; v++) {
+                normalized[c * 256 + v] = (v - mean[c]) / std[c];
+            }
+        }
+        if (inputType == InputType.FLOAT32) {
+            floatLut = normalized;
+            quantLut = null;
+        } else {
+            int min = inputType == InputType.UINT8 ? 0 : -128;
+            int max = inputType == InputType.UINT8 ? 255 : 127;
+            floatLut = null;
+            quantLut = new byte[3 * 256];
+            for (int i = 0; i < quantLut.length; i++) {
+                int q = Math.round(normalized[i] / scale) + zeroPoint;
+                quantLut[i] = (byte) Math.max(min, Math.min(max, q));
+            }
+        }
+
+        floatPadRow = floatLut == null ? null : new float[3 * size];
+        quantPadRow = quantLut == null ? null : new byte[3 * size];
+        for (int x = 0; x < size; x++) {
+            for (int c = 0; c < 3; c++) {
+                int idx = x * pixelStride + c * channelStride;
+                if (floatLut != null) {
+                    floatPadRow[idx] = floatLut[c * 256 + padValue];
+                } else {
+                    quantPadRow[idx] = quantLut[c * 256 + padValue];
+                }
+            }
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public InputType getInputType() {
+        return inputType;
+    }
+
+    /**
+     * Bytes of one (3, size, size) input.
+     */
+    public int getInputBytes() {
+        return 3 * size * size * (inputType == InputType.FLOAT32 ? 4 : 1);
+    }
+
+    /**
+     * Same geometry as resizing with the longer side to {@code size} (only if larger), then centering.
+     */
+    public Letterbox letterbox(int srcWidth, int srcHeight) {
+        int width = srcWidth;
+        int height = srcHeight;
+        if (srcWidth > size || srcHeight > size) {
+            width = size;
+            height = size;
+            if (srcWidth > srcHeight) {
+                height = (int) ((float) size * (float) srcHeight / (float) srcWidth);
+            } else {
+                width = (int) ((float) size * (float) srcWidth / (float) srcHeight);
+            }
+        }
+        return new Letterbox(width, height, (size - width) / 2, (size - height) / 2);
+    }
+
+    /**
+     * Letterbox {@code argb} (row-major, {@code srcWidth * srcHeight}) into {@code out}, from index 0: floats in
+     * the byte order of {@code out}, or one byte per value for a quantized input. The position of {@code out}
+     * is left unchanged.
+     */
+    public Letterbox process(int[] argb, int srcWidth, int srcHeight, ByteBuffer out) {
+        if (inputType == InputType.FLOAT32) {
+            return process(argb, srcWidth, srcHeight, out.asFloatBuffer());
+        }
+
+        final ByteBuffer dst = out.duplicate();
+        final byte[] row = new byte[3 * size];
+        return sample(argb, srcWidth, srcHeight, null, row, (y, padOnly) -> {
+            byte[] values = padOnly ? quantPadRow : row;
+            if (layout == Layout.NHWC) {
+                dst.position(y * size * 3);
+                dst.put(values, 0, 3 * size);
+                return;
+            }
+            for (int c = 0; c < 3; c++) {
+                dst.position((c * size + y) * size);
+                dst.put(values, c * size, size);
+            }
+        });
+    }
+
+    /**
+     * Letterbox {@code argb} (row-major, {@code srcWidth * srcHeight}) into {@code out}, from index 0. The
+     * position of {@code out} is left unchanged. Only for a FLOAT32 input.
+     */
+    public Letterbox process(int[] argb, int srcWidth, int srcHeight, FloatBuffer out) {
+        if (inputType != InputType.FLOAT32) {
+            throw new IllegalStateException("Quantized input must be written to a ByteBuffer");
+        }
+
+        final FloatBuffer dst = out.duplicate();
+        final float[] row = new float[3 * size];
+        return sample(argb, srcWidth, srcHeight, row, null, (y, padOnly) -> {
+            float[] values = padOnly ? floatPadRow : row;
+            if (layout == Layout.NHWC) {
+                dst.position(y * size * 3);
+                dst.put(values, 0, 3 * size);
+                return;
+            }
+            for (int c = 0; c < 3; c++) {
+                dst.position((c * size + y) * size);
+                dst.put(values, c * size, size);
+            }
+        });
+    }
+
+    /**
+     * Fill every output row, in row layout (see {@link #pixelStride}), into {@code floatRow} (FLOAT32) or
+     * {@code byteRow} (quantized) through the tables, and hand it to {@code writer}.
+     */
+    private Letterbox sample(int[] argb, int srcWidth, int srcHeight, float[] floatRow, byte[] byteRow, RowWriter writer) {
+        Letterbox box = letterbox(srcWidth, srcHeight);
+        boolean quantized = byteRow != null;
+        boolean resize = box.width != srcWidth || box.height != srcHeight;
+
+        // horizontal sampling positions, shared by all rows
+        int[] col0 = null, col1 = null, colWeight = null;
+        if (resize) {
+            col0 = new int[box.width];
+            col1 = new int[box.width];
+            colWeight = new int[box.width];
+            float ratioX = (float) srcWidth / box.width;
+            for (int x = 0; x < box.width; x++) {
+                float sx = Math.max(0.0F, (x + 0.5F) * ratioX - 0.5F);
+                int x0 = Math.min((int) sx, srcWidth - 1);
+                col0[x] = x0;
+                col1[x] = Math.min(x0 + 1, srcWidth - 1);
+                colWeight[x] = weight(sx - x0);
+            }
+        }
+        float ratioY = (float) srcHeight / box.height;
+
+        for (int y = 0; y < size; y++) {
+            int srcY = y - box.padY;
+            if (srcY < 0 || srcY >= box.height) {
+                writer.write(y, true);
+                continue;
+            }
+
+            if (quantized) {
+                System.arraycopy(quantPadRow, 0, byteRow, 0, byteRow.length);
+            } else {
+                System.arraycopy(floatPadRow, 0, floatRow, 0, floatRow.length);
+            }
+            if (!resize) {
+                // same size: only normalize
+                int srcRow = srcY * srcWidth;
+                for (int x = 0; x < box.width; x++) {
+                    int pixel = argb[srcRow + x];
+                    int idx = (box.padX + x) * pixelStride;
+                    for (int c = 0, shift = 16; c < 3; c++, shift -= 8) {
+                        int lutIdx = c * 256 + (pixel >> shift & 255);
+                        if (quantized) {
+                            byteRow[idx + c * channelStride] = quantLut[lutIdx];
+                        } else {
+                            floatRow[idx + c * channelStride] = floatLut[lutIdx];
+                        }
+                    }
+                }
+                writer.write(y, false);
+                continue;
+            }
+
+            float sy = Math.max(0.0F, (srcY + 0.5F) * ratioY - 0.5F);
+            int y0 = Math.min((int) sy, srcHeight - 1);
+            int row0 = y0 * srcWidth;
+            int row1 = Math.min(y0 + 1, srcHeight - 1) * srcWidth;
+            int wy1 = weight(sy - y0);
+            int wy0 = ONE - wy1;
+
+            for (int x = 0; x < box.width; x++) {
+                int p00 = argb[row0 + col0[x]], p01 = argb[row0 + col1[x]];
+                int p10 = argb[row1 + col0[x]], p11 = argb[row1 + col1[x]];
+                int wx1 = colWeight[x];
+                int wx0 = ONE - wx1;
+                int idx = (box.padX + x) * pixelStride;
+                for (int c = 0, shift = 16; c < 3; c++, shift -= 8) {
+                    int top = (p00 >> shift & 255) * wx0 + (p01 >> shift & 255) * wx1;
+                    int bottom = (p10 >> shift & 255) * wx0 + (p11 >> shift & 255) * wx1;
+                    int lutIdx = c * 256 + ((top * wy0 + bottom * wy1 + HALF) >>> 16);    // rounded 8-bit value
+                    if (quantized) {
+                        byteRow[idx + c * channelStride] = quantLut[lutIdx];
+                    } else {
+                        floatRow[idx + c * channelStride] = floatLut[lutIdx];
+                    }
+                }
+            }
+            writer.write(y, false);
+        }
+        return box;
+    }
+
+    private static int weight(float fraction) {
+        return Math.min(ONE, Math.round(fraction * ONE));
+    }
+}
@@ -0,0 +1,46 @@
+package com.example.rtmdet_ins_core;
+
+/**
+ * Alpha blending of a mask color into ARGB pixels, in a plain int[] loop.
+ * <p>
+ * Renderers read the pixels under a mask with one {@code Bitmap.getPixels} call, blend them here and write them
+ * back with one {@code setPixels} call, instead of a JNI call per pixel. Same result as drawing the color with
+ * alpha {@code opacity} over the pixels (SRC_OVER), the alpha of the pixels is kept.
+ */
+public class MaskOverlay {
+    private final int alpha;                // 0 - 255
+    private final int red, green, blue;     // color * alpha, the pixel adds its value * (255 - alpha)
+
+    /**
+     * @param color R, G, B between 0 and 255
+     * @param opacity between 0 and 1
+     */
+    public MaskOverlay(int[] color, float opacity) {
+        this.alpha = Math.max(0, Math.min(255, (int) (opacity * 255)));
+        this.red = color[0] * alpha;
+        this.green = color[1] * alpha;
+        this.blue = color[2] * alpha;
+    }
+
+    public int blend(int pixel) {
+        int inv = 255 - alpha;
+        int r = (red + (pixel >> 16 & 255) * inv + 127) / 255;
+        int g = (green + (pixel >> 8 & 255) * inv + 127) / 255;
+        int b = (blue + (pixel & 255) * inv + 127) / 255;
+        return pixel & 0xFF000000 | r << 16 | g << 8 | b;
+    }
+
+    /**
+     * Blend the color into the {@code width * height} {@code pixels} (row-major) where {@code mask} is set, the
+     * first pixel lying over pixel ({@code maskX}, {@code maskY}) of the mask.
+     */
+    public void blend(int[] pixels, int width, int height, InstanceMask mask, int maskX, int maskY) {
+        for (int y = 0, i = 0; y < height; y++) {
+            for (int x = 0; x < width; x++, i++) {
+                if (mask.get(maskX + x, maskY + y)) {
+                    pixels[i] = blend(pixels[i]);
+                }
+            }
+        }
+    }
+}
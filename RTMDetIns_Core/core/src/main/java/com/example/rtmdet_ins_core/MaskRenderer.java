@@ -0,0 +1,49 @@
+package com.example.rtmdet_ins_core;
+
+/**
+ * Draws the masks of {@link Detections} into ARGB pixels, an int[] canvas shared by all the apps.
+ * <p>
+ * Each mask is placed at the top-left corner of its box, clipped to the image and blended by a {@link MaskOverlay}
+ * straight from its 1-bit mask. The apps copy the pixels to a bitmap once and draw the boxes and labels on top with
+ * the Android canvas. Nothing is allocated.
+ */
+public class MaskRenderer {
+    private final MaskOverlay overlay;
+
+    /**
+     * @param color R, G, B between 0 and 255
+     * @param opacity between 0 and 1
+     */
+    public MaskRenderer(int[] color, float opacity) {
+        this.overlay = new MaskOverlay(color, opacity);
+    }
+
+    /**
+     * Blend the masks of the detections into the {@code width * height} {@code pixels} (row-major), in place.
+     */
+    public void draw(Detections detections, int[] pixels, int width, int height) {
+        for (int i = 0; i < detections.count; i++) {
+            draw(detections.masks[i], (int) detections.boxes[4 * i], (int) detections.boxes[4 * i + 1], pixels, width, height);
+        }
+    }
+
+    /**
+     * Blend {@code mask}, its top-left corner at ({@code x}, {@code y}), into the {@code width * height}
+     * {@code pixels}, clipped to the image.
+     */
+    public void draw(InstanceMask mask, int x, int y, int[] pixels, int width, int height) {
+        int left = Math.max(x, 0);
+        int top = Math.max(y, 0);
+        int right = Math.min(x + mask.getWidth(), width);
+        int bottom = Math.min(y + mask.getHeight(), height);
+
+        for (int row = top; row < bottom; row++) {
+            int i = row * width + left;
+            for (int col = left; col < right; col++, i++) {
+                if (mask.get(col - x, row - y)) {
+                    pixels[i] = overlay.blend(pixels[i]);
+                }
+            }
+        }
+    }
+}
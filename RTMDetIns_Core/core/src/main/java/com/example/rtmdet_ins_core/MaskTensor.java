@@ -0,0 +1,60 @@
+package com.example.rtmdet_ins_core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Binary masks of shape (count, height, width) stored in one contiguous buffer, row-major.
+ * <p>
+ * The buffer is usually the runtime output itself (heap or direct), so no per-row arrays are created.
+ */
+public class MaskTensor {
+    private final ByteBuffer data;
+    private final int count;
+    private final int height;
+    private final int width;
+    private final int maskSize;     // height * width
+
+    public MaskTensor(ByteBuffer data, int count, int height, int width) {
+        if (data.capacity() < count * height * width) {
+            throw new IllegalArgumentException("Mask buffer too small: " + data.capacity() + " < " + count + " x " + height + " x " + width);
+        }
+        this.data = data;
+        this.count = count;
+        this.height = height;
+        this.width = width;
+        this.maskSize = height * width;
+    }
+
+    public static MaskTensor wrap(byte[] data, int count, int height, int width) {
+        return new MaskTensor(ByteBuffer.wrap(data), count, height, width);
+    }
+
+    public ByteBuffer getData() {
+        return data;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    // index of pixel (x, y) of mask i in the flat buffer
+    public int offset(int i, int y, int x) {
+        return i * maskSize + y * width + x;
+    }
+
+    public byte get(int i, int y, int x) {
+        return data.get(offset(i, y, x));
+    }
+
+    public void set(int i, int y, int x, byte value) {
+        data.put(offset(i, y, x), value);
+    }
+}
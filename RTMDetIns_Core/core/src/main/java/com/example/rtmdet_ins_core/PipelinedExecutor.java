@@ -0,0 +1,187 @@
+package com.example.rtmdet_ins_core;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs pre-process, inference and post-process of consecutive frames on three threads, so that frame N + 1 is
+ * pre-processed and frame N - 1 is post-processed while frame N is in the runtime. Throughput approaches
+ * 1 / max(stage) instead of 1 / sum(stage).
+ * <p>
+ * Stages are connected by bounded queues: when a stage falls behind, the stages before it block, and so does
+ * {@link #submit}. Frames complete in submission order. Each stage function is only ever called from its own
+ * thread.
+ * <p>
+ * A frame cancelled by the caller is skipped by the next stage, and frames still queued at {@link #close} are
+ * dropped: what the earlier stages acquired for them (pooled buffers, native outputs) is given back through the
+ * {@link Discard} of the stage that produced it.
+ */
+public class PipelinedExecutor<I, P, R, O> {
+    public interface Stage<A, B> {
+        B apply(A input) throws Exception;
+    }
+
+    public interface Discard<A> {
+        void release(A value);
+    }
+
+    private static class Job<O> {
+        final Object value;
+        final CompletableFuture<O> future;
+
+        Job(Object value, CompletableFuture<O> future) {
+            this.value = value;
+            this.future = future;
+        }
+    }
+
+    private static final long SUBMIT_POLL_MS = 10;
+
+    private final ArrayList<BlockingQueue<Job<O>>> queues = new ArrayList<>();
+    private final ArrayList<Discard<Object>> discards = new ArrayList<>();  // of the values in each queue, null if none
+    private final Thread[] threads;
+    private volatile boolean closed = false;
+
+    /**
+     * @param queueCapacity number of frames that can wait in front of each stage
+     */
+    public PipelinedExecutor(Stage<I, P> preprocess, Stage<P, R> inference, Stage<R, O> postprocess, int queueCapacity) {
+        this(preprocess, null, inference, null, postprocess, queueCapacity);
+    }
+
+    /**
+     * @param discardPreprocessed, discardInferred release the output of pre-process / inference of a dropped frame, or null
+     * @param queueCapacity number of frames that can wait in front of each stage
+     */
+    @SuppressWarnings("unchecked")
+    public PipelinedExecutor(Stage<I, P> preprocess, Discard<P> discardPreprocessed, Stage<P, R> inference,
+                             Discard<R> discardInferred, Stage<R, O> postprocess, int queueCapacity) {
+        for (int i = 0; i < 3; i++) {
+            queues.add(new ArrayBlockingQueue<>(queueCapacity));
+        }
+        discards.add(null);     // inputs belong to the caller
+        discards.add((Discard<Object>) discardPreprocessed);
+        discards.add((Discard<Object>) discardInferred);
+        threads = new Thread[]{
+                startStage("pipeline-preprocess", preprocess, 0),
+                startStage("pipeline-inference", inference, 1),
+                startStage("pipeline-postprocess", postprocess, 2),
+        };
+    }
+
+    /**
+     * Queue a frame, blocking while the first stage is full. The future fails with the exception of the stage
+     * that rejected the frame, and is cancelled if the executor is or gets closed.
+     */
+    public Future<O> submit(I input) {
+        CompletableFuture<O> future = new CompletableFuture<>();
+        Job<O> job = new Job<>(input, future);
+        BlockingQueue<Job<O>> queue = queues.get(0);
+        try {
+            // poll the flag while the queue is full so close() never leaves a producer blocked
+            while (!closed) {
+                if (queue.offer(job, SUBMIT_POLL_MS, TimeUnit.MILLISECONDS)) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
+            return future;
+        }
+        // close() may have drained the queue between the check and the offer
+        if (closed) {
+            queue.remove(job);
+            future.cancel(false);
+        }
+        return future;
+    }
+
+    /**
+     * Stop the stage threads and cancel queued frames. Waits for the frames being processed so the runtime can be
+     * released right after.
+     */
+    public void close() {
+        closed = true;
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (int i = 0; i < queues.size(); i++) {
+            for (Job<O> job; (job = queues.get(i).poll()) != null; ) {
+                job.future.cancel(false);
+                discard(i, job.value);
+            }
+        }
+    }
+
+    // give back what the stages before queue i acquired for a dropped frame
+    private void discard(int queue, Object value) {
+        Discard<Object> discard = discards.get(queue);
+        if (discard == null) {
+            return;
+        }
+        try {
+            discard.release(value);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private <A, B> Thread startStage(String name, final Stage<A, B> stage, final int index) {
+        final BlockingQueue<Job<O>> from = queues.get(index);
+        final BlockingQueue<Job<O>> to = index + 1 < queues.size() ? queues.get(index + 1) : null;
+        Thread thread = new Thread(() -> {
+            while (!closed) {
+                Job<O> job;
+                try {
+                    job = from.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (job.future.isDone()) {
+                    discard(index, job.value);  // cancelled by the caller
+                    continue;
+                }
+
+                B output;
+                try {
+                    @SuppressWarnings("unchecked")
+                    A input = (A) job.value;
+                    output = stage.apply(input);
+                } catch (Throwable e) {
+                    job.future.completeExceptionally(e);
+                    continue;
+                }
+
+                if (to == null) {
+                    @SuppressWarnings("unchecked")
+                    O result = (O) output;
+                    job.future.complete(result);
+                    continue;
+                }
+                try {
+                    to.put(new Job<>(output, job.future));
+                } catch (InterruptedException e) {
+                    job.future.cancel(false);
+                    discard(index + 1, output);
+                    return;
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+}
@@ -0,0 +1,162 @@
+package com.example.rtmdet_ins_core;
+
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Latency (and optionally allocation) of every stage of detection, measured with {@link System#nanoTime} and
+ * kept in a {@link LatencyHistogram} per stage, so tail latencies can be queried or dumped periodically.
+ * <p>
+ * A stage is measured between {@link #begin} and {@link #end} on the same thread. Stages may run on different
+ * threads (see {@link PipelinedExecutor}).
+ */
+public class StageMetrics {
+    public enum Stage {
+        PREPROCESS,
+        INFERENCE,
+        EXTRACT,
+        POSTPROCESS,
+        RENDER
+    }
+
+    public interface Listener {
+        void onReport(String report);
+    }
+
+    /**
+     * Summary of one stage, times in nanoseconds.
+     */
+    public static class Snapshot {
+        public final Stage stage;
+        public final long count;
+        public final long p50, p95, p99, max;
+        public final double mean;
+        public final long allocatedBytes;   // total over all measurements, 0 without an allocation counter
+
+        Snapshot(Stage stage, LatencyHistogram histogram, long allocatedBytes) {
+            this.stage = stage;
+            this.count = histogram.getCount();
+            this.p50 = histogram.getValueAtPercentile(50);
+            this.p95 = histogram.getValueAtPercentile(95);
+            this.p99 = histogram.getValueAtPercentile(99);
+            this.max = histogram.getMax();
+            this.mean = histogram.getMean();
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%-11s n=%d p50=%.2fms p95=%.2fms p99=%.2fms max=%.2fms alloc=%dKB/op",
+                    stage, count, p50 / 1e6, p95 / 1e6, p99 / 1e6, max / 1e6,
+                    count == 0 ? 0 : allocatedBytes / count / 1024);
+        }
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[STAGES.length];
+    private final AtomicLong[] allocated = new AtomicLong[STAGES.length];
+    // per thread: [start time, start allocation] of each stage
+    private final ThreadLocal<long[]> starts = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[2 * STAGES.length];
+        }
+    };
+    private volatile LongSupplier allocationCounter;    // bytes allocated so far by the current thread
+    private ScheduledExecutorService dumper;
+
+    public StageMetrics() {
+        for (int i = 0; i < STAGES.length; i++) {
+            histograms[i] = new LatencyHistogram();
+            allocated[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * @param counter bytes allocated so far by the calling thread, e.g. {@code android.os.Debug::getThreadAllocSize},
+     *                null to stop tracking allocations
+     */
+    public void setAllocationCounter(LongSupplier counter) {
+        this.allocationCounter = counter;
+    }
+
+    public void begin(Stage stage) {
+        long[] start = starts.get();
+        LongSupplier counter = allocationCounter;
+        start[2 * stage.ordinal() + 1] = counter == null ? -1 : counter.getAsLong();
+        start[2 * stage.ordinal()] = System.nanoTime();
+    }
+
+    /**
+     * @return nanoseconds since {@link #begin} of {@code stage} on this thread
+     */
+    public long end(Stage stage) {
+        long elapsed = System.nanoTime() - starts.get()[2 * stage.ordinal()];
+        long startBytes = starts.get()[2 * stage.ordinal() + 1];
+        LongSupplier counter = allocationCounter;
+        long bytes = startBytes < 0 || counter == null ? 0 : Math.max(0, counter.getAsLong() - startBytes);
+        record(stage, elapsed, bytes);
+        return elapsed;
+    }
+
+    public void record(Stage stage, long nanos, long allocatedBytes) {
+        histograms[stage.ordinal()].record(nanos);
+        allocated[stage.ordinal()].addAndGet(allocatedBytes);
+    }
+
+    public Snapshot snapshot(Stage stage) {
+        return new Snapshot(stage, histograms[stage.ordinal()], allocated[stage.ordinal()].get());
+    }
+
+    /**
+     * One line per stage that has been measured.
+     */
+    public String report() {
+        StringBuilder builder = new StringBuilder();
+        for (Stage stage : STAGES) {
+            Snapshot snapshot = snapshot(stage);
+            if (snapshot.count > 0) {
+                builder.append(builder.length() == 0 ? "" : "\n").append(snapshot);
+            }
+        }
+        return builder.toString();
+    }
+
+    public void reset() {
+        for (int i = 0; i < STAGES.length; i++) {
+            histograms[i].reset();
+            allocated[i].set(0);
+        }
+    }
+
+    /**
+     * Hand {@link #report} to {@code listener} every {@code period}, from a background thread, replacing any
+     * earlier dump. Nothing is reported while no stage has been measured.
+     */
+    public synchronized void startDump(long period, TimeUnit unit, final Listener listener) {
+        stopDump();
+        dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleAtFixedRate(() -> {
+            String report = report();
+            if (!report.isEmpty()) {
+                listener.onReport(report);
+            }
+        }, period, period, unit);
+    }
+
+    public synchronized void stopDump() {
+        if (dumper != null) {
+            dumper.shutdownNow();
+            dumper = null;
+        }
+    }
+}
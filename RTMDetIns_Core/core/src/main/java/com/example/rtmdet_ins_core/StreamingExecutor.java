@@ -0,0 +1,219 @@
+package com.example.rtmdet_ins_core;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs detection on a stream of frames, always on the latest one: frames arriving while the previous one is being
+ * processed replace each other in a single slot, the replaced ones are dropped (and recycled) instead of queued,
+ * so latency stays at one frame whatever the capture rate.
+ * <p>
+ * Frames are processed one at a time on a dedicated worker thread, results are delivered through a callback
+ * executor, e.g. the UI thread.
+ */
+public class StreamingExecutor<F, O> {
+    private static final int FPS_WINDOW = 30;       // frames over which the effective FPS is measured
+
+    public static class Stats {
+        public final long received;     // frames pushed by the source
+        public final long processed;    // frames that went through the task, failed ones included
+        public final long dropped;      // frames replaced by a newer one before being processed
+        public final float fps;         // processed frames per second, over the last FPS_WINDOW frames
+
+        Stats(long received, long processed, long dropped, float fps) {
+            this.received = received;
+            this.processed = processed;
+            this.dropped = dropped;
+            this.fps = fps;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%.1f FPS, %d processed, %d dropped of %d frames", fps, processed, dropped, received);
+        }
+    }
+
+    private final FrameSource<F> source;
+    private final InferenceExecutor.Task<F, O> task;
+    private final InferenceExecutor.Callback<O> callback;
+    private final Executor callbackExecutor;
+
+    private final Object lock = new Object();
+    private F latest;                           // frame waiting for the worker, guarded by lock
+    private volatile boolean running = false;
+    private boolean shutdown = false;
+    private Thread worker;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final long[] completions = new long[FPS_WINDOW];    // ring of completion times, guarded by itself
+
+    public StreamingExecutor(FrameSource<F> source, InferenceExecutor.Task<F, O> task,
+                             InferenceExecutor.Callback<O> callback, Executor callbackExecutor) {
+        this.source = source;
+        this.task = task;
+        this.callback = callback;
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Start the worker and the source. Waits for the worker of an earlier run to finish its last frame. Does nothing
+     * once {@link #shutdown}.
+     */
+    public synchronized void start() {
+        if (running || shutdown) {
+            return;
+        }
+        if (worker != null) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        received.set(0);
+        processed.set(0);
+        dropped.set(0);
+        synchronized (completions) {
+            Arrays.fill(completions, 0);
+        }
+
+        running = true;
+        worker = new Thread(this::loop, "streaming");
+        worker.setDaemon(true);
+        worker.start();
+        source.start(this::offer);
+    }
+
+    /**
+     * Stop the source, drop the waiting frame and stop delivering results. Does not wait for the frame being
+     * processed, which is recycled when done.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        source.stop();
+        F pending;
+        synchronized (lock) {
+            running = false;
+            pending = latest;
+            latest = null;
+            lock.notifyAll();
+        }
+        if (pending != null) {
+            source.recycle(pending);
+        }
+    }
+
+    /**
+     * Stop for good. {@code cleanup} (may be null) runs on a new thread once the frame being processed, if any, has
+     * finished, so it can safely release the detector without blocking the caller.
+     */
+    public synchronized void shutdown(final Runnable cleanup) {
+        stop();
+        shutdown = true;
+        if (cleanup == null) {
+            return;
+        }
+        final Thread last = worker;
+        Thread thread = new Thread(() -> {
+            if (last != null) {
+                try {
+                    last.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            cleanup.run();
+        }, "streaming-shutdown");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public Stats getStats() {
+        float fps = 0;
+        synchronized (completions) {
+            long count = processed.get();
+            if (count >= 2) {
+                int n = (int) Math.min(count, FPS_WINDOW);
+                long last = completions[(int) ((count - 1) % FPS_WINDOW)];
+                long first = completions[(int) ((count - n) % FPS_WINDOW)];
+                if (last > first) {
+                    fps = (n - 1) * (float) TimeUnit.SECONDS.toNanos(1) / (last - first);
+                }
+            }
+        }
+        return new Stats(received.get(), processed.get(), dropped.get(), fps);
+    }
+
+    private void offer(F frame) {
+        F replaced;
+        synchronized (lock) {
+            if (!running) {
+                replaced = frame;
+            } else {
+                replaced = latest;
+                latest = frame;
+                received.incrementAndGet();
+                lock.notifyAll();
+            }
+        }
+        if (replaced != null) {
+            if (replaced != frame) {
+                dropped.incrementAndGet();
+            }
+            source.recycle(replaced);
+        }
+    }
+
+    private void loop() {
+        while (true) {
+            F frame;
+            synchronized (lock) {
+                while (latest == null && running) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!running) {
+                    return;
+                }
+                frame = latest;
+                latest = null;
+            }
+
+            try {
+                final O result = task.run(frame);
+                deliver(() -> callback.onResult(result));
+            } catch (final Exception e) {
+                deliver(() -> callback.onError(e));
+            } finally {
+                source.recycle(frame);
+                synchronized (completions) {
+                    completions[(int) (processed.getAndIncrement() % FPS_WINDOW)] = System.nanoTime();
+                }
+            }
+        }
+    }
+
+    private void deliver(final Runnable delivery) {
+        callbackExecutor.execute(() -> {
+            if (running) {
+                delivery.run();
+            }
+        });
+    }
+}
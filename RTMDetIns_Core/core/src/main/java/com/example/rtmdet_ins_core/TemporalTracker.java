@@ -0,0 +1,196 @@
+package com.example.rtmdet_ins_core;
+
+import java.util.Arrays;
+
+/**
+ * Decides when a video frame needs the full detector, and keeps instance identities across detections.
+ * <p>
+ * Between detections the previous result (boxes and masks) is carried forward. The detector runs again every
+ * {@code keyframeInterval} frames, or as soon as the frame differs enough from the last detected one: the mean
+ * absolute luma difference over a coarse grid of samples, in [0, 1], is compared with {@code diffThreshold}.
+ * <p>
+ * Instances of consecutive detections are matched by box IoU (same label, greedy, highest IoU first) and keep
+ * their track id.
+ */
+public class TemporalTracker {
+    private static final int GRID = 32;     // frame difference is sampled on GRID x GRID pixels
+
+    private final int keyframeInterval;
+    private final float diffThreshold;
+    private final float iouThreshold;
+
+    private final int[] reference = new int[GRID * GRID];   // luma samples of the last detected frame
+    private final int[] samples = new int[GRID * GRID];
+    private int referenceWidth = -1, referenceHeight = -1;
+    private int framesSinceDetection = 0;
+    private float lastDiff = 0;
+
+    // detections of the last detected frame, copied since results are reused
+    private float[] trackBoxes = new float[0];      // (4 * trackCount,)
+    private int[] trackClassIds = new int[0];
+    private int[] trackIds = new int[0];
+    private int trackCount = 0;
+    private int nextTrackId = 0;
+
+    // matching scratch, grown as needed: candidate pairs (detection, track) and their sort keys, IoU first
+    private int[] pairDetections = new int[0];
+    private int[] pairTracks = new int[0];
+    private long[] pairKeys = new long[0];
+    private boolean[] trackTaken = new boolean[0];
+
+    private long detectedFrames = 0;
+    private long skippedFrames = 0;
+
+    /**
+     * @param keyframeInterval run the detector at least every this many frames (1 = every frame)
+     * @param diffThreshold    mean absolute luma difference (0 - 1) above which the detector runs
+     * @param iouThreshold     minimum box IoU to continue a track
+     */
+    public TemporalTracker(int keyframeInterval, float diffThreshold, float iouThreshold) {
+        this.keyframeInterval = keyframeInterval;
+        this.diffThreshold = diffThreshold;
+        this.iouThreshold = iouThreshold;
+    }
+
+    /**
+     * Whether {@code frame} needs the detector. If so, {@link #update} must follow with its detections, otherwise
+     * the previous detections still hold.
+     */
+    public boolean needsDetection(ArgbFrame frame) {
+        sample(frame, samples);
+        boolean detect = frame.width != referenceWidth || frame.height != referenceHeight
+                || framesSinceDetection + 1 >= keyframeInterval;
+        if (!detect) {
+            long sum = 0;
+            for (int i = 0; i < samples.length; i++) {
+                sum += Math.abs(samples[i] - reference[i]);
+            }
+            lastDiff = sum / (255.0F * samples.length);
+            detect = lastDiff > diffThreshold;
+        }
+
+        if (detect) {
+            System.arraycopy(samples, 0, reference, 0, samples.length);
+            referenceWidth = frame.width;
+            referenceHeight = frame.height;
+            framesSinceDetection = 0;
+            detectedFrames++;
+        } else {
+            framesSinceDetection++;
+            skippedFrames++;
+        }
+        return detect;
+    }
+
+    /**
+     * Match the detections of the frame accepted by {@link #needsDetection} to the current tracks and set their
+     * {@link Detections#trackIds}. Instances of different classes are never matched.
+     */
+    public void update(Detections detections) {
+        int n = detections.count;
+        int[] ids = detections.trackIds;
+        Arrays.fill(ids, 0, n, -1);
+
+        // all candidate pairs, sorted on a key made of the IoU bits (non-negative floats order like their bits) and
+        // the inverted pair index: read from the end, best IoU first and ties in (detection, track) order
+        if (pairKeys.length < n * trackCount) {
+            pairDetections = new int[n * trackCount];
+            pairTracks = new int[n * trackCount];
+            pairKeys = new long[n * trackCount];
+        }
+        int numPairs = 0;
+        for (int i = 0; i < n; i++) {
+            for (int t = 0; t < trackCount; t++) {
+                if (trackClassIds[t] != detections.classIds[i]) {
+                    continue;
+                }
+                float iou = calcBoxIoU(detections.boxes, i, trackBoxes, t);
+                if (iou >= iouThreshold) {
+                    pairDetections[numPairs] = i;
+                    pairTracks[numPairs] = t;
+                    pairKeys[numPairs] = (long) Float.floatToIntBits(iou) << 32 | (~numPairs & 0xFFFFFFFFL);
+                    numPairs++;
+                }
+            }
+        }
+        Arrays.sort(pairKeys, 0, numPairs);
+        if (trackTaken.length < trackCount) {
+            trackTaken = new boolean[trackCount];
+        }
+        Arrays.fill(trackTaken, 0, trackCount, false);
+        for (int k = numPairs - 1; k >= 0; k--) {
+            int pair = ~(int) pairKeys[k];
+            int i = pairDetections[pair], t = pairTracks[pair];
+            if (ids[i] < 0 && !trackTaken[t]) {
+                ids[i] = trackIds[t];
+                trackTaken[t] = true;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            if (ids[i] < 0) {
+                ids[i] = nextTrackId++;
+            }
+        }
+
+        if (trackIds.length < n) {
+            trackBoxes = new float[4 * n];
+            trackClassIds = new int[n];
+            trackIds = new int[n];
+        }
+        System.arraycopy(detections.boxes, 0, trackBoxes, 0, 4 * n);
+        System.arraycopy(detections.classIds, 0, trackClassIds, 0, n);
+        System.arraycopy(ids, 0, trackIds, 0, n);
+        trackCount = n;
+    }
+
+    // IoU of box i of boxes1 and box j of boxes2, same convention as InstanceSegPostprocessor.calcBoxIoU
+    private static float calcBoxIoU(float[] boxes1, int i, float[] boxes2, int j) {
+        float x1 = Math.max(boxes1[4 * i], boxes2[4 * j]);
+        float y1 = Math.max(boxes1[4 * i + 1], boxes2[4 * j + 1]);
+        float x2 = Math.min(boxes1[4 * i + 2], boxes2[4 * j + 2]);
+        float y2 = Math.min(boxes1[4 * i + 3], boxes2[4 * j + 3]);
+        float inter = Math.max(0, x2 - x1 + 1) * Math.max(0, y2 - y1 + 1);
+        if (inter == 0) {
+            return 0;
+        }
+        float area1 = (boxes1[4 * i + 2] - boxes1[4 * i] + 1) * (boxes1[4 * i + 3] - boxes1[4 * i + 1] + 1);
+        float area2 = (boxes2[4 * j + 2] - boxes2[4 * j] + 1) * (boxes2[4 * j + 3] - boxes2[4 * j + 1] + 1);
+        return inter / (area1 + area2 - inter);
+    }
+
+    /**
+     * Forget the tracks and the reference frame, e.g. when the stream restarts.
+     */
+    public void reset() {
+        referenceWidth = -1;
+        referenceHeight = -1;
+        framesSinceDetection = 0;
+        trackCount = 0;
+    }
+
+    /**
+     * Frame difference computed by the last {@link #needsDetection} that did not hit the keyframe interval.
+     */
+    public float getLastDiff() {
+        return lastDiff;
+    }
+
+    public long getDetectedFrames() {
+        return detectedFrames;
+    }
+
+    public long getSkippedFrames() {
+        return skippedFrames;
+    }
+
+    private static void sample(ArgbFrame frame, int[] out) {
+        for (int gy = 0; gy < GRID; gy++) {
+            int y = (int) ((gy + 0.5F) * frame.height / GRID);
+            for (int gx = 0; gx < GRID; gx++) {
+                int x = (int) ((gx + 0.5F) * frame.width / GRID);
+                int pixel = frame.pixels[y * frame.width + x];
+                out[gy * GRID + gx] = ((pixel >> 16 & 255) * 77 + (pixel >> 8 & 255) * 150 + (pixel & 255) * 29) >> 8;
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.rtmdet_ins_core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Conversion of YUV 4:2:0 camera images (Android YUV_420_888: planar, semi-planar NV12 / NV21, with padded rows) to
+ * upright ARGB. Full range BT.601, as produced by cameras.
+ * <p>
+ * The planes are described by their buffer, row stride and pixel stride, as given by {@code Image.Plane}, so that the
+ * apps only unpack the camera image.
+ */
+public class YuvConverter {
+    private YuvConverter() {
+    }
+
+    /**
+     * Convert the {@code width * height} image into {@code out}, rotated clockwise by {@code rotation} degrees
+     * (0, 90, 180, 270) to be upright. The U and V planes share their strides.
+     */
+    public static void toArgb(ByteBuffer yPlane, int yRowStride, int yPixelStride,
+                              ByteBuffer uPlane, ByteBuffer vPlane, int uvRowStride, int uvPixelStride,
+                              int width, int height, int rotation, ArgbFrame out) {
+        boolean transpose = rotation == 90 || rotation == 270;
+        out.width = transpose ? height : width;
+        out.height = transpose ? width : height;
+        int[] pixels = out.pixels;
+
+        for (int y = 0; y < height; y++) {
+            int yRow = y * yRowStride;
+            int uvRow = (y >> 1) * uvRowStride;
+            for (int x = 0; x < width; x++) {
+                int luma = yPlane.get(yRow + x * yPixelStride) & 255;
+                int uvIdx = uvRow + (x >> 1) * uvPixelStride;
+                int u = (uPlane.get(uvIdx) & 255) - 128;
+                int v = (vPlane.get(uvIdx) & 255) - 128;
+                // 16-bit fixed point: 1.402, 0.344136, 0.714136, 1.772
+                int r = clamp(luma + ((91881 * v) >> 16));
+                int g = clamp(luma - ((22554 * u + 46802 * v) >> 16));
+                int b = clamp(luma + ((116130 * u) >> 16));
+
+                int dst;
+                switch (rotation) {
+                    case 90:
+                        dst = x * out.width + (height - 1 - y);
+                        break;
+                    case 180:
+                        dst = (height - 1 - y) * out.width + (width - 1 - x);
+                        break;
+                    case 270:
+                        dst = (width - 1 - x) * out.width + y;
+                        break;
+                    default:
+                        dst = y * out.width + x;
+                }
+                pixels[dst] = 0xFF000000 | r << 16 | g << 8 | b;
+            }
+        }
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : Math.min(value, 255);
+    }
+}
@@ -0,0 +1,128 @@
+package com.example.rtmdet_ins_core;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BitMaskTest {
+    private static final int SIZE = 150;    // several words per row
+
+    private static MaskTensor randomMasks(int count, long seed) {
+        Random random = new Random(seed);
+        MaskTensor masks = MaskTensor.wrap(new byte[count * SIZE * SIZE], count, SIZE, SIZE);
+        for (int i = 0; i < count; i++) {
+            for (int y = 0; y < SIZE; y++) {
+                for (int x = 0; x < SIZE; x++) {
+                    masks.set(i, y, x, (byte) (random.nextInt(3) == 0 ? 0 : 1));
+                }
+            }
+        }
+        return masks;
+    }
+
+    private static boolean inMask(MaskTensor masks, int i, int[] box, int x, int y) {
+        return x >= box[0] && x <= box[2] && y >= box[1] && y <= box[3] && masks.get(i, y, x) != 0;
+    }
+
+    @Test
+    public void intersectionMatchesPixelCount() {
+        MaskTensor masks = randomMasks(2, 42);
+        int[] box1 = {3, 5, 130, 140};
+        int[] box2 = {70, 0, 149, 100};
+
+        BitMask mask1 = BitMask.encode(masks, 0, box1[0], box1[1], box1[2], box1[3]);
+        BitMask mask2 = BitMask.encode(masks, 1, box2[0], box2[1], box2[2], box2[3]);
+
+        int area1 = 0, area2 = 0, inter = 0;
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                boolean in1 = inMask(masks, 0, box1, x, y);
+                boolean in2 = inMask(masks, 1, box2, x, y);
+                area1 += in1 ? 1 : 0;
+                area2 += in2 ? 1 : 0;
+                inter += in1 && in2 ? 1 : 0;
+                assertEquals(in1, mask1.get(x, y));
+            }
+        }
+        assertEquals(area1, mask1.getArea());
+        assertEquals(area2, mask2.getArea());
+        assertEquals(inter, mask1.intersection(mask2));
+        assertEquals(inter, mask2.intersection(mask1));
+    }
+
+    @Test
+    public void disjointBoxesDoNotIntersect() {
+        MaskTensor masks = MaskTensor.wrap(new byte[SIZE * SIZE], 1, SIZE, SIZE);
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                masks.set(0, y, x, (byte) 1);
+            }
+        }
+
+        BitMask mask1 = BitMask.encode(masks, 0, 0, 0, 9, 9);
+        BitMask mask2 = BitMask.encode(masks, 0, 20, 0, 29, 9);
+
+        assertEquals(100, mask1.getArea());
+        assertEquals(0, mask1.intersection(mask2));
+    }
+
+    @Test
+    public void orMergesIntoLargerBox() {
+        MaskTensor masks = randomMasks(2, 7);
+        int[] box1 = {10, 10, 60, 60};
+        int[] box2 = {50, 40, 140, 90};
+        BitMask mask1 = BitMask.encode(masks, 0, box1[0], box1[1], box1[2], box1[3]);
+        BitMask mask2 = BitMask.encode(masks, 1, box2[0], box2[1], box2[2], box2[3]);
+
+        BitMask merged = new BitMask(10, 10, 140, 90);
+        merged.or(mask1);
+        merged.or(mask2);
+
+        int area = 0;
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                boolean expected = inMask(masks, 0, box1, x, y) || inMask(masks, 1, box2, x, y);
+                assertEquals(expected, merged.get(x, y));
+                area += expected ? 1 : 0;
+            }
+        }
+        assertEquals(area, merged.getArea());
+    }
+
+    @Test
+    public void cropUnpacksRectangle() {
+        MaskTensor masks = randomMasks(1, 3);
+        BitMask mask = BitMask.encode(masks, 0, 60, 20, 100, 40);
+
+        byte[] out = new byte[41 * 21];
+        mask.crop(60, 20, 41, 21, out);
+
+        for (int j = 0; j < 21; j++) {
+            for (int k = 0; k < 41; k++) {
+                assertEquals(masks.get(0, 20 + j, 60 + k), out[j * 41 + k]);
+            }
+        }
+    }
+
+    @Test
+    public void encodeIntoReusedMaskKeepsWords() {
+        MaskTensor masks = randomMasks(2, 11);
+        BitMask reused = BitMask.encode(masks, 0, 0, 0, 149, 149);
+        int capacity = reused.getCapacity();
+
+        // smaller box: same words, old bits cleared
+        int[] box = {20, 30, 90, 70};
+        assertSame(reused, BitMask.encode(masks, 1, box[0], box[1], box[2], box[3], reused));
+        assertEquals(capacity, reused.getCapacity());
+        BitMask fresh = BitMask.encode(masks, 1, box[0], box[1], box[2], box[3]);
+        assertEquals(fresh.getArea(), reused.getArea());
+        assertEquals(fresh.getArea(), reused.intersection(fresh));
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                assertEquals(inMask(masks, 1, box, x, y), reused.get(x, y));
+            }
+        }
+    }
+}
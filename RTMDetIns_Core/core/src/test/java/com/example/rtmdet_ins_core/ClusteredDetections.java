@@ -0,0 +1,73 @@
+package com.example.rtmdet_ins_core;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Raw outputs of a synthetic frame for the post-processing tests: clustered boxes so that many pairs overlap and
+ * get merged, each with a rectangular mask slightly inside its box.
+ */
+class ClusteredDetections {
+    final int size;
+    final int[][] boxes;        // (n, 4) - [x1, y1, x2, y2]
+    final float[] scores;
+    final long[] labels;
+    final MaskTensor masks;
+
+    ClusteredDetections(int n, int size, long seed) {
+        this.size = size;
+        Random random = new Random(seed);
+        boxes = new int[n][];
+        scores = new float[n];
+        labels = new long[n];
+        masks = MaskTensor.wrap(new byte[n * size * size], n, size, size);
+        for (int i = 0; i < n; i++) {
+            int x1 = random.nextInt(40) + (i % 3) * 40;
+            int y1 = random.nextInt(40) + (i % 2) * 50;
+            boxes[i] = new int[]{x1, y1, x1 + 20 + random.nextInt(40), y1 + 20 + random.nextInt(40)};
+            scores[i] = 0.3F + random.nextFloat() * 0.7F;
+            labels[i] = random.nextInt(3);
+            fillMask(masks, i, boxes[i][0] + random.nextInt(4), boxes[i][1] + random.nextInt(4),
+                    boxes[i][2] - random.nextInt(4), boxes[i][3] - random.nextInt(4));
+        }
+    }
+
+    static void fillMask(MaskTensor masks, int i, int x1, int y1, int x2, int y2) {
+        for (int y = y1; y <= y2; y++) {
+            for (int x = x1; x <= x2; x++) {
+                masks.set(i, y, x, (byte) 1);
+            }
+        }
+    }
+
+    // process() clips and merges the boxes in place
+    int[][] copyBoxes() {
+        int[][] copy = new int[boxes.length][];
+        for (int i = 0; i < boxes.length; i++) {
+            copy[i] = boxes[i].clone();
+        }
+        return copy;
+    }
+
+    // fill the raw outputs of the arena like the extract stage of the apps
+    void fill(FrameArena arena) {
+        arena.ensureCapacity(boxes.length);
+        for (int i = 0; i < boxes.length; i++) {
+            System.arraycopy(boxes[i], 0, arena.boxes[i], 0, 4);
+            arena.scores[i] = scores[i];
+            arena.labels[i] = labels[i];
+        }
+    }
+
+    static void assertSameInstances(ArrayList<InstanceSegPostprocessor.Instance> expected,
+                                    ArrayList<InstanceSegPostprocessor.Instance> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i).box, actual.get(i).box);
+            assertArrayEquals(expected.get(i).mask, actual.get(i).mask);
+            assertEquals(expected.get(i).score, actual.get(i).score, 0F);
+        }
+    }
+}
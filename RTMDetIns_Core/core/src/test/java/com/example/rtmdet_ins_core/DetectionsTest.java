@@ -0,0 +1,61 @@
+package com.example.rtmdet_ins_core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class DetectionsTest {
+    private static final ClassTable CLASSES = new ClassTable(new String[]{"person", "bicycle", "car"});
+
+    @Test
+    public void addStoresStructOfArrays() {
+        Detections detections = new Detections(CLASSES, 4);
+        InstanceMask mask = new InstanceMask(30, 20);
+        assertEquals(0, detections.add(new int[]{10, 20, 40, 40}, 0.8F, 2, mask));
+        assertEquals(1, detections.add(new int[]{0, 5, 7, 9}, 0.6F, 0, null));
+
+        assertEquals(2, detections.count);
+        assertArrayEquals(new float[]{10, 20, 40, 40, 0, 5, 7, 9}, Arrays.copyOf(detections.boxes, 8), 0.0F);
+        assertEquals(0.8F, detections.scores[0], 0.0F);
+        assertEquals("car", detections.getLabel(0));
+        assertEquals("person", detections.getLabel(1));
+        assertSame(mask, detections.masks[0]);
+        assertEquals(-1, detections.trackIds[1]);
+    }
+
+    @Test
+    public void resetKeepsArraysAndGrowsOnlyWhenFull() {
+        Detections detections = new Detections(CLASSES, 2);
+        float[] boxes = detections.boxes;
+        detections.add(new int[]{1, 1, 2, 2}, 0.5F, 1, new InstanceMask(1, 1));
+        detections.add(new int[]{3, 3, 4, 4}, 0.5F, 1, null);
+        detections.trackIds[0] = 7;
+
+        detections.reset();
+        assertEquals(0, detections.count);
+        assertNull(detections.masks[0]);
+        assertEquals(-1, detections.trackIds[0]);
+
+        detections.add(new int[]{5, 5, 6, 6}, 0.9F, 2, null);
+        detections.add(new int[]{5, 5, 6, 6}, 0.9F, 2, null);
+        assertSame(boxes, detections.boxes);
+
+        detections.add(new int[]{8, 8, 9, 9}, 0.7F, 0, null);
+        assertEquals(3, detections.count);
+        assertTrue(detections.getCapacity() >= 3);
+        assertEquals(8, detections.boxes[8], 0.0F);
+        assertEquals(-1, detections.trackIds[detections.getCapacity() - 1]);
+    }
+
+    @Test
+    public void classTableReadsOneNamePerLine() {
+        ClassTable classes = ClassTable.read(new ByteArrayInputStream("person\nbicycle\ncar\n".getBytes()));
+        assertEquals(3, classes.size());
+        assertEquals("bicycle", classes.getName(1));
+        assertNull(classes.getName(3));
+        assertNull(classes.getName(-1));
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.rtmdet_ins_core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DetectorPoolTest {
+    private static class FakeDetector {
+        final int index;
+        final AtomicInteger users = new AtomicInteger();
+        boolean closed = false;
+
+        FakeDetector(int index) {
+            this.index = index;
+        }
+
+        int detect(int input) throws InterruptedException {
+            assertEquals("used by two threads", 1, users.incrementAndGet());
+            Thread.sleep(10);
+            users.decrementAndGet();
+            return input * 2;
+        }
+    }
+
+    @Test
+    public void detectorsAreUsedByOneThreadAtATime() throws Exception {
+        List<Integer> closed = new ArrayList<>();
+        DetectorPool<FakeDetector> pool = new DetectorPool<>(3, FakeDetector::new, detector -> {
+            detector.closed = true;
+            closed.add(detector.index);
+        });
+        assertEquals(3, pool.size());
+        AtomicInteger concurrent = new AtomicInteger();
+        AtomicInteger maxConcurrent = new AtomicInteger();
+
+        ExecutorService workers = Executors.newFixedThreadPool(8);
+        List<Future<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            final int input = i;
+            results.add(workers.submit(() -> pool.run(detector -> {
+                maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+                int result = detector.detect(input);
+                concurrent.decrementAndGet();
+                return result;
+            })));
+        }
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(2 * i, (int) results.get(i).get(5, TimeUnit.SECONDS));
+        }
+        workers.shutdown();
+
+        assertEquals(3, maxConcurrent.get());
+        pool.close();
+        assertEquals(3, closed.size());
+    }
+
+    @Test
+    public void failedTaskReturnsDetector() throws Exception {
+        DetectorPool<FakeDetector> pool = new DetectorPool<>(1, FakeDetector::new, detector -> detector.closed = true);
+        try {
+            pool.run(detector -> {
+                throw new IllegalStateException("runtime error");
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(10, (int) pool.run(detector -> detector.detect(5)));
+    }
+
+    @Test
+    public void closeWaitsForDetectorsInUse() throws Exception {
+        DetectorPool<FakeDetector> pool = new DetectorPool<>(2, FakeDetector::new, detector -> detector.closed = true);
+        FakeDetector taken = pool.acquire();
+        Thread closer = new Thread(() -> {
+            try {
+                pool.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        closer.start();
+        Thread.sleep(50);
+        assertFalse(taken.closed);
+        assertTrue(closer.isAlive());
+
+        pool.release(taken);
+        closer.join(5000);
+        assertTrue(taken.closed);
+    }
+
+    @Test
+    public void failedCreationClosesEarlierDetectors() {
+        List<FakeDetector> created = new ArrayList<>();
+        try {
+            new DetectorPool<>(3, index -> {
+                if (index == 2) {
+                    throw new IllegalArgumentException("out of memory");
+                }
+                FakeDetector detector = new FakeDetector(index);
+                created.add(detector);
+                return detector;
+            }, detector -> detector.closed = true);
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+        assertEquals(2, created.size());
+        for (FakeDetector detector : created) {
+            assertTrue(detector.closed);
+        }
+    }
+}
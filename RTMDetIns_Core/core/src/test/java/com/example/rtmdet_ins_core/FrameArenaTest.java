@@ -0,0 +1,96 @@
+package com.example.rtmdet_ins_core;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class FrameArenaTest {
+    private static final int SIZE = 160;
+    private static final int COUNT = 60;
+
+    @Test
+    public void reusedArenaMatchesFreshArrays() {
+        InstanceSegPostprocessor postprocessor = new InstanceSegPostprocessor(SIZE, 0.4F, 0.4F);
+        FrameArena arena = new FrameArena(COUNT);
+        for (long seed = 0; seed < 5; seed++) {
+            ClusteredDetections frame = new ClusteredDetections(COUNT, SIZE, seed);
+            ArrayList<InstanceSegPostprocessor.Instance> expected = postprocessor.process(frame.copyBoxes(), frame.scores,
+                    frame.labels, frame.masks, SIZE, SIZE, 0, 0);
+
+            frame.fill(arena);
+            ArrayList<InstanceSegPostprocessor.Instance> actual = postprocessor.process(arena, COUNT, frame.masks, SIZE, SIZE, 0, 0);
+
+            assertTrue(expected.size() < COUNT);
+            ClusteredDetections.assertSameInstances(expected, actual);
+        }
+    }
+
+    @Test
+    public void warmArenaAllocatesNothing() {
+        InstanceSegPostprocessor postprocessor = new InstanceSegPostprocessor(SIZE, 0.4F, 0.4F);
+        FrameArena arena = new FrameArena(COUNT);
+        ClusteredDetections frame = new ClusteredDetections(COUNT, SIZE, 7);
+        frame.fill(arena);
+        postprocessor.process(arena, COUNT, frame.masks, SIZE, SIZE, 0, 0);
+        long warm = arena.getAllocatedBytes();
+        assertTrue(warm > 0);
+
+        for (int k = 0; k < 10; k++) {
+            frame.fill(arena);
+            postprocessor.process(arena, COUNT, frame.masks, SIZE, SIZE, 0, 0);
+        }
+        assertEquals(warm, arena.getAllocatedBytes());
+
+        // more detections than the arena was sized for
+        arena.ensureCapacity(2 * COUNT);
+        assertEquals(2 * COUNT, arena.getCapacity());
+        assertTrue(arena.getAllocatedBytes() > warm);
+    }
+
+    @Test
+    public void arenaCutsAllocationPerFrame() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        long thread = Thread.currentThread().getId();
+
+        InstanceSegPostprocessor postprocessor = new InstanceSegPostprocessor(SIZE, 0.4F, 0.4F);
+        FrameArena arena = new FrameArena(COUNT);
+        ClusteredDetections frame = new ClusteredDetections(COUNT, SIZE, 3);
+        int frames = 20;
+        for (int k = 0; k < frames; k++) {
+            frame.fill(arena);
+            postprocessor.process(arena, COUNT, frame.masks, SIZE, SIZE, 0, 0);
+        }
+
+        // what the caller keeps: instances with their box and cropped mask (16-byte array headers, rounded up),
+        // plus a few small objects per call (list growth, lambdas of runParallel)
+        ArrayList<InstanceSegPostprocessor.Instance> instances = postprocessor.process(arena, COUNT, frame.masks, SIZE, SIZE, 0, 0);
+        long outputBytes = 64;
+        for (InstanceSegPostprocessor.Instance instance : instances) {
+            outputBytes += 48 + 32 + 16 + instance.mask.length + 8;
+        }
+
+        long start = threads.getThreadAllocatedBytes(thread);
+        for (int k = 0; k < frames; k++) {
+            postprocessor.process(frame.copyBoxes(), frame.scores, frame.labels, frame.masks, SIZE, SIZE, 0, 0);
+        }
+        long withoutArena = (threads.getThreadAllocatedBytes(thread) - start) / frames;
+
+        start = threads.getThreadAllocatedBytes(thread);
+        for (int k = 0; k < frames; k++) {
+            frame.fill(arena);
+            postprocessor.process(arena, COUNT, frame.masks, SIZE, SIZE, 0, 0);
+        }
+        long withArena = (threads.getThreadAllocatedBytes(thread) - start) / frames;
+
+        String message = "with arena: " + withArena + " B, without: " + withoutArena + " B, output: " + outputBytes + " B";
+        assertTrue(message, withArena <= outputBytes + 1024);
+        assertTrue(message, withArena < withoutArena);
+    }
+}
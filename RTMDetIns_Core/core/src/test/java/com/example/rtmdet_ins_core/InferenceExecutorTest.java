@@ -0,0 +1,97 @@
+package com.example.rtmdet_ins_core;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class InferenceExecutorTest {
+    private static class Recorder implements InferenceExecutor.Callback<Integer> {
+        final List<Integer> results = new CopyOnWriteArrayList<>();
+        final List<Throwable> errors = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void onResult(Integer result) {
+            results.add(result);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            errors.add(error);
+        }
+    }
+
+    @Test
+    public void deliversResultThroughCallbackExecutor() throws Exception {
+        List<String> threads = new CopyOnWriteArrayList<>();
+        InferenceExecutor<Integer, Integer> executor = new InferenceExecutor<>(x -> {
+            threads.add(Thread.currentThread().getName());
+            return x * 2;
+        }, Runnable::run);
+        Recorder recorder = new Recorder();
+
+        executor.submit(21, recorder).get(5, TimeUnit.SECONDS);
+
+        assertEquals(1, recorder.results.size());
+        assertEquals(42, (int) recorder.results.get(0));
+        assertEquals("inference", threads.get(0));
+        executor.shutdown(null);
+    }
+
+    @Test
+    public void newRequestSupersedesRunningOne() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        InferenceExecutor<Integer, Integer> executor = new InferenceExecutor<>(x -> {
+            if (x == 1) {
+                started.countDown();
+                release.await();
+            }
+            return x;
+        }, Runnable::run);
+        Recorder recorder = new Recorder();
+
+        executor.submit(1, recorder);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        executor.submit(2, recorder);           // queued behind the running request
+        executor.submit(3, recorder);           // cancels request 2 before it starts
+        Future<?> last = executor.submit(4, recorder);
+        release.countDown();
+        last.get(5, TimeUnit.SECONDS);
+
+        assertEquals(1, recorder.results.size());
+        assertEquals(4, (int) recorder.results.get(0));
+        executor.shutdown(null);
+    }
+
+    @Test
+    public void cancelDropsResultAndErrorsAreReported() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        InferenceExecutor<Integer, Integer> executor = new InferenceExecutor<>(x -> {
+            if (x < 0) {
+                throw new IllegalStateException("bad input");
+            }
+            release.await();
+            return x;
+        }, Runnable::run);
+        Recorder recorder = new Recorder();
+
+        executor.submit(1, recorder);
+        executor.cancel();
+        release.countDown();
+        executor.submit(-1, recorder).get(5, TimeUnit.SECONDS);
+
+        assertTrue(recorder.results.isEmpty());
+        assertEquals(1, recorder.errors.size());
+        assertTrue(recorder.errors.get(0) instanceof IllegalStateException);
+
+        CountDownLatch cleaned = new CountDownLatch(1);
+        executor.shutdown(cleaned::countDown);
+        assertTrue(cleaned.await(5, TimeUnit.SECONDS));
+    }
+}
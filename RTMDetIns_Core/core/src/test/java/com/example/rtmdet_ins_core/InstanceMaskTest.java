@@ -0,0 +1,112 @@
+package com.example.rtmdet_ins_core;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class InstanceMaskTest {
+    private static byte[] randomMask(int width, int height, long seed) {
+        Random random = new Random(seed);
+        byte[] mask = new byte[width * height];
+        for (int i = 0; i < mask.length; i++) {
+            mask[i] = (byte) (random.nextBoolean() ? 1 : 0);
+        }
+        return mask;
+    }
+
+    @Test
+    public void sameSizeKeepsPixels() {
+        int width = 70, height = 9;     // rows span word boundaries
+        byte[] src = randomMask(width, height, 1);
+        InstanceMask mask = InstanceMask.scale(src, width, height, width, height);
+
+        assertEquals(width, mask.getWidth());
+        assertEquals(height, mask.getHeight());
+        assertFalse(mask.isUpscaled());
+        assertEquals((width * height + 63) / 64 * 8, mask.getByteCount());
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                assertEquals(src[y * width + x] != 0, mask.get(x, y));
+            }
+        }
+        assertFalse(mask.get(-1, 0));
+        assertFalse(mask.get(width, 0));
+        // source and upscaled pixels
+        assertTrue(mask.isUpscaled());
+        assertEquals(2 * ((width * height + 63) / 64) * 8, mask.getByteCount());
+    }
+
+    @Test
+    public void upscaleRepeatsNearestPixel() {
+        byte[] src = {1, 0, 0, 1};     // 2 x 2 diagonal
+        InstanceMask mask = InstanceMask.scale(src, 2, 2, 6, 4);
+
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 6; x++) {
+                assertEquals((x < 3) == (y < 2), mask.get(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void emptyBoxHasNoPixels() {
+        InstanceMask mask = InstanceMask.scale(new byte[]{1}, 1, 1, 0, 5);
+        assertEquals(0, mask.getWidth());
+        assertEquals(8, mask.getByteCount());     // the 1 x 1 source only
+        assertFalse(mask.get(0, 0));
+    }
+
+    @Test
+    public void copyToUnpacksRectangleWithStride() {
+        int width = 40, height = 30;
+        byte[] src = randomMask(width, height, 2);
+        InstanceMask mask = InstanceMask.scale(src, width, height, width, height);
+
+        int stride = 16;
+        byte[] out = new byte[3 + 10 * stride];
+        mask.copyTo(5, 7, 12, 10, out, 3, stride, (byte) 255);
+
+        for (int j = 0; j < 10; j++) {
+            for (int k = 0; k < 12; k++) {
+                byte expected = src[(7 + j) * width + 5 + k] != 0 ? (byte) 255 : 0;
+                assertEquals(expected, out[3 + j * stride + k]);
+            }
+        }
+    }
+
+    @Test
+    public void upscaleIntoBufferDoesNotCache() {
+        int srcWidth = 23, srcHeight = 17, width = 61, height = 44;
+        InstanceMask mask = InstanceMask.scale(randomMask(srcWidth, srcHeight, 3), srcWidth, srcHeight, width, height);
+
+        byte[] direct = new byte[width * height];
+        mask.upscale(direct, 0, width, (byte) 1);
+        assertFalse(mask.isUpscaled());
+
+        byte[] cached = new byte[width * height];
+        mask.copyTo(0, 0, width, height, cached, 0, width, (byte) 1);
+        assertTrue(mask.isUpscaled());
+        assertArrayEquals(cached, direct);
+    }
+
+    @Test
+    public void letterboxTransformMapsModelPixels() {
+        // 128 x 64 image letterboxed into 64 x 64: scale 0.5, padY 16
+        int inferSize = 64;
+        byte[] src = randomMask(32, 24, 4);
+        InstanceSegPostprocessor.Instance instance = new InstanceSegPostprocessor.Instance(
+                new int[]{0, 0, 64, 48}, src, 0, 16, 32, 24, 0.9F, 0);
+
+        InstanceMask mask = InstanceMask.of(instance, inferSize, 128, 64, 0, 16);
+
+        assertEquals(64, mask.getWidth());
+        assertEquals(48, mask.getHeight());
+        for (int y = 0; y < 48; y++) {
+            for (int x = 0; x < 64; x++) {
+                assertEquals(src[(y / 2) * 32 + x / 2] != 0, mask.get(x, y));
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.rtmdet_ins_core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class InstanceSegPostprocessorTest {
+    private static final int INFER_SIZE = 64;
+
+    @Test
+    public void lowScoreBoxesAreFiltered() {
+        InstanceSegPostprocessor postprocessor = new InstanceSegPostprocessor(INFER_SIZE, 0.5F, 0.2F);
+        int[][] boxes = {{2, 2, 30, 30}, {34, 34, 60, 60}, {2, 34, 30, 60}};
+        float[] scores = {0.9F, 0.3F, 0.3F};
+        long[] labels = {1, 1, 0};     // the last one is a person: lower threshold
+        MaskTensor masks = MaskTensor.wrap(new byte[3 * INFER_SIZE * INFER_SIZE], 3, INFER_SIZE, INFER_SIZE);
+        ClusteredDetections.fillMask(masks, 0, 2, 2, 30, 30);
+        ClusteredDetections.fillMask(masks, 1, 34, 34, 60, 60);
+        ClusteredDetections.fillMask(masks, 2, 2, 34, 30, 60);
+
+        ArrayList<InstanceSegPostprocessor.Instance> instances = postprocessor.process(boxes, scores, labels, masks, INFER_SIZE, INFER_SIZE, 0, 0);
+
+        assertEquals(2, instances.size());
+        assertEquals(1, instances.get(0).label);
+        assertEquals(0, instances.get(1).label);
+        assertEquals(0.3F, instances.get(1).score, 0F);
+    }
+
+    @Test
+    public void overlappingInstancesOfSameClassAreMerged() {
+        InstanceSegPostprocessor postprocessor = new InstanceSegPostprocessor(INFER_SIZE, 0.5F, 0.5F);
+        int[][] boxes = {{10, 10, 40, 40}, {12, 12, 40, 40}};
+        float[] scores = {0.6F, 0.9F};
+        long[] labels = {3, 3};
+        MaskTensor masks = MaskTensor.wrap(new byte[2 * INFER_SIZE * INFER_SIZE], 2, INFER_SIZE, INFER_SIZE);
+        ClusteredDetections.fillMask(masks, 0, 10, 10, 40, 40);
+        ClusteredDetections.fillMask(masks, 1, 12, 12, 40, 40);
+
+        ArrayList<InstanceSegPostprocessor.Instance> instances = postprocessor.process(boxes, scores, labels, masks, INFER_SIZE, INFER_SIZE, 0, 0);
+
+        assertEquals(1, instances.size());
+        InstanceSegPostprocessor.Instance instance = instances.get(0);
+        assertEquals(0.9F, instance.score, 0F);
+        // merged box covers both instances
+        assertArrayEquals(new int[]{10, 10, 40, 40}, instance.box);
+        assertEquals(30, instance.maskWidth);
+        assertEquals(30, instance.maskHeight);
+        // mask of the suppressed instance is merged into the kept one
+        assertEquals(1, instance.mask[0]);
+    }
+
+    @Test
+    public void boxesAreMappedBackToOriginalImage() {
+        InstanceSegPostprocessor postprocessor = new InstanceSegPostprocessor(INFER_SIZE, 0.5F, 0.5F);
+        // 128 x 64 image letterboxed into 64 x 64: scale 0.5, padY 16
+        int[][] boxes = {{0, 16, 32, 40}};
+        float[] scores = {0.9F};
+        long[] labels = {2};
+        MaskTensor masks = MaskTensor.wrap(new byte[1 * INFER_SIZE * INFER_SIZE], 1, INFER_SIZE, INFER_SIZE);
+        ClusteredDetections.fillMask(masks, 0, 0, 16, 32, 40);
+
+        ArrayList<InstanceSegPostprocessor.Instance> instances = postprocessor.process(boxes, scores, labels, masks, 128, 64, 0, 16);
+
+        assertEquals(1, instances.size());
+        assertArrayEquals(new int[]{0, 0, 64, 48}, instances.get(0).box);
+        assertEquals(0, instances.get(0).maskX);
+        assertEquals(16, instances.get(0).maskY);
+    }
+
+    @Test
+    public void classAwareNmsKeepsBestBox() {
+        InstanceSegPostprocessor postprocessor = new InstanceSegPostprocessor(INFER_SIZE, 0.5F, 0.5F, 0.6F);
+        int[][] boxes = {{10, 10, 40, 40}, {11, 11, 41, 41}};
+        float[] scores = {0.7F, 0.8F};
+        long[] labels = {5, 5};
+        MaskTensor masks = MaskTensor.wrap(new byte[2 * INFER_SIZE * INFER_SIZE], 2, INFER_SIZE, INFER_SIZE);
+
+        ArrayList<InstanceSegPostprocessor.Instance> instances = postprocessor.process(boxes, scores, labels, masks, INFER_SIZE, INFER_SIZE, 0, 0);
+
+        assertEquals(1, instances.size());
+        assertEquals(0.8F, instances.get(0).score, 0F);
+    }
+
+    @Test
+    public void parallelMatchesSequential() {
+        int size = 160;
+        int n = 60;
+        ClusteredDetections detections = new ClusteredDetections(n, size, 1);
+
+        InstanceSegPostprocessor sequential = new InstanceSegPostprocessor(size, 0.4F, 0.4F);
+        InstanceSegPostprocessor parallel = new InstanceSegPostprocessor(size, 0.4F, 0.4F);
+        parallel.setNumThreads(4);
+        try {
+            ArrayList<InstanceSegPostprocessor.Instance> expected = sequential.process(detections.copyBoxes(), detections.scores,
+                    detections.labels, detections.masks, size, size, 0, 0);
+            ArrayList<InstanceSegPostprocessor.Instance> actual = parallel.process(detections.copyBoxes(), detections.scores,
+                    detections.labels, detections.masks, size, size, 0, 0);
+
+            assertTrue(expected.size() < n);
+            ClusteredDetections.assertSameInstances(expected, actual);
+        } finally {
+            parallel.close();
+        }
+    }
+
+    @Test
+    public void boxIoU() {
+        assertEquals(1F, InstanceSegPostprocessor.calcBoxIoU(new int[]{0, 0, 9, 9}, new int[]{0, 0, 9, 9}), 1e-6F);
+        assertEquals(0F, InstanceSegPostprocessor.calcBoxIoU(new int[]{0, 0, 9, 9}, new int[]{20, 20, 29, 29}), 0F);
+        assertEquals(50F / 150F, InstanceSegPostprocessor.calcBoxIoU(new int[]{0, 0, 9, 9}, new int[]{5, 0, 14, 9}), 1e-6F);
+    }
+}
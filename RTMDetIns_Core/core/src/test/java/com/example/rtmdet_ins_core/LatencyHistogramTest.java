@@ -0,0 +1,58 @@
+package com.example.rtmdet_ins_core;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+    @Test
+    public void bucketsCoverLongRange() {
+        assertEquals(0, LatencyHistogram.bucketOf(0));
+        assertEquals(31, LatencyHistogram.bucketOf(31));
+        assertEquals(32, LatencyHistogram.bucketOf(32));
+        assertEquals(32, LatencyHistogram.bucketOf(33));
+        assertEquals(33, LatencyHistogram.bucketOf(34));
+        for (long value = 1; value > 0 && value < Long.MAX_VALUE / 3; value = value * 3 + 1) {
+            long midpoint = LatencyHistogram.midpointOf(LatencyHistogram.bucketOf(value));
+            assertTrue(value + " -> " + midpoint, Math.abs(midpoint - value) <= value / 32 + 1);
+        }
+        LatencyHistogram.midpointOf(LatencyHistogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentilesWithinPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000, histogram.getMax());
+        assertEquals(500500.0, histogram.getMean(), 1e-6);
+        assertEquals(500000, histogram.getValueAtPercentile(50), 500000 / 32);
+        assertEquals(950000, histogram.getValueAtPercentile(95), 950000 / 32);
+        assertEquals(990000, histogram.getValueAtPercentile(99), 990000 / 32);
+        assertEquals(1000000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void tailIsNotHiddenByMedian() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Random random = new Random(0);
+        for (int i = 0; i < 980; i++) {
+            histogram.record(20_000_000L + random.nextInt(1_000_000));
+        }
+        for (int i = 0; i < 20; i++) {
+            histogram.record(150_000_000L);
+        }
+
+        assertTrue(histogram.getValueAtPercentile(50) < 22_000_000L);
+        assertTrue(histogram.getValueAtPercentile(99) > 140_000_000L);
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+    }
+}
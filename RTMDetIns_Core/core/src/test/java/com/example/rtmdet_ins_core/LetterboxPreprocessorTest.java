@@ -0,0 +1,160 @@
+package com.example.rtmdet_ins_core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LetterboxPreprocessorTest {
+    private static final int PAD_VAL = 114;
+    private static final float[] MEAN = {103.53F, 116.28F, 123.675F};
+    private static final float[] STD = {57.375F, 57.12F, 58.395F};
+    private static final float TOLERANCE = 1e-4F;
+
+    private static int[] randomImage(int width, int height, long seed) {
+        Random random = new Random(seed);
+        int[] argb = new int[width * height];
+        for (int i = 0; i < argb.length; i++) {
+            argb[i] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+        return argb;
+    }
+
+    private static int channel(int pixel, int c) {
+        return pixel >> (16 - 8 * c) & 255;
+    }
+
+    @Test
+    public void letterboxMatchesResizeAndPad() {
+        LetterboxPreprocessor preprocessor = new LetterboxPreprocessor(640, PAD_VAL, MEAN, STD);
+
+        LetterboxPreprocessor.Letterbox wide = preprocessor.letterbox(1280, 720);
+        assertEquals(640, wide.width);
+        assertEquals(360, wide.height);
+        assertEquals(0, wide.padX);
+        assertEquals(140, wide.padY);
+
+        LetterboxPreprocessor.Letterbox tall = preprocessor.letterbox(900, 1200);
+        assertEquals(480, tall.width);
+        assertEquals(640, tall.height);
+        assertEquals(80, tall.padX);
+        assertEquals(0, tall.padY);
+
+        LetterboxPreprocessor.Letterbox small = preprocessor.letterbox(301, 200);
+        assertEquals(301, small.width);
+        assertEquals(200, small.height);
+        assertEquals(169, small.padX);
+        assertEquals(220, small.padY);
+    }
+
+    @Test
+    public void smallImageIsPaddedAndNormalized() {
+        int size = 32, width = 13, height = 20;
+        LetterboxPreprocessor preprocessor = new LetterboxPreprocessor(size, PAD_VAL, MEAN, STD);
+        int[] argb = randomImage(width, height, 1);
+        FloatBuffer out = FloatBuffer.allocate(3 * size * size);
+
+        LetterboxPreprocessor.Letterbox box = preprocessor.process(argb, width, height, out);
+
+        // reference: pad into a (size, size) image, then normalize
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int sx = x - box.padX, sy = y - box.padY;
+                boolean inside = sx >= 0 && sx < width && sy >= 0 && sy < height;
+                for (int c = 0; c < 3; c++) {
+                    int value = inside ? channel(argb[sy * width + sx], c) : PAD_VAL;
+                    float expected = (value - MEAN[c]) / STD[c];
+                    assertEquals(expected, out.get(c * size * size + y * size + x), TOLERANCE);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void halfDownscaleAveragesBlocks() {
+        int size = 16, width = 32, height = 24;
+        LetterboxPreprocessor preprocessor = new LetterboxPreprocessor(size, PAD_VAL, MEAN, STD);
+        int[] argb = randomImage(width, height, 2);
+        FloatBuffer out = FloatBuffer.allocate(3 * size * size);
+
+        LetterboxPreprocessor.Letterbox box = preprocessor.process(argb, width, height, out);
+        assertEquals(16, box.width);
+        assertEquals(12, box.height);
+        assertEquals(2, box.padY);
+
+        for (int y = 0; y < box.height; y++) {
+            for (int x = 0; x < box.width; x++) {
+                for (int c = 0; c < 3; c++) {
+                    int sum = 0;
+                    for (int dy = 0; dy < 2; dy++) {
+                        for (int dx = 0; dx < 2; dx++) {
+                            sum += channel(argb[(2 * y + dy) * width + 2 * x + dx], c);
+                        }
+                    }
+                    // block average rounded to 8 bits, half up
+                    float expected = ((sum + 2) / 4 - MEAN[c]) / STD[c];
+                    assertEquals(expected, out.get(c * size * size + (y + box.padY) * size + x), TOLERANCE);
+                }
+            }
+        }
+        // pad rows above and below
+        assertEquals((PAD_VAL - MEAN[1]) / STD[1], out.get(size * size), TOLERANCE);
+        assertEquals((PAD_VAL - MEAN[2]) / STD[2], out.get(3 * size * size - 1), TOLERANCE);
+    }
+
+    @Test
+    public void nhwcIsInterleavedNchw() {
+        int size = 24, width = 40, height = 17;
+        int[] argb = randomImage(width, height, 3);
+        FloatBuffer planar = FloatBuffer.allocate(3 * size * size);
+        new LetterboxPreprocessor(size, PAD_VAL, MEAN, STD, LetterboxPreprocessor.Layout.NCHW)
+                .process(argb, width, height, planar);
+
+        ByteBuffer interleaved = ByteBuffer.allocateDirect(3 * size * size * 4).order(ByteOrder.nativeOrder());
+        new LetterboxPreprocessor(size, PAD_VAL, MEAN, STD, LetterboxPreprocessor.Layout.NHWC)
+                .process(argb, width, height, interleaved);
+
+        for (int i = 0; i < size * size; i++) {
+            for (int c = 0; c < 3; c++) {
+                assertEquals(planar.get(c * size * size + i), interleaved.getFloat((i * 3 + c) * 4), 0.0F);
+            }
+        }
+    }
+
+    @Test
+    public void quantizedInputUsesScaleAndZeroPoint() {
+        int size = 20, width = 30, height = 12;
+        int[] argb = randomImage(width, height, 4);
+        FloatBuffer reference = FloatBuffer.allocate(3 * size * size);
+        new LetterboxPreprocessor(size, PAD_VAL, MEAN, STD, LetterboxPreprocessor.Layout.NHWC)
+                .process(argb, width, height, reference);
+
+        float scale = 0.0187F;
+        LetterboxPreprocessor uint8 = new LetterboxPreprocessor(size, PAD_VAL, MEAN, STD,
+                LetterboxPreprocessor.Layout.NHWC, LetterboxPreprocessor.InputType.UINT8, scale, 114);
+        LetterboxPreprocessor int8 = new LetterboxPreprocessor(size, PAD_VAL, MEAN, STD,
+                LetterboxPreprocessor.Layout.NHWC, LetterboxPreprocessor.InputType.INT8, scale, -14);
+        assertEquals(3 * size * size, uint8.getInputBytes());
+        ByteBuffer unsignedOut = ByteBuffer.allocateDirect(uint8.getInputBytes());
+        ByteBuffer signedOut = ByteBuffer.allocateDirect(int8.getInputBytes());
+        uint8.process(argb, width, height, unsignedOut);
+        int8.process(argb, width, height, signedOut);
+
+        for (int i = 0; i < 3 * size * size; i++) {
+            int q = Math.round(reference.get(i) / scale);
+            assertEquals(Math.max(0, Math.min(255, q + 114)), unsignedOut.get(i) & 255);
+            assertEquals(Math.max(-128, Math.min(127, q - 14)), signedOut.get(i));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void quantizedInputRejectsFloatBuffer() {
+        new LetterboxPreprocessor(8, PAD_VAL, MEAN, STD, LetterboxPreprocessor.Layout.NCHW,
+                LetterboxPreprocessor.InputType.UINT8, 0.02F, 128)
+                .process(new int[4], 2, 2, FloatBuffer.allocate(3 * 8 * 8));
+    }
+}
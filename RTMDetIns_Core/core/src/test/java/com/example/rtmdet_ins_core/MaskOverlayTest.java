@@ -0,0 +1,55 @@
+package com.example.rtmdet_ins_core;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MaskOverlayTest {
+    private static final int[] RED = {255, 0, 0};
+
+    @Test
+    public void blendMatchesSourceOver() {
+        int[] color = {30, 200, 90};
+        float opacity = 0.5F;
+        MaskOverlay overlay = new MaskOverlay(color, opacity);
+        float alpha = (int) (opacity * 255) / 255.0F;
+
+        Random random = new Random(1);
+        for (int k = 0; k < 1000; k++) {
+            int pixel = 0xFF000000 | random.nextInt(0x1000000);
+            int blended = overlay.blend(pixel);
+            assertEquals(0xFF, blended >>> 24);
+            for (int c = 0, shift = 16; c < 3; c++, shift -= 8) {
+                float expected = color[c] * alpha + (pixel >> shift & 255) * (1 - alpha);
+                assertEquals(expected, blended >> shift & 255, 0.5F + 1e-3F);
+            }
+        }
+    }
+
+    @Test
+    public void onlyMaskedPixelsAreBlended() {
+        MaskOverlay overlay = new MaskOverlay(RED, 1.0F);
+        InstanceMask mask = new InstanceMask(4, 3);
+        mask.set(1, 1);
+        mask.set(3, 1);
+        mask.set(2, 2);
+        // 2 x 2 pixels over mask pixels [2, 4) x [1, 3)
+        int[] pixels = {0xFF102030, 0xFF405060, 0xFF708090, 0xFFA0B0C0};
+
+        overlay.blend(pixels, 2, 2, mask, 2, 1);
+
+        assertEquals(0xFF102030, pixels[0]);
+        assertEquals(0xFFFF0000, pixels[1]);
+        assertEquals(0xFFFF0000, pixels[2]);
+        assertEquals(0xFFA0B0C0, pixels[3]);    // outside the mask
+    }
+
+    @Test
+    public void zeroOpacityKeepsPixels() {
+        MaskOverlay overlay = new MaskOverlay(RED, 0.0F);
+        int pixel = 0xFF123456;
+        assertEquals(pixel, overlay.blend(pixel));
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.rtmdet_ins_core;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class MaskRendererTest {
+    private static final int[] RED = {255, 0, 0};
+    private static final int BLACK = 0xFF000000, FULL_RED = 0xFFFF0000;
+    private static final ClassTable CLASSES = new ClassTable(new String[]{"person"});
+
+    @Test
+    public void masksArePlacedAtTheirBox() {
+        // 6 x 4 image, a 2 x 2 mask with its diagonal set at box (3, 1)
+        InstanceMask mask = new InstanceMask(2, 2);
+        mask.set(0, 0);
+        mask.set(1, 1);
+        Detections detections = new Detections(CLASSES, 1);
+        detections.add(new int[]{3, 1, 5, 3}, 0.9F, 0, mask);
+        int[] pixels = new int[6 * 4];
+        Arrays.fill(pixels, BLACK);
+
+        new MaskRenderer(RED, 1.0F).draw(detections, pixels, 6, 4);
+
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 6; x++) {
+                boolean inMask = (x == 3 && y == 1) || (x == 4 && y == 2);
+                assertEquals("pixel " + x + ", " + y, inMask ? FULL_RED : BLACK, pixels[y * 6 + x]);
+            }
+        }
+    }
+
+    @Test
+    public void masksAreClippedToTheImage() {
+        InstanceMask mask = new InstanceMask(4, 4);
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 4; x++) {
+                mask.set(x, y);
+            }
+        }
+        int[] pixels = new int[3 * 3];
+        MaskRenderer renderer = new MaskRenderer(RED, 1.0F);
+
+        // over the top-left corner: mask pixels [2, 4) x [2, 4) land on image pixels [0, 2) x [0, 2)
+        Arrays.fill(pixels, BLACK);
+        renderer.draw(mask, -2, -2, pixels, 3, 3);
+        assertArrayEquals(new int[]{
+                FULL_RED, FULL_RED, BLACK,
+                FULL_RED, FULL_RED, BLACK,
+                BLACK, BLACK, BLACK}, pixels);
+
+        // over the bottom-right corner
+        Arrays.fill(pixels, BLACK);
+        renderer.draw(mask, 2, 2, pixels, 3, 3);
+        assertArrayEquals(new int[]{
+                BLACK, BLACK, BLACK,
+                BLACK, BLACK, BLACK,
+                BLACK, BLACK, FULL_RED}, pixels);
+
+        // outside
+        Arrays.fill(pixels, BLACK);
+        renderer.draw(mask, 5, -6, pixels, 3, 3);
+        for (int pixel : pixels) {
+            assertEquals(BLACK, pixel);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.example.rtmdet_ins_core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class MaskTensorTest {
+    @Test
+    public void indexingIsRowMajor() {
+        byte[] data = new byte[2 * 3 * 4];
+        MaskTensor masks = MaskTensor.wrap(data, 2, 3, 4);
+
+        masks.set(1, 2, 3, (byte) 1);
+
+        assertEquals(data.length - 1, masks.offset(1, 2, 3));
+        assertEquals(1, data[data.length - 1]);
+        assertEquals(1, masks.get(1, 2, 3));
+    }
+
+    @Test
+    public void directBuffersAreSupported() {
+        ByteBuffer data = ByteBuffer.allocateDirect(2 * 3 * 4);
+        MaskTensor masks = new MaskTensor(data, 2, 3, 4);
+
+        masks.set(0, 1, 2, (byte) 1);
+
+        assertEquals(1, data.get(6));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooSmallBufferIsRejected() {
+        MaskTensor.wrap(new byte[10], 2, 3, 4);
+    }
+}
@@ -0,0 +1,167 @@
+package com.example.rtmdet_ins_core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PipelinedExecutorTest {
+    private static final long STAGE_MS = 20;
+
+    private static <T> T sleepThen(T value) throws InterruptedException {
+        Thread.sleep(STAGE_MS);
+        return value;
+    }
+
+    @Test
+    public void framesCompleteInOrder() throws Exception {
+        PipelinedExecutor<Integer, Integer, Integer, String> pipeline = new PipelinedExecutor<>(
+                x -> x + 1, x -> x * 10, x -> "r" + x, 1);
+
+        List<Future<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            futures.add(pipeline.submit(i));
+        }
+        for (int i = 0; i < 20; i++) {
+            assertEquals("r" + (i + 1) * 10, futures.get(i).get(5, TimeUnit.SECONDS));
+        }
+        pipeline.close();
+    }
+
+    @Test
+    public void stagesOverlap() throws Exception {
+        PipelinedExecutor<Integer, Integer, Integer, Integer> pipeline = new PipelinedExecutor<>(
+                PipelinedExecutorTest::sleepThen, PipelinedExecutorTest::sleepThen, PipelinedExecutorTest::sleepThen, 1);
+        int frames = 20;
+
+        long start = System.nanoTime();
+        List<Future<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < frames; i++) {
+            futures.add(pipeline.submit(i));
+        }
+        for (Future<Integer> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        pipeline.close();
+
+        // sequential: frames * 3 * STAGE_MS, pipelined: about (frames + 2) * STAGE_MS
+        assertTrue("took " + elapsedMs + "ms", elapsedMs < frames * 2 * STAGE_MS);
+    }
+
+    @Test
+    public void failedFrameDoesNotStopPipeline() throws Exception {
+        PipelinedExecutor<Integer, Integer, Integer, Integer> pipeline = new PipelinedExecutor<>(
+                x -> x, x -> {
+                    if (x == 1) {
+                        throw new IllegalStateException("runtime error");
+                    }
+                    return x;
+                }, x -> x, 2);
+
+        Future<Integer> ok = pipeline.submit(0);
+        Future<Integer> failed = pipeline.submit(1);
+        Future<Integer> next = pipeline.submit(2);
+
+        assertEquals(0, (int) ok.get(5, TimeUnit.SECONDS));
+        try {
+            failed.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(2, (int) next.get(5, TimeUnit.SECONDS));
+
+        pipeline.close();
+        assertTrue(pipeline.submit(3).isCancelled());
+    }
+
+    private static BlockingQueue<Object> pool(int size) {
+        BlockingQueue<Object> pool = new ArrayBlockingQueue<>(size);
+        for (int i = 0; i < size; i++) {
+            pool.add(new Object());
+        }
+        return pool;
+    }
+
+    @Test
+    public void droppedFramesReleaseTheirResources() throws Exception {
+        // like the detectors: pre-process takes an input buffer, inference gives it back and takes output buffers,
+        // post-process gives them back
+        final BlockingQueue<Object> inputPool = pool(3);
+        final BlockingQueue<Object> outputPool = pool(2);
+        PipelinedExecutor<Integer, Object, Object, Integer> pipeline = new PipelinedExecutor<>(
+                x -> inputPool.take(), inputPool::add,
+                input -> {
+                    inputPool.add(input);
+                    return outputPool.take();
+                }, outputPool::add,
+                output -> {
+                    try {
+                        return sleepThen(0);
+                    } finally {
+                        outputPool.add(output);     // a running stage releases its own input, even when interrupted
+                    }
+                }, 1);
+
+        // cancel frames in flight, more than there are buffers
+        for (int round = 0; round < 3; round++) {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                futures.add(pipeline.submit(i));
+            }
+            for (Future<Integer> future : futures) {
+                future.cancel(false);
+            }
+        }
+        assertEquals(0, (int) pipeline.submit(0).get(5, TimeUnit.SECONDS));
+
+        // frames still queued at close
+        for (int i = 0; i < 4; i++) {
+            pipeline.submit(i);
+        }
+        pipeline.close();
+        assertEquals(3, inputPool.size());
+        assertEquals(2, outputPool.size());
+    }
+
+    @Test
+    public void submitRacingCloseNeverLeavesAFuturePending() throws Exception {
+        for (int round = 0; round < 5; round++) {
+            final PipelinedExecutor<Integer, Integer, Integer, Integer> pipeline = new PipelinedExecutor<>(
+                    PipelinedExecutorTest::sleepThen, x -> x, x -> x, 1);
+            final List<Future<Integer>> futures = Collections.synchronizedList(new ArrayList<>());
+            Thread[] producers = new Thread[4];
+            for (int p = 0; p < producers.length; p++) {
+                // keeps submitting into the full queue until the executor cancels what it gets
+                producers[p] = new Thread(() -> {
+                    for (int i = 0; ; i++) {
+                        Future<Integer> future = pipeline.submit(i);
+                        futures.add(future);
+                        if (future.isCancelled()) {
+                            return;
+                        }
+                    }
+                });
+                producers[p].start();
+            }
+            Thread.sleep(STAGE_MS * 3);
+            pipeline.close();
+            for (Thread producer : producers) {
+                producer.join(5000);
+                assertFalse("producer blocked after close", producer.isAlive());
+            }
+            for (Future<Integer> future : futures) {
+                assertTrue(future.isDone());
+            }
+        }
+    }
+}
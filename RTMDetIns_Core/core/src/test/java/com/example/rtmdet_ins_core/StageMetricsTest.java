@@ -0,0 +1,84 @@
+package com.example.rtmdet_ins_core;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class StageMetricsTest {
+    @Test
+    public void beginEndRecordsElapsedTime() throws Exception {
+        StageMetrics metrics = new StageMetrics();
+        for (int i = 0; i < 3; i++) {
+            metrics.begin(StageMetrics.Stage.INFERENCE);
+            Thread.sleep(10);
+            assertTrue(metrics.end(StageMetrics.Stage.INFERENCE) >= TimeUnit.MILLISECONDS.toNanos(10));
+        }
+
+        StageMetrics.Snapshot inference = metrics.snapshot(StageMetrics.Stage.INFERENCE);
+        assertEquals(3, inference.count);
+        assertTrue(inference.p50 >= TimeUnit.MILLISECONDS.toNanos(9));
+        assertTrue(inference.p50 <= inference.p99);
+        assertTrue(inference.p99 <= inference.max);
+        assertEquals(0, metrics.snapshot(StageMetrics.Stage.PREPROCESS).count);
+        assertTrue(metrics.report().startsWith("INFERENCE"));
+        assertFalse(metrics.report().contains("PREPROCESS"));
+    }
+
+    @Test
+    public void stagesOnDifferentThreadsDoNotMix() throws Exception {
+        StageMetrics metrics = new StageMetrics();
+        metrics.begin(StageMetrics.Stage.RENDER);
+        Thread other = new Thread(() -> {
+            metrics.begin(StageMetrics.Stage.RENDER);
+            metrics.end(StageMetrics.Stage.RENDER);
+        });
+        other.start();
+        other.join();
+        Thread.sleep(20);
+        metrics.end(StageMetrics.Stage.RENDER);
+
+        StageMetrics.Snapshot render = metrics.snapshot(StageMetrics.Stage.RENDER);
+        assertEquals(2, render.count);
+        assertTrue(render.max >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertTrue(render.p50 < TimeUnit.MILLISECONDS.toNanos(20));
+    }
+
+    @Test
+    public void countsAllocatedBytes() {
+        StageMetrics metrics = new StageMetrics();
+        AtomicLong allocated = new AtomicLong();
+        metrics.setAllocationCounter(allocated::get);
+
+        for (int i = 0; i < 4; i++) {
+            metrics.begin(StageMetrics.Stage.POSTPROCESS);
+            allocated.addAndGet(1024);
+            metrics.end(StageMetrics.Stage.POSTPROCESS);
+        }
+        assertEquals(4096, metrics.snapshot(StageMetrics.Stage.POSTPROCESS).allocatedBytes);
+
+        metrics.reset();
+        assertEquals(0, metrics.snapshot(StageMetrics.Stage.POSTPROCESS).count);
+        assertEquals(0, metrics.snapshot(StageMetrics.Stage.POSTPROCESS).allocatedBytes);
+    }
+
+    @Test
+    public void dumpsPeriodically() throws Exception {
+        StageMetrics metrics = new StageMetrics();
+        metrics.record(StageMetrics.Stage.EXTRACT, 1_000_000, 0);
+        CountDownLatch reports = new CountDownLatch(2);
+        AtomicReference<String> last = new AtomicReference<>();
+        metrics.startDump(10, TimeUnit.MILLISECONDS, report -> {
+            last.set(report);
+            reports.countDown();
+        });
+
+        assertTrue(reports.await(5, TimeUnit.SECONDS));
+        metrics.stopDump();
+        assertTrue(last.get().startsWith("EXTRACT"));
+    }
+}
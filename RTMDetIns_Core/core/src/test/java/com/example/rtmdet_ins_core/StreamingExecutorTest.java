@@ -0,0 +1,181 @@
+package com.example.rtmdet_ins_core;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class StreamingExecutorTest {
+    /**
+     * Pushes numbered frames from a fixed set of buffers at a fixed rate, skipping a tick when none is free.
+     */
+    private static class SyntheticSource implements FrameSource<ArgbFrame> {
+        final BlockingQueue<ArgbFrame> pool;
+        final int buffers;
+        final long periodMs;
+        volatile Thread thread;
+        volatile int skipped = 0;
+
+        SyntheticSource(int buffers, long periodMs) {
+            this.buffers = buffers;
+            this.periodMs = periodMs;
+            this.pool = new ArrayBlockingQueue<>(buffers);
+            for (int i = 0; i < buffers; i++) {
+                pool.add(new ArgbFrame(4 * 4));
+            }
+        }
+
+        @Override
+        public void start(Sink<ArgbFrame> sink) {
+            thread = new Thread(() -> {
+                for (long id = 0; !Thread.currentThread().isInterrupted(); id++) {
+                    ArgbFrame frame = pool.poll();
+                    if (frame == null) {
+                        skipped++;
+                    } else {
+                        frame.width = 4;
+                        frame.height = 4;
+                        frame.timestampNanos = id;
+                        sink.onFrame(frame);
+                    }
+                    try {
+                        Thread.sleep(periodMs);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+            thread.start();
+        }
+
+        @Override
+        public void stop() {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void recycle(ArgbFrame frame) {
+            pool.add(frame);
+        }
+    }
+
+    private static class Recorder implements InferenceExecutor.Callback<Long> {
+        final List<Long> results = new CopyOnWriteArrayList<>();
+        final List<Throwable> errors = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void onResult(Long result) {
+            results.add(result);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            errors.add(error);
+        }
+    }
+
+    @Test
+    public void slowTaskProcessesLatestFrameAndDropsOthers() throws Exception {
+        SyntheticSource source = new SyntheticSource(3, 2);
+        Recorder recorder = new Recorder();
+        StreamingExecutor<ArgbFrame, Long> executor = new StreamingExecutor<>(source, frame -> {
+            Thread.sleep(20);
+            return frame.timestampNanos;
+        }, recorder, Runnable::run);
+
+        executor.start();
+        Thread.sleep(500);
+        StreamingExecutor.Stats stats = executor.getStats();
+        executor.stop();
+
+        assertTrue(recorder.errors.isEmpty());
+        assertTrue(stats.toString(), stats.dropped > stats.processed);
+        assertTrue(stats.toString(), stats.processed >= 10);
+        assertTrue(stats.toString(), stats.received >= stats.processed + stats.dropped);
+        assertTrue(stats.toString(), stats.fps > 20 && stats.fps < 55);
+        for (int i = 1; i < recorder.results.size(); i++) {
+            assertTrue(recorder.results.get(i) > recorder.results.get(i - 1));
+        }
+        // 3 buffers are enough: one being filled, one waiting, one processed
+        assertEquals(0, source.skipped);
+
+        // every buffer comes back once the frame in flight is done
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (source.pool.size() < source.buffers && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(source.buffers, source.pool.size());
+    }
+
+    @Test
+    public void failedFrameDoesNotStopStream() throws Exception {
+        SyntheticSource source = new SyntheticSource(3, 5);
+        Recorder recorder = new Recorder();
+        StreamingExecutor<ArgbFrame, Long> executor = new StreamingExecutor<>(source, frame -> {
+            if (frame.timestampNanos % 2 == 0) {
+                throw new IllegalStateException("runtime error");
+            }
+            return frame.timestampNanos;
+        }, recorder, Runnable::run);
+
+        executor.start();
+        Thread.sleep(200);
+        executor.stop();
+
+        assertFalse(recorder.results.isEmpty());
+        assertFalse(recorder.errors.isEmpty());
+        assertFalse(executor.isRunning());
+
+        // can be started again
+        executor.start();
+        Thread.sleep(100);
+        executor.stop();
+        assertTrue(executor.getStats().processed > 0);
+    }
+
+    @Test
+    public void shutdownCleansUpAfterTheRunningFrame() throws Exception {
+        SyntheticSource source = new SyntheticSource(3, 5);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean running = new AtomicBoolean();
+        StreamingExecutor<ArgbFrame, Long> executor = new StreamingExecutor<>(source, frame -> {
+            running.set(true);
+            started.countDown();
+            release.await();
+            running.set(false);
+            return frame.timestampNanos;
+        }, new Recorder(), Runnable::run);
+
+        executor.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        final CountDownLatch cleaned = new CountDownLatch(1);
+        final AtomicBoolean ranDuringFrame = new AtomicBoolean();
+        executor.shutdown(() -> {
+            ranDuringFrame.set(running.get());
+            cleaned.countDown();
+        });
+        assertFalse(executor.isRunning());
+        assertFalse(cleaned.await(50, TimeUnit.MILLISECONDS));
+
+        release.countDown();
+        assertTrue(cleaned.await(5, TimeUnit.SECONDS));
+        assertFalse(ranDuringFrame.get());
+
+        // shut down for good
+        executor.start();
+        assertFalse(executor.isRunning());
+    }
+}
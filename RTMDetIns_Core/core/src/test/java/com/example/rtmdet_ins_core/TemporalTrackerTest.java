@@ -0,0 +1,102 @@
+package com.example.rtmdet_ins_core;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TemporalTrackerTest {
+    private static ArgbFrame gradientFrame(int width, int height, int offset, int noise, long seed) {
+        Random random = new Random(seed);
+        ArgbFrame frame = new ArgbFrame(width * height);
+        frame.width = width;
+        frame.height = height;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int v = Math.max(0, Math.min(255, (x + offset) % 256 + random.nextInt(2 * noise + 1) - noise));
+                frame.pixels[y * width + x] = 0xFF000000 | v << 16 | v << 8 | v;
+            }
+        }
+        return frame;
+    }
+
+    @Test
+    public void staticSceneDetectsOnlyOnKeyframes() {
+        TemporalTracker tracker = new TemporalTracker(10, 0.05F, 0.3F);
+        int detections = 0;
+        for (int i = 0; i < 100; i++) {
+            // sensor noise only
+            if (tracker.needsDetection(gradientFrame(200, 100, 0, 3, i))) {
+                detections++;
+            }
+        }
+        assertEquals(10, detections);
+        assertEquals(10, tracker.getDetectedFrames());
+        assertEquals(90, tracker.getSkippedFrames());
+        assertTrue(tracker.getLastDiff() < 0.05F);
+    }
+
+    @Test
+    public void sceneChangeTriggersDetection() {
+        TemporalTracker tracker = new TemporalTracker(100, 0.05F, 0.3F);
+        assertTrue(tracker.needsDetection(gradientFrame(200, 100, 0, 0, 0)));
+        assertFalse(tracker.needsDetection(gradientFrame(200, 100, 2, 0, 0)));
+        assertTrue(tracker.needsDetection(gradientFrame(200, 100, 120, 0, 0)));
+        // compared with the last detected frame, not the previous one
+        assertFalse(tracker.needsDetection(gradientFrame(200, 100, 122, 0, 0)));
+        // new size
+        assertTrue(tracker.needsDetection(gradientFrame(100, 100, 122, 0, 0)));
+    }
+
+    private static final ClassTable CLASSES = new ClassTable(new String[]{"person", "dog", "cat"});
+
+    private static Detections detections(Detections result, int[][] boxes, int[] classIds) {
+        result.reset();
+        for (int i = 0; i < boxes.length; i++) {
+            result.add(boxes[i], 0.9F, classIds[i], null);
+        }
+        return result;
+    }
+
+    private static int[] trackIds(Detections result) {
+        return Arrays.copyOf(result.trackIds, result.count);
+    }
+
+    @Test
+    public void tracksKeepIdsAcrossDetections() {
+        TemporalTracker tracker = new TemporalTracker(1, 0.05F, 0.3F);
+        // the same result is reused frame to frame, as in live mode
+        Detections result = new Detections(CLASSES, 2);
+        tracker.update(detections(result, new int[][]{{10, 10, 50, 50}, {100, 100, 150, 160}}, new int[]{0, 1}));
+        assertArrayEquals(new int[]{0, 1}, trackIds(result));
+
+        // moved a little, order swapped, one new instance, one of another class at the same place
+        tracker.update(detections(result, new int[][]{{104, 102, 152, 163}, {300, 10, 340, 60}, {12, 11, 52, 53},
+                {100, 100, 150, 160}}, new int[]{1, 0, 0, 2}));
+        assertArrayEquals(new int[]{1, 2, 0, 3}, trackIds(result));
+
+        // lost track, then reappearing far away is a new instance
+        tracker.update(detections(result, new int[0][], new int[0]));
+        tracker.update(detections(result, new int[][]{{10, 10, 50, 50}}, new int[]{0}));
+        assertArrayEquals(new int[]{4}, trackIds(result));
+    }
+
+    @Test
+    public void bestOverlapTakesTheTrack() {
+        TemporalTracker tracker = new TemporalTracker(1, 0.05F, 0.3F);
+        Detections result = new Detections(CLASSES, 4);
+        tracker.update(detections(result, new int[][]{{10, 10, 50, 50}}, new int[]{0}));
+
+        // both boxes overlap track 0, the closer one (listed second) keeps it
+        tracker.update(detections(result, new int[][]{{22, 10, 62, 50}, {12, 10, 52, 50}}, new int[]{0, 0}));
+        assertArrayEquals(new int[]{1, 0}, trackIds(result));
+
+        // equal overlap with track 0: the first detection wins
+        tracker = new TemporalTracker(1, 0.05F, 0.3F);
+        tracker.update(detections(result, new int[][]{{20, 10, 60, 50}}, new int[]{0}));
+        tracker.update(detections(result, new int[][]{{24, 10, 64, 50}, {16, 10, 56, 50}}, new int[]{0, 0}));
+        assertArrayEquals(new int[]{0, 1}, trackIds(result));
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.rtmdet_ins_core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class YuvConverterTest {
+    private static int gray(int luma) {
+        return 0xFF000000 | luma << 16 | luma << 8 | luma;
+    }
+
+    // planar 3 x 2 image, rows padded to 4 bytes, neutral chroma
+    private static ArgbFrame convert(int[] lumas, int rotation) {
+        int width = 3, height = 2, rowStride = 4;
+        ByteBuffer y = ByteBuffer.allocate(rowStride * height);
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < width; col++) {
+                y.put(row * rowStride + col, (byte) lumas[row * width + col]);
+            }
+        }
+        ByteBuffer u = ByteBuffer.allocate(rowStride);
+        ByteBuffer v = ByteBuffer.allocate(rowStride);
+        for (int i = 0; i < rowStride; i++) {
+            u.put(i, (byte) 128);
+            v.put(i, (byte) 128);
+        }
+        ArgbFrame frame = new ArgbFrame(width * height);
+        YuvConverter.toArgb(y, rowStride, 1, u, v, rowStride, 1, width, height, rotation, frame);
+        return frame;
+    }
+
+    @Test
+    public void neutralChromaGivesGray() {
+        int[] lumas = {0, 40, 80, 120, 200, 255};
+        ArgbFrame frame = convert(lumas, 0);
+        assertEquals(3, frame.width);
+        assertEquals(2, frame.height);
+        for (int i = 0; i < lumas.length; i++) {
+            assertEquals(gray(lumas[i]), frame.pixels[i]);
+        }
+    }
+
+    @Test
+    public void rotationsAreClockwise() {
+        // a b c
+        // d e f
+        int a = 10, b = 20, c = 30, d = 40, e = 50, f = 60;
+        int[] lumas = {a, b, c, d, e, f};
+
+        ArgbFrame frame = convert(lumas, 90);
+        assertEquals(2, frame.width);
+        assertEquals(3, frame.height);
+        assertArrayEquals(new int[]{gray(d), gray(a), gray(e), gray(b), gray(f), gray(c)}, frame.pixels);
+
+        frame = convert(lumas, 180);
+        assertEquals(3, frame.width);
+        assertArrayEquals(new int[]{gray(f), gray(e), gray(d), gray(c), gray(b), gray(a)}, frame.pixels);
+
+        frame = convert(lumas, 270);
+        assertEquals(2, frame.width);
+        assertEquals(3, frame.height);
+        assertArrayEquals(new int[]{gray(c), gray(f), gray(b), gray(e), gray(a), gray(d)}, frame.pixels);
+    }
+
+    @Test
+    public void semiPlanarChromaIsSharedBy2x2Pixels() {
+        // 4 x 2 image, NV12-like interleaved UV: pure red on the left half, pure blue on the right
+        int width = 4, height = 2;
+        ByteBuffer y = ByteBuffer.allocate(width * height);
+        for (int i = 0; i < width * height; i++) {
+            y.put(i, (byte) (i % width < 2 ? 76 : 29));
+        }
+        ByteBuffer uv = ByteBuffer.wrap(new byte[]{(byte) 85, (byte) 255, (byte) 255, (byte) 107});
+        ByteBuffer u = uv.duplicate();
+        uv.position(1);
+        ByteBuffer v = uv.slice();
+
+        ArgbFrame frame = new ArgbFrame(width * height);
+        YuvConverter.toArgb(y, width, 1, u, v, width, 2, width, height, 0, frame);
+        for (int i = 0; i < width * height; i++) {
+            int pixel = frame.pixels[i];
+            int red = pixel >> 16 & 255, green = pixel >> 8 & 255, blue = pixel & 255;
+            assertEquals(0xFF, pixel >>> 24);
+            if (i % width < 2) {
+                assertTrue(red >= 250 && green <= 5 && blue <= 5);
+            } else {
+                assertTrue(red <= 5 && green <= 5 && blue >= 250);
+            }
+        }
+    }
+}
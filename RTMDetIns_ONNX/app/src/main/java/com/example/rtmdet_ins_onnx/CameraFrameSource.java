@@ -0,0 +1,213 @@
+package com.example.rtmdet_ins_onnx;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Size;
+
+import java.util.Collections;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.example.rtmdet_ins_core.ArgbFrame;
+import com.example.rtmdet_ins_core.FrameSource;
+
+/**
+ * Frames of the back camera (Camera2, YUV_420_888), converted to upright ARGB into a fixed set of buffers.
+ * The CAMERA permission must be granted before {@link #start}.
+ */
+public class CameraFrameSource implements FrameSource<ArgbFrame> {
+    private static final int FRAME_BUFFERS = 3;     // being converted, waiting for the detector, being detected
+    private static final int MAX_IMAGES = 2;        // images of the camera held at once
+
+    private final CameraManager cameraManager;
+    private final int targetWidth, targetHeight;    // smallest capture size covering this is used
+    private final BlockingQueue<ArgbFrame> framePool = new ArrayBlockingQueue<>(FRAME_BUFFERS);
+
+    // camera objects, only touched on the camera thread once created
+    private HandlerThread cameraThread;
+    private Handler cameraHandler;
+    private CameraDevice camera;
+    private CameraCaptureSession session;
+    private ImageReader imageReader;
+    private int sensorOrientation;
+    private volatile boolean stopped;
+    private Sink<ArgbFrame> sink;
+
+    public CameraFrameSource(Context context, int targetWidth, int targetHeight) {
+        this.cameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        this.targetWidth = targetWidth;
+        this.targetHeight = targetHeight;
+    }
+
+    @SuppressLint("MissingPermission")
+    @Override
+    public void start(Sink<ArgbFrame> sink) {
+        this.sink = sink;
+        stopped = false;
+        cameraThread = new HandlerThread("camera");
+        cameraThread.start();
+        cameraHandler = new Handler(cameraThread.getLooper());
+
+        try {
+            String cameraId = findBackCamera();
+            CameraCharacteristics characteristics = cameraManager.getCameraCharacteristics(cameraId);
+            sensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+            StreamConfigurationMap configs = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            Size size = chooseSize(configs.getOutputSizes(ImageFormat.YUV_420_888));
+            System.out.println("[LOG] Camera " + cameraId + ", capture size: " + size + ", orientation: " + sensorOrientation);
+
+            framePool.clear();
+            for (int i = 0; i < FRAME_BUFFERS; i++) {
+                framePool.add(new ArgbFrame(size.getWidth() * size.getHeight()));
+            }
+            imageReader = ImageReader.newInstance(size.getWidth(), size.getHeight(), ImageFormat.YUV_420_888, MAX_IMAGES);
+            imageReader.setOnImageAvailableListener(this::onImageAvailable, cameraHandler);
+
+            cameraManager.openCamera(cameraId, new CameraDevice.StateCallback() {
+                @Override
+                public void onOpened(CameraDevice device) {
+                    camera = device;
+                    if (stopped) {
+                        device.close();
+                        return;
+                    }
+                    createSession();
+                }
+
+                @Override
+                public void onDisconnected(CameraDevice device) {
+                    device.close();
+                }
+
+                @Override
+                public void onError(CameraDevice device, int error) {
+                    System.out.println("[LOG] Camera error: " + error);
+                    device.close();
+                }
+
+                @Override
+                public void onClosed(CameraDevice device) {
+                    // nothing can arrive from the camera anymore
+                    imageReader.close();
+                    cameraThread.quitSafely();
+                }
+            }, cameraHandler);
+        } catch (CameraAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        stopped = true;
+        cameraHandler.post(() -> {
+            if (session != null) {
+                session.close();
+                session = null;
+            }
+            if (camera != null) {
+                camera.close();     // the thread quits once closed
+                camera = null;
+            }
+        });
+    }
+
+    @Override
+    public void recycle(ArgbFrame frame) {
+        framePool.offer(frame);
+    }
+
+    private String findBackCamera() throws CameraAccessException {
+        String[] ids = cameraManager.getCameraIdList();
+        for (String id : ids) {
+            Integer facing = cameraManager.getCameraCharacteristics(id).get(CameraCharacteristics.LENS_FACING);
+            if (facing != null && facing == CameraCharacteristics.LENS_FACING_BACK) {
+                return id;
+            }
+        }
+        if (ids.length == 0) {
+            throw new RuntimeException("No camera");
+        }
+        return ids[0];
+    }
+
+    private Size chooseSize(Size[] sizes) {
+        Size best = null;
+        Size largest = sizes[0];
+        for (Size size : sizes) {
+            int longSide = Math.max(size.getWidth(), size.getHeight());
+            int shortSide = Math.min(size.getWidth(), size.getHeight());
+            if (longSide >= Math.max(targetWidth, targetHeight) && shortSide >= Math.min(targetWidth, targetHeight)
+                    && (best == null || size.getWidth() * size.getHeight() < best.getWidth() * best.getHeight())) {
+                best = size;
+            }
+            if (size.getWidth() * size.getHeight() > largest.getWidth() * largest.getHeight()) {
+                largest = size;
+            }
+        }
+        return best != null ? best : largest;
+    }
+
+    private void createSession() {
+        try {
+            camera.createCaptureSession(Collections.singletonList(imageReader.getSurface()), new CameraCaptureSession.StateCallback() {
+                @Override
+                public void onConfigured(CameraCaptureSession captureSession) {
+                    if (stopped || camera == null) {
+                        captureSession.close();
+                        return;
+                    }
+                    session = captureSession;
+                    try {
+                        CaptureRequest.Builder request = camera.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+                        request.addTarget(imageReader.getSurface());
+                        session.setRepeatingRequest(request.build(), null, cameraHandler);
+                    } catch (CameraAccessException e) {
+                        e.printStackTrace();
+                    }
+                }
+
+                @Override
+                public void onConfigureFailed(CameraCaptureSession captureSession) {
+                    System.out.println("[LOG] Camera session configuration failed");
+                }
+            }, cameraHandler);
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void onImageAvailable(ImageReader reader) {
+        Image image = reader.acquireLatestImage();
+        if (image == null) {
+            return;
+        }
+        try {
+            ArgbFrame frame = framePool.poll();
+            if (frame == null || stopped) {
+                // every buffer is in use: the detector drops frames anyway
+                if (frame != null) {
+                    framePool.offer(frame);
+                }
+                return;
+            }
+            ImageUtils.yuvToArgb(image, sensorOrientation, frame);
+            frame.timestampNanos = image.getTimestamp();
+            sink.onFrame(frame);
+        } finally {
+            image.close();
+        }
+    }
+}
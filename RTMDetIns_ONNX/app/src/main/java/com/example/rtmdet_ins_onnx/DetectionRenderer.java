@@ -0,0 +1,106 @@
+package com.example.rtmdet_ins_onnx;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+
+import com.example.rtmdet_ins_core.ArgbFrame;
+import com.example.rtmdet_ins_core.MaskRenderer;
+
+
+/**
+ * Draws the boxes, masks and labels of a {@link ObjectDetector.DetectionResult} on a mutable image in place, or
+ * on a caller-owned output bitmap reused frame to frame.
+ * <p>
+ * The masks are blended into the ARGB pixels by {@link MaskRenderer}: the pixels of a bitmap are read with one
+ * {@code getPixels} call and written back with one {@code setPixels} call, camera frames are blended in their own
+ * buffer before being copied to the bitmap. Boxes and labels are drawn on top with the canvas. The canvas, paints and
+ * pixel buffer are reused: nothing is allocated per instance, and only when a larger image comes up across calls.
+ * Not thread-safe.
+ */
+public class DetectionRenderer {
+    private final Canvas canvas = new Canvas();
+    private final Paint boxPaint = new Paint();
+    private final Paint textPaint = new Paint();
+    private final MaskRenderer maskRenderer;
+    private int[] imagePixels = new int[0];     // pixels of the image drawn on in place, grown as needed
+
+    public DetectionRenderer(int[] boxColor, int[] maskColor, float maskOpacity) {
+        this.maskRenderer = new MaskRenderer(maskColor, maskOpacity);
+
+        boxPaint.setStyle(Paint.Style.STROKE);
+        boxPaint.setStrokeWidth(3);
+        boxPaint.setColor(Color.rgb(boxColor[0], boxColor[1], boxColor[2]));
+
+        textPaint.setStyle(Paint.Style.FILL);
+        textPaint.setTextSize(20);
+        textPaint.setColor(Color.rgb(255, 0, 0));
+    }
+
+    /**
+     * Draw {@code inputImage} then the detections into {@code output}, reused if it is a mutable bitmap of the same
+     * size, created otherwise. Returns the bitmap drawn on.
+     */
+    public Bitmap draw(ObjectDetector.DetectionResult result, Bitmap inputImage, Bitmap output) {
+        int width = inputImage.getWidth(), height = inputImage.getHeight();
+        output = reuse(output, width, height);
+        canvas.setBitmap(output);
+        canvas.drawBitmap(inputImage, 0, 0, null);
+        canvas.setBitmap(null);
+        return draw(result, output);
+    }
+
+    /**
+     * Draw the detections on {@code image} in place, it must be mutable.
+     */
+    public Bitmap draw(ObjectDetector.DetectionResult result, Bitmap image) {
+        int width = image.getWidth(), height = image.getHeight();
+        if (result.count > 0) {
+            if (imagePixels.length < width * height) {
+                imagePixels = new int[width * height];
+            }
+            image.getPixels(imagePixels, 0, width, 0, 0, width, height);
+            maskRenderer.draw(result, imagePixels, width, height);
+            image.setPixels(imagePixels, 0, width, 0, 0, width, height);
+        }
+        drawBoxes(result, image);
+        return image;
+    }
+
+    /**
+     * Draw {@code frame} then the detections into {@code output}, reused if it is a mutable bitmap of the same size,
+     * created otherwise. The masks are blended into the pixels of the frame. Returns the bitmap drawn on.
+     */
+    public Bitmap draw(ObjectDetector.DetectionResult result, ArgbFrame frame, Bitmap output) {
+        output = reuse(output, frame.width, frame.height);
+        maskRenderer.draw(result, frame.pixels, frame.width, frame.height);
+        output.setPixels(frame.pixels, 0, frame.width, 0, 0, frame.width, frame.height);
+        drawBoxes(result, output);
+        return output;
+    }
+
+    private static Bitmap reuse(Bitmap bitmap, int width, int height) {
+        if (bitmap == null || !bitmap.isMutable() || bitmap.getWidth() != width || bitmap.getHeight() != height) {
+            return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        return bitmap;
+    }
+
+    private void drawBoxes(ObjectDetector.DetectionResult result, Bitmap image) {
+        float[] boxes = result.boxes;
+
+        canvas.setBitmap(image);
+
+        for (int i = 0; i < result.count; i++) {
+            // draw box
+            int x1 = (int) boxes[4 * i], y1 = (int) boxes[4 * i + 1];
+            canvas.drawRect(x1, y1, boxes[4 * i + 2], boxes[4 * i + 3], boxPaint);
+
+            // write label
+            canvas.drawText(result.getLabel(i), x1, y1 - 10, textPaint);
+        }
+
+        canvas.setBitmap(null);
+    }
+}
@@ -4,82 +4,205 @@ import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.Color;
 import android.os.Build;
+import android.os.Debug;
 
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.example.rtmdet_ins_core.ArgbFrame;
+import com.example.rtmdet_ins_core.ClassTable;
+import com.example.rtmdet_ins_core.DetectorPool;
+import com.example.rtmdet_ins_core.Detections;
+import com.example.rtmdet_ins_core.FrameArena;
+import com.example.rtmdet_ins_core.InstanceMask;
+import com.example.rtmdet_ins_core.InstanceSegPostprocessor;
+import com.example.rtmdet_ins_core.LetterboxPreprocessor;
+import com.example.rtmdet_ins_core.MaskTensor;
+import com.example.rtmdet_ins_core.PipelinedExecutor;
+import com.example.rtmdet_ins_core.StageMetrics;
+
+import ai.onnxruntime.OnnxJavaType;
 import ai.onnxruntime.OnnxTensor;
 import ai.onnxruntime.OrtEnvironment;
 import ai.onnxruntime.OrtException;
 import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.TensorInfo;
 import ai.onnxruntime.providers.NNAPIFlags;
 import kotlin.io.ByteStreamsKt;
 
 public class ObjectDetector {
     // constant of current model family
     private static final int PAD_VAL = 114;
-    private static final float BOX_IOU_THRES = 0.7F;
-    private static final float MASK_IOU_THRES = 0.7F;
-    private static final float OVERLAP_THRES = 0.8F;
-    private static final float EPS = 1e-6F;
 
     private static final float[] MEAN = {103.53F, 116.28F, 123.675F};
     private static final float[] STD = {57.375F, 57.12F, 58.395F};
 
-    // constant of post-processing
-    private static final int BOX_THRES = 20;    // ignore too small boxes
+    private static final int PIPELINE_QUEUE_SIZE = 1;  // frames waiting in front of each pipeline stage
+    private static final int INPUT_BUFFER_SETS = PIPELINE_QUEUE_SIZE + 2;     // being filled, queued, in the runtime
+    private static final int ARENA_SETS = PIPELINE_QUEUE_SIZE + 2;            // being extracted, queued, in post-processing
+    private static final int BATCH_SIZE = 4;           // max images per run of inferBatch(), fewer on a small heap, see getBatchSize()
+    private static final int MAX_DETS = 100;           // detections per image when the model output shape is dynamic
+
+    // custom metadata of models with a quantized (uint8 / int8) input
+    private static final String INPUT_SCALE_KEY = "input_scale";
+    private static final String INPUT_ZERO_POINT_KEY = "input_zero_point";
+
+
+    /**
+     * Struct-of-arrays result (see {@link Detections}), reusable frame to frame with {@link #infer(ArgbFrame, DetectionResult)}.
+     */
+    static class DetectionResult extends Detections {
+        private Bitmap[] maskBitmaps;       // (capacity,) - created on first getMaskBitmap()
 
+        public DetectionResult(ClassTable classes, int capacity) {
+            super(classes, capacity);
+        }
 
-    static class DetectionResult {
-        public ArrayList<int[]> boxes;      // (n, 4) - format x1, y1, x2, y2
-        public ArrayList<Bitmap> masks;    // (n,) - bitmap of mask corresponding to box (size of mask = size of box)
-        public ArrayList<Float> scores;     // (n, ) - confidence score between 0 and 1
-        public ArrayList<String> labels;    // (n, ) - class label
+        @Override
+        public synchronized void reset() {
+            if (maskBitmaps != null) {
+                Arrays.fill(maskBitmaps, null);
+            }
+            super.reset();
+        }
 
-        public DetectionResult(ArrayList<int[]> boxes, ArrayList<Bitmap> masks, ArrayList<Float> scores, ArrayList<String> labels) {
-            this.boxes = boxes;
-            this.masks = masks;
-            this.scores = scores;
-            this.labels = labels;
+        /**
+         * Mask {@code i} as an ALPHA_8 bitmap with the size of its box (255 inside the instance, 0 elsewhere),
+         * created on first call.
+         */
+        public synchronized Bitmap getMaskBitmap(int i) {
+            if (maskBitmaps == null || maskBitmaps.length < masks.length) {
+                maskBitmaps = maskBitmaps == null ? new Bitmap[masks.length] : Arrays.copyOf(maskBitmaps, masks.length);
+            }
+            if (maskBitmaps[i] == null) {
+                InstanceMask mask = masks[i];
+                int width = Math.max(mask.getWidth(), 1), height = Math.max(mask.getHeight(), 1);
+                Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ALPHA_8);
+                byte[] pixels = new byte[bitmap.getRowBytes() * height];
+                mask.upscale(pixels, 0, bitmap.getRowBytes(), (byte) 255);
+                bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(pixels));
+                maskBitmaps[i] = bitmap;
+            }
+            return maskBitmaps[i];
         }
     }
 
 
-    private HashMap<Integer, String> classMapping;
+    private ClassTable classes;     // class names, shared by all results
     private OrtEnvironment ortEnv;  // ONNX runtime environment
     private OrtSession ortSession;  // ONNX runtime session
+    private OnnxJavaType inputType; // element type of the model input
+    private boolean dynamicBatch;   // whether the batch dimension of the model input is dynamic
     private final int inferSize;      // input size of the model
-    private final float commonThres;  // confidence threshold for common bounding box
-    private final float personThres;  // confidence threshold for person (special case)
+    private final LetterboxPreprocessor preprocessor;
+    private final InstanceSegPostprocessor postprocessor;
+    // direct input buffers written by the preprocessor and read by the runtime, a frame holds one until run()
+    private final BlockingQueue<ByteBuffer> inputPool = new ArrayBlockingQueue<>(INPUT_BUFFER_SETS);
+    // scratch of extract / post-processing, sized by the first outputs of the model and reused by later frames
+    private final BlockingQueue<FrameArena> arenaPool = new ArrayBlockingQueue<>(ARENA_SETS);
+    private PipelinedExecutor<Bitmap, Frame, Frame, DetectionResult> pipeline;    // created on first submit()
+    private final StageMetrics metrics = new StageMetrics();     // latency of every stage, see getMetrics()
+    private int batchSize;                      // images per run of inferBatch(), 0 until computed
+    private ByteBuffer batchInput;              // (batchSize, 3, h, w) - created on first inferBatch()
+    private ExecutorService batchExecutor;      // pre-processes the images of a batch in parallel
 
     private final AssetManager assetManager;
 
     public ObjectDetector(AssetManager assetManager, String modelPath, String classPath, int inferSize, float commonThres, float personThres) {
+        this(assetManager, readModel(assetManager, modelPath), classPath, inferSize, commonThres, personThres, 0);
+    }
+
+    /**
+     * @param model bytes of the .onnx file, read once by {@link #createPool}
+     * @param numThreads intra-op threads of the session, 0 = ONNX Runtime default
+     */
+    private ObjectDetector(AssetManager assetManager, byte[] model, String classPath, int inferSize, float commonThres, float personThres, int numThreads) {
         this.assetManager = assetManager;
         this.inferSize = inferSize;
-        this.commonThres = commonThres;
-        this.personThres = personThres;
+        this.postprocessor = new InstanceSegPostprocessor(inferSize, commonThres, personThres);
         readClasses(classPath);
         try {
-            createOrtSession(modelPath);
+            createOrtSession(model, numThreads);
+            this.preprocessor = createPreprocessor();
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
+        allocateInputBuffers();
     }
 
-    private void createOrtSession(String modelPath) throws IOException, OrtException {
+    /**
+     * Preprocessor matching the model input: float32, or raw uint8 / int8 for quantized models, with the scale and
+     * zero point stored in the model metadata.
+     */
+    private LetterboxPreprocessor createPreprocessor() throws OrtException {
+        TensorInfo inputInfo = (TensorInfo) ortSession.getInputInfo().values().iterator().next().getInfo();
+        inputType = inputInfo.type;
+        dynamicBatch = inputInfo.getShape()[0] < 0;
+        System.out.println("[LOG] Dynamic batch: " + dynamicBatch);
+        if (inputType == OnnxJavaType.FLOAT) {
+            return new LetterboxPreprocessor(inferSize, PAD_VAL, MEAN, STD);
+        }
+        if (inputType != OnnxJavaType.UINT8 && inputType != OnnxJavaType.INT8) {
+            throw new RuntimeException("Unsupported input type: " + inputType);
+        }
+
+        Map<String, String> metadata = ortSession.getMetadata().getCustomMetadata();
+        if (!metadata.containsKey(INPUT_SCALE_KEY) || !metadata.containsKey(INPUT_ZERO_POINT_KEY)) {
+            throw new RuntimeException("Quantized input needs " + INPUT_SCALE_KEY + " and " + INPUT_ZERO_POINT_KEY + " in the model metadata");
+        }
+        float scale = Float.parseFloat(metadata.get(INPUT_SCALE_KEY));
+        int zeroPoint = Integer.parseInt(metadata.get(INPUT_ZERO_POINT_KEY));
+        System.out.println("[LOG] Quantized " + inputType + " input, scale: " + scale + ", zero point: " + zeroPoint);
+        LetterboxPreprocessor.InputType type = inputType == OnnxJavaType.UINT8 ? LetterboxPreprocessor.InputType.UINT8 : LetterboxPreprocessor.InputType.INT8;
+        return new LetterboxPreprocessor(inferSize, PAD_VAL, MEAN, STD, LetterboxPreprocessor.Layout.NCHW, type, scale, zeroPoint);
+    }
+
+    /**
+     * Pool of {@code size} detectors for concurrent inference, e.g. one per core on a multi-core device. The model
+     * file is read once; each detector has its own session (ONNX Runtime keeps its own copy of the weights) with
+     * {@code numThreads} intra-op threads, so that {@code size * numThreads} stays around the number of cores.
+     */
+    public static DetectorPool<ObjectDetector> createPool(AssetManager assetManager, String modelPath, String classPath, int inferSize,
+                                                          float commonThres, float personThres, int size, int numThreads) {
+        final byte[] model = readModel(assetManager, modelPath);
+        return new DetectorPool<>(size,
+                index -> new ObjectDetector(assetManager, model, classPath, inferSize, commonThres, personThres, numThreads),
+                ObjectDetector::close);
+    }
+
+    private static byte[] readModel(AssetManager assetManager, String modelPath) {
+        try (InputStream inputStream = assetManager.open(modelPath)) {
+            return ByteStreamsKt.readBytes(inputStream);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void createOrtSession(byte[] model, int numThreads) throws OrtException {
         ortEnv = OrtEnvironment.getEnvironment();
         OrtSession.SessionOptions sessionOptions = new OrtSession.SessionOptions();
+        if (numThreads > 0) {
+            sessionOptions.setIntraOpNumThreads(numThreads);
+        }
 //        NNAPI: Android 8.1 (API 27) or higher
         System.out.println("[LOG] Android SDK version: " + Build.VERSION.SDK_INT);
         if (Build.VERSION.SDK_INT >= 27) {
@@ -100,7 +223,7 @@ public class ObjectDetector {
 //            sessionOptions.addXnnpack(providerOptions);
 //        }
 
-        ortSession = ortEnv.createSession(ByteStreamsKt.readBytes(assetManager.open(modelPath)), sessionOptions);
+        ortSession = ortEnv.createSession(model, sessionOptions);
 
 //         warm up with dummy input
 //        String inputName = ortSession.getInputNames().iterator().next();
@@ -111,6 +234,52 @@ public class ObjectDetector {
 //        OrtSession.Result output = ortSession.run(inputMap);
     }
 
+    /**
+     * Threads used for the pairwise mask comparisons of post-processing (1 = calling thread only).
+     */
+    public void setPostprocessThreads(int numThreads) {
+        postprocessor.setNumThreads(numThreads);
+    }
+
+    /**
+     * Latency histograms of pre-process, inference, extract and post-process, in both {@link #infer} and
+     * {@link #submit}. Rendering is not done here, callers can record it as {@link StageMetrics.Stage#RENDER}.
+     */
+    public StageMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Also count the bytes allocated by every stage. Allocation counting of the runtime has a small cost on every
+     * allocation of the app, so it is off by default.
+     */
+    @SuppressWarnings("deprecation")
+    public void setAllocationTracking(boolean enabled) {
+        if (enabled) {
+            Debug.startAllocCounting();
+            metrics.setAllocationCounter(Debug::getThreadAllocSize);
+        } else {
+            metrics.setAllocationCounter(null);
+            Debug.stopAllocCounting();
+        }
+    }
+
+    public synchronized void close() {
+        metrics.stopDump();
+        if (pipeline != null) {
+            pipeline.close();
+        }
+        if (batchExecutor != null) {
+            batchExecutor.shutdown();
+        }
+        postprocessor.close();
+        try {
+            ortSession.close();
+        } catch (OrtException e) {
+            e.printStackTrace();
+        }
+    }
+
     private void readClasses(String labelPath) {
         // read file
         InputStream inputStream = null;
@@ -120,309 +289,369 @@ public class ObjectDetector {
             e.printStackTrace();
         }
         // read lines
-        HashMap<Integer, String> readClasses = new HashMap<>();
-        int i = 0;
-        try (java.util.Scanner scanner = new java.util.Scanner(inputStream)) {
-            while (scanner.hasNextLine()) {
-                String line = scanner.nextLine();
-                readClasses.put(i, line);
-                i++;
-            }
-        }
-        classMapping = readClasses;
+        classes = ClassTable.read(inputStream);
     }
 
-    private static class PreprocessedImage {
-        public FloatBuffer imageData;
+    /**
+     * State of one image through the stages of detection.
+     */
+    private static class Frame {
+        public int origWidth;
+        public int origHeight;
+        public ByteBuffer inputBuffer;      // (1, 3, h, w) - normalized input (float32 or quantized), from inputPool
         public int padX;
         public int padY;
+        public OrtSession.Result output;    // raw outputs, open between run() and extract()
+        public FrameArena arena;            // raw boxes / scores / labels and scratch, from arenaPool until postprocess()
+        public int n;                       // number of raw detections
+        public MaskTensor masks;            // (n, h, w)
+    }
 
-        public PreprocessedImage(FloatBuffer imageData, int padX, int padY) {
-            this.imageData = imageData;
-            this.padX = padX;
-            this.padY = padY;
-        }
+    private Frame preprocess(Bitmap image) {
+        metrics.begin(StageMetrics.Stage.PREPROCESS);
+        Frame frame = letterbox(ImageUtils.readPixels(image), image.getWidth(), image.getHeight());
+        metrics.end(StageMetrics.Stage.PREPROCESS);
+        return frame;
     }
 
-    private PreprocessedImage preprocess(Bitmap image) {
-        // Resize
-        Bitmap resizedBm = ImageUtils.resizeKeepRatio(image, inferSize);
+    private Frame preprocess(ArgbFrame image) {
+        metrics.begin(StageMetrics.Stage.PREPROCESS);
+        Frame frame = letterbox(image.pixels, image.width, image.height);
+        metrics.end(StageMetrics.Stage.PREPROCESS);
+        return frame;
+    }
 
-        // Pad
-        ImageUtils.PaddedImage paddedImage = ImageUtils.pad(resizedBm, inferSize, PAD_VAL);
-        Bitmap paddedBm = paddedImage.image;
-        int padX = paddedImage.padX;
-        int padY = paddedImage.padY;
+    private Frame letterbox(int[] pixels, int width, int height) {
+        Frame frame = new Frame();
+        frame.origWidth = width;
+        frame.origHeight = height;
 
-        // Convert to float array
-        FloatBuffer imageData = ImageUtils.normalizeImage(paddedBm, MEAN, STD);
+        // Resize, pad and normalize in a single pass over the source pixels, straight into an input buffer
+        ByteBuffer inputBuffer = takeInputBuffer();
+        try {
+            LetterboxPreprocessor.Letterbox letterbox = preprocessor.process(pixels, frame.origWidth, frame.origHeight, inputBuffer);
+            frame.padX = letterbox.padX;
+            frame.padY = letterbox.padY;
+        } catch (RuntimeException e) {
+            inputPool.add(inputBuffer);
+            throw e;
+        }
+        frame.inputBuffer = inputBuffer;
 
-        return new PreprocessedImage(imageData, padX, padY);
+        return frame;
     }
 
+    private void allocateInputBuffers() {
+        inputPool.clear();
+        for (int i = 0; i < INPUT_BUFFER_SETS; i++) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(preprocessor.getInputBytes());
+            buffer.order(ByteOrder.nativeOrder());
+            inputPool.add(buffer);
+        }
+    }
 
-    public DetectionResult infer(Bitmap inputBitmap) throws OrtException {
-        long startTime = 0L;
-        long endTime = 0L;
-        long totalTime = 0L;
-
-        int origWidth = inputBitmap.getWidth();
-        int origHeight = inputBitmap.getHeight();
+    private ByteBuffer takeInputBuffer() {
+        try {
+            return inputPool.take();    // waits until an earlier frame has been fed to the runtime
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
 
-        ////////////////////////////////////////
-        // Preprocessing
-        startTime = System.currentTimeMillis();
+    private FrameArena takeArena(int n) {
+        FrameArena arena = arenaPool.poll();
+        if (arena == null) {
+            arena = new FrameArena(n);  // first frames, or the arena of a failed frame was not returned
+        }
+        arena.ensureCapacity(n);
+        return arena;
+    }
 
-        PreprocessedImage preprocessedImage = preprocess(inputBitmap);
-        FloatBuffer inputData = preprocessedImage.imageData;
-        int padX = preprocessedImage.padX;
-        int padY = preprocessedImage.padY;
+    // give back what a frame dropped by the pipeline still holds: input buffer, open outputs, arena
+    private void release(Frame frame) {
+        if (frame.inputBuffer != null) {
+            inputPool.add(frame.inputBuffer);
+            frame.inputBuffer = null;
+        }
+        if (frame.output != null) {
+            frame.output.close();
+            frame.output = null;
+        }
+        if (frame.arena != null) {
+            arenaPool.offer(frame.arena);
+            frame.arena = null;
+        }
+    }
 
-        // Input collections
-        OnnxTensor inputTensor = OnnxTensor.createTensor(ortEnv, inputData, new long[]{1, 3, inferSize, inferSize});
+    private void run(Frame frame) throws OrtException {
+        metrics.begin(StageMetrics.Stage.INFERENCE);
         String inputName = ortSession.getInputNames().iterator().next();
         Map<String, OnnxTensor> inputMap = new HashMap<>();
-        inputMap.put(inputName, inputTensor);
-
-        endTime = System.currentTimeMillis();
-
-        totalTime += (endTime - startTime);
-        System.out.println("[LOG] 1. Pre-process time: " + (endTime - startTime) + "ms");
-
-        ////////////////////////////////////////
-        // Inference
-
-        startTime = System.currentTimeMillis();
-        // Run ONNX session
-        OrtSession.Result output = ortSession.run(inputMap);
-        endTime = System.currentTimeMillis();
-
-        totalTime += (endTime - startTime);
-        System.out.println("[LOG] 2. Inference time: " + (endTime - startTime) + "ms");
-
-        ////////////////////////////////////////
-        // Postprocessing
-
-        startTime = System.currentTimeMillis();
-
-        // Extract results from session
-        long[] labels = ((long[][]) ((OnnxTensor) output.get(1)).getValue())[0];  // in shape (n)
-        float[][] dets = ((float[][][]) ((OnnxTensor) output.get(0)).getValue())[0];  // in shape (n, 5) - [x1, y1, x2, y2, score]
-        int[][] boxes = new int[dets.length][4];     // in shape (n, 4) - [x1, y1, x2, y2]
-        float[] scores = new float[dets.length];    // in shape (n)
-        for (int i = 0; i < dets.length; i++) {
-            boxes[i] = new int[]{(int) dets[i][0], (int) dets[i][1], (int) dets[i][2], (int) dets[i][3]};
-            scores[i] = dets[i][4];
+        long[] shape = {1, 3, inferSize, inferSize};
+        try (OnnxTensor inputTensor = inputType == OnnxJavaType.FLOAT
+                ? OnnxTensor.createTensor(ortEnv, frame.inputBuffer.asFloatBuffer(), shape)
+                : OnnxTensor.createTensor(ortEnv, frame.inputBuffer, shape, inputType)) {
+            inputMap.put(inputName, inputTensor);
+            frame.output = ortSession.run(inputMap);
+        } finally {
+            inputPool.add(frame.inputBuffer);
+            frame.inputBuffer = null;
         }
+        metrics.end(StageMetrics.Stage.INFERENCE);
+    }
 
-        byte[][][] masks = ((byte[][][][]) ((OnnxTensor) output.get(2)).getValue())[0];      // in shape (n, h, w)
-
-        endTime = System.currentTimeMillis();
-        totalTime += (endTime - startTime);
-        System.out.println("[LOG] 3. Extract result time: " + (endTime - startTime) + "ms");
+    private void extract(Frame frame) throws OrtException {
+        metrics.begin(StageMetrics.Stage.EXTRACT);
+        try (OrtSession.Result output = frame.output) {
+            // Extract results from session: flat buffers, no nested java arrays
+            FloatBuffer dets = ((OnnxTensor) output.get(0)).getFloatBuffer();     // in shape (1 * n * 5) - [x1, y1, x2, y2, score]
+            LongBuffer labelsBuffer = ((OnnxTensor) output.get(1)).getLongBuffer();    // in shape (1 * n)
+            int n = labelsBuffer.remaining();
+            FrameArena arena = takeArena(n);
+            labelsBuffer.get(arena.labels, 0, n);
+            for (int i = 0; i < n; i++) {
+                int[] box = arena.boxes[i];
+                box[0] = (int) dets.get(i * 5);
+                box[1] = (int) dets.get(i * 5 + 1);
+                box[2] = (int) dets.get(i * 5 + 2);
+                box[3] = (int) dets.get(i * 5 + 3);
+                arena.scores[i] = dets.get(i * 5 + 4);
+            }
 
-        startTime = System.currentTimeMillis();
-        DetectionResult result = postprocess(boxes, scores, labels, masks, origWidth, origHeight, padX, padY);
-        endTime = System.currentTimeMillis();
+            OnnxTensor maskOutput = (OnnxTensor) output.get(2);
+            long[] maskShape = maskOutput.getInfo().getShape();     // (1, n, h, w)
+            frame.masks = new MaskTensor(maskOutput.getByteBuffer(), (int) maskShape[1], (int) maskShape[2], (int) maskShape[3]);
+            frame.arena = arena;
+            frame.n = n;
+        } finally {
+            frame.output = null;
+        }
+        metrics.end(StageMetrics.Stage.EXTRACT);
+    }
 
-        totalTime += (endTime - startTime);
-        System.out.println("[LOG] 4. Post-process time: " + (endTime - startTime) + "ms");
 
-        System.out.println("[LOG] Total time: " + totalTime + "ms");
+    public DetectionResult infer(Bitmap inputBitmap) throws OrtException {
+        // stages are timed into getMetrics()
+        Frame frame = preprocess(inputBitmap);
+        run(frame);
+        extract(frame);
+        return postprocess(frame);
+    }
 
-        return result;
+    /**
+     * Detection on a video frame, e.g. from {@link CameraFrameSource}. The frame can be reused once this returns.
+     */
+    public DetectionResult infer(ArgbFrame inputFrame) throws OrtException {
+        return infer(inputFrame, null);
     }
 
-    private DetectionResult postprocess(int[][] boxes, float[] scores, long[] labels, byte[][][] masks, int origWidth, int origHeight, int padX, int padY) {
-        int n = boxes.length;
-        boolean[] isSkipped = new boolean[n];
+    /**
+     * Same as {@link #infer(ArgbFrame)}, filling {@code result} (reset first) instead of a new result when not null,
+     * e.g. the previous result of a live stream once it has been drawn.
+     */
+    public DetectionResult infer(ArgbFrame inputFrame, DetectionResult result) throws OrtException {
+        Frame frame = preprocess(inputFrame);
+        run(frame);
+        extract(frame);
+        return postprocess(frame, result);
+    }
 
-        // 1. Filter our low score boxes
-        for (int i = 0; i < n; i++) {
-            if (scores[i] >= commonThres || (labels[i] == 0 && scores[i] >= personThres))
-                continue;
-            isSkipped[i] = true;
+    /**
+     * Pipelined detection: pre-processing of the next image and post-processing of the previous one overlap
+     * with inference of the current one. Blocks while the pipeline is full. Do not call {@link #infer}
+     * concurrently with pending frames.
+     */
+    public synchronized Future<DetectionResult> submit(Bitmap inputBitmap) {
+        if (pipeline == null) {
+            pipeline = new PipelinedExecutor<>(this::preprocess, this::release, frame -> {
+                run(frame);
+                extract(frame);
+                return frame;
+            }, this::release, this::postprocess, PIPELINE_QUEUE_SIZE);
         }
+        return pipeline.submit(inputBitmap);
+    }
 
-        // 2. Normalize box coordinates (between 0 and infer size - 1)
-        for (int i = 0; i < n; i++) {
-            if (isSkipped[i])
-                continue;
-
-            int x1 = boxes[i][0];
-            int y1 = boxes[i][1];
-            int x2 = boxes[i][2];
-            int y2 = boxes[i][3];
-
-            if (x1 >= x2 || y1 >= y2) {
-                isSkipped[i] = true;
-                continue;
+    /**
+     * Detection on many images, e.g. a whole photo library: optimized for throughput rather than latency.
+     * Models exported with a dynamic batch run {@link #getBatchSize} images at once, pre-processed in parallel;
+     * otherwise the images go through the pipeline of {@link #submit}. Results are in the order of {@code images}.
+     */
+    public ArrayList<DetectionResult> inferBatch(List<Bitmap> images) throws OrtException {
+        ArrayList<DetectionResult> results = new ArrayList<>();
+        int batchSize = getBatchSize();
+        if (batchSize < 2) {
+            // batch of 1 only: overlap the stages of consecutive images instead
+            ArrayList<Future<DetectionResult>> futures = new ArrayList<>();
+            for (Bitmap image : images) {
+                futures.add(submit(image));
             }
+            for (Future<DetectionResult> future : futures) {
+                results.add(getResult(future));
+            }
+            return results;
+        }
 
-            x1 = Math.min(Math.max(padX, x1), inferSize - 1 - padX);
-            y1 = Math.min(Math.max(padY, y1), inferSize - 1 - padY);
-            x2 = Math.min(Math.max(padX, x2), inferSize - 1 - padX);
-            y2 = Math.min(Math.max(padY, y2), inferSize - 1 - padY);
+        for (int start = 0; start < images.size(); start += batchSize) {
+            results.addAll(runBatch(images.subList(start, Math.min(images.size(), start + batchSize))));
+        }
+        return results;
+    }
 
-            boxes[i][0] = x1; boxes[i][1] = y1; boxes[i][2] = x2; boxes[i][3] = y2;
+    /**
+     * Images per run of {@link #inferBatch}, 1 if the model has a fixed batch. {@code getByteBuffer()} copies the
+     * whole mask output of a run onto the Java heap (~40 MB per image for 100 detections at 640x640), so a run
+     * holds at most a quarter of the heap.
+     */
+    public synchronized int getBatchSize() {
+        if (batchSize > 0) {
+            return batchSize;
+        }
+        if (!dynamicBatch) {
+            batchSize = 1;
+            return batchSize;
         }
 
-        // 3. Reduce redundant boxes: NMS + Merged overlapping boxes
-        HashMap<Integer, ArrayList<Integer>> mergeDict = new HashMap<>();
-        for (int i = 0; i < n; i++) {
-            if (isSkipped[i]) {
-                continue;
-            }
-            if (!mergeDict.containsKey(i)) {
-                mergeDict.put(i, new ArrayList<Integer>());
+        long maskBytes = 1;     // (n, h, w) of one image
+        try {
+            TensorInfo maskInfo = (TensorInfo) new ArrayList<>(ortSession.getOutputInfo().values()).get(2).getInfo();
+            long[] maskShape = maskInfo.getShape();
+            for (int i = 1; i < maskShape.length; i++) {
+                maskBytes *= maskShape[i] > 0 ? maskShape[i] : (i == 1 ? MAX_DETS : inferSize);
             }
-            int[] box1 = boxes[i];
-
-            for (int j = i + 1; j < n; j++) {
-                if (isSkipped[j]) {
-                    continue;
-                }
-                if (!mergeDict.containsKey(j)) {
-                    mergeDict.put(j, new ArrayList<Integer>());
-                }
-                int[] box2 = boxes[j];
-
-                float boxIoU = calcBoxIoU(box1, box2);
-
-                // crop 2 masks to the same shape
-                int x1 = Math.min(box1[0], box2[0]);
-                int y1 = Math.min(box1[1], box2[1]);
-                int x2 = Math.max(box1[2], box2[2]);
-                int y2 = Math.max(box1[3], box2[3]);
-                // calculate mask IoU and overlap
-                float maskInter = 0, mask1Area = 0, mask2Area = 0;
-                for (int yy = y1; yy < y2; yy++) {
-                    for (int xx = x1; xx < x2; xx++) {
-                        byte mask1Value = masks[i][yy][xx];
-                        byte mask2Value = masks[j][yy][xx];
-                        mask1Area += mask1Value;
-                        mask2Area += mask2Value;
-                        maskInter += mask1Value * mask2Value;
-                    }
-                }
+        } catch (OrtException e) {
+            e.printStackTrace();
+            maskBytes = (long) MAX_DETS * inferSize * inferSize;
+        }
+        long budget = Runtime.getRuntime().maxMemory() / 4;
+        batchSize = (int) Math.max(1, Math.min(BATCH_SIZE, budget / maskBytes));
+        System.out.println("[LOG] Batch size: " + batchSize + " (" + maskBytes / (1024 * 1024) + " MB of masks per image)");
+        return batchSize;
+    }
 
-                float maskIoU = (float) maskInter / (mask1Area + mask2Area - maskInter + EPS);
-                float mask1Overlap = (float) (maskInter / ((float) mask1Area + EPS));
-                float mask2Overlap = (float) (maskInter / ((float) mask2Area + EPS));
-
-                // check condition
-                if ((boxIoU > BOX_IOU_THRES && maskIoU > MASK_IOU_THRES) ||
-                        (labels[i] == labels[j] && (Math.max(mask1Overlap, mask2Overlap) > OVERLAP_THRES))) {
-                    if (scores[i] > scores[j]) {
-                        isSkipped[j] = true;
-                        mergeDict.get(i).add(j); mergeDict.get(i).addAll(mergeDict.get(j));
-                        mergeDict.remove(j);
-                    } else {
-                        isSkipped[i] = true;
-                        mergeDict.get(j).add(i); mergeDict.get(j).addAll(mergeDict.get(i));
-                        mergeDict.remove(i);
-                    }
-                }
+    private static <T> T getResult(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
 
-                if (isSkipped[i]) {
-                    break;
-                }
-            }
+    private synchronized ArrayList<DetectionResult> runBatch(List<Bitmap> images) throws OrtException {
+        int batch = images.size();
+        int inputBytes = preprocessor.getInputBytes();
+        if (batchInput == null) {
+            batchInput = ByteBuffer.allocateDirect(batchSize * inputBytes);
+            batchInput.order(ByteOrder.nativeOrder());
+            batchExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+                Thread thread = new Thread(r, "batch-preprocess");
+                thread.setDaemon(true);
+                return thread;
+            });
         }
 
-        // 4. Merge masks
-        for (int i = 0; i < n; i++) {
-            if (isSkipped[i] || !mergeDict.containsKey(i)) {
-                continue;
-            }
+        // Pre-process every image into its slot of the batch input, in parallel
+        ArrayList<Future<Frame>> preprocessed = new ArrayList<>();
+        for (int b = 0; b < batch; b++) {
+            final Bitmap image = images.get(b);
+            final ByteBuffer slot = slice(batchInput, b * inputBytes, inputBytes);
+            preprocessed.add(batchExecutor.submit(() -> {
+                Frame frame = new Frame();
+                frame.origWidth = image.getWidth();
+                frame.origHeight = image.getHeight();
+                LetterboxPreprocessor.Letterbox letterbox = preprocessor.process(ImageUtils.readPixels(image), frame.origWidth, frame.origHeight, slot);
+                frame.padX = letterbox.padX;
+                frame.padY = letterbox.padY;
+                return frame;
+            }));
+        }
+        Frame[] frames = new Frame[batch];
+        for (int b = 0; b < batch; b++) {
+            frames[b] = getResult(preprocessed.get(b));
+        }
 
-            int[] curBox = boxes[i];
-            byte[][] curMask = masks[i];
-
-            for (int j = 0; j < mergeDict.get(i).size(); j++) {
-                int idx = mergeDict.get(i).get(j);
-                int[] box2 = boxes[idx];
-                byte[][] mask2 = masks[idx];
-
-                // merge box
-                curBox[0] = Math.min(curBox[0], box2[0]);
-                curBox[1] = Math.min(curBox[1], box2[1]);
-                curBox[2] = Math.max(curBox[2], box2[2]);
-                curBox[3] = Math.max(curBox[3], box2[3]);
-                // merge mask
-                for (int k = box2[1]; k <= box2[3]; k++) {
-                    for (int l = box2[0]; l <= box2[2]; l++) {
-                        curMask[k][l] = (byte) Math.max(curMask[k][l], mask2[k][l]);
+        String inputName = ortSession.getInputNames().iterator().next();
+        Map<String, OnnxTensor> inputMap = new HashMap<>();
+        long[] shape = {batch, 3, inferSize, inferSize};
+        ByteBuffer input = batchInput.duplicate().order(ByteOrder.nativeOrder());
+        input.limit(batch * inputBytes);
+        ArrayList<DetectionResult> results = new ArrayList<>();
+        try (OnnxTensor inputTensor = inputType == OnnxJavaType.FLOAT
+                ? OnnxTensor.createTensor(ortEnv, input.asFloatBuffer(), shape)
+                : OnnxTensor.createTensor(ortEnv, input, shape, inputType)) {
+            inputMap.put(inputName, inputTensor);
+            try (OrtSession.Result output = ortSession.run(inputMap)) {
+                FloatBuffer dets = ((OnnxTensor) output.get(0)).getFloatBuffer();     // in shape (b * n * 5)
+                LongBuffer labelsBuffer = ((OnnxTensor) output.get(1)).getLongBuffer();    // in shape (b * n)
+                OnnxTensor maskOutput = (OnnxTensor) output.get(2);
+                long[] maskShape = maskOutput.getInfo().getShape();     // (b, n, h, w)
+                int n = (int) maskShape[1], maskHeight = (int) maskShape[2], maskWidth = (int) maskShape[3];
+                ByteBuffer masks = maskOutput.getByteBuffer();     // heap copy of the masks of the whole batch
+
+                // post-process image by image on slices of the copy, dropped once the batch is done
+                for (int b = 0; b < batch; b++) {
+                    Frame frame = frames[b];
+                    FrameArena arena = takeArena(n);
+                    for (int i = 0; i < n; i++) {
+                        int offset = (b * n + i) * 5;
+                        int[] box = arena.boxes[i];
+                        arena.labels[i] = labelsBuffer.get(b * n + i);
+                        box[0] = (int) dets.get(offset);
+                        box[1] = (int) dets.get(offset + 1);
+                        box[2] = (int) dets.get(offset + 2);
+                        box[3] = (int) dets.get(offset + 3);
+                        arena.scores[i] = dets.get(offset + 4);
                     }
+                    frame.arena = arena;
+                    frame.n = n;
+                    int maskBytes = n * maskHeight * maskWidth;
+                    frame.masks = new MaskTensor(slice(masks, b * maskBytes, maskBytes), n, maskHeight, maskWidth);
+                    results.add(postprocess(frame));
                 }
             }
-
-            boxes[i] = curBox;
-            masks[i] = curMask;
         }
+        return results;
+    }
 
-        // 5. Refine boxes coordinates
-        ArrayList<Float> finalScores = new ArrayList<>();
-        ArrayList<int[]> finalBoxes = new ArrayList<>();
-        ArrayList<String> finalLabels = new ArrayList<>();
-        ArrayList<Bitmap> finalMasks = new ArrayList<>();
-
-        for (int i = 0; i < n; i++) {
-            if (isSkipped[i]) {
-                continue;
-            }
+    // bytes [offset, offset + length) of buffer as a buffer of its own, in native order
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice().order(ByteOrder.nativeOrder());
+    }
 
-            // actual box coordinates
-            int x1 = boxes[i][0];
-            int y1 = boxes[i][1];
-            int x2 = boxes[i][2];
-            int y2 = boxes[i][3];
-            int actualX1 = (int) ((x1 - padX) / (float) (inferSize - padX * 2) * origWidth);
-            int actualY1 = (int) ((y1 - padY) / (float) (inferSize - padY * 2) * origHeight);
-            int actualX2 = (int) ((x2 - padX) / (float) (inferSize - padX * 2) * origWidth);
-            int actualY2 = (int) ((y2 - padY) / (float) (inferSize - padY * 2) * origHeight);
-            // check box size
-            if ((actualX2 - actualX1 + 1) + (actualY2 - actualY1 + 1) < BOX_THRES)
-                continue;
-
-            // crop current mask (H x W) to final mask (same size with box)
-            int maskHeight = y2 - y1;
-            int maskWidth = x2 - x1;
-            Bitmap maskBitmap = Bitmap.createBitmap(maskWidth, maskHeight, Bitmap.Config.ARGB_8888);
-            int[] binValues = new int[maskWidth * maskHeight];
-            int idx = 0;
-            for (int j = 0; j < maskHeight; j++) {
-                for (int k = 0; k < maskWidth; k++) {
-                    int val = (int) masks[i][y1 + j][x1 + k];
-                    binValues[idx++] = Color.rgb(val, val, val);
-                }
-            }
-            int maskNewWidth = actualX2 - actualX1;
-            int maskNewHeight = actualY2 - actualY1;
-            maskBitmap.setPixels(binValues, 0, maskWidth, 0, 0, maskWidth, maskHeight);
-            Bitmap actualMaskBitmap = Bitmap.createScaledBitmap(maskBitmap, maskNewWidth, maskNewHeight, false);
+    private DetectionResult postprocess(Frame frame) {
+        return postprocess(frame, null);
+    }
 
-            finalBoxes.add(new int[]{actualX1, actualY1, actualX2, actualY2});
-            finalMasks.add(actualMaskBitmap);
-            finalScores.add(scores[i]);
-            finalLabels.add(classMapping.get((int)labels[i]));
+    // fill result after a reset, or a new one if null
+    private DetectionResult postprocess(Frame frame, DetectionResult result) {
+        metrics.begin(StageMetrics.Stage.POSTPROCESS);
+        ArrayList<InstanceSegPostprocessor.Instance> instances;
+        try {
+            instances = postprocessor.process(frame.arena, frame.n, frame.masks, frame.origWidth, frame.origHeight, frame.padX, frame.padY);
+        } finally {
+            arenaPool.offer(frame.arena);   // instances own their boxes and masks
+            frame.arena = null;
         }
 
-        return new DetectionResult(finalBoxes, finalMasks, finalScores, finalLabels);
-    }
-
-    private float calcBoxIoU(int[] box1, int[] box2) {
-        int x1 = Math.max(box1[0], box2[0]);
-        int y1 = Math.max(box1[1], box2[1]);
-        int x2 = Math.min(box1[2], box2[2]);
-        int y2 = Math.min(box1[3], box2[3]);
-        float inter = Math.max(0, x2 - x1 + 1) * Math.max(0, y2 - y1 + 1);
-        if (inter == 0) {
-            return 0;
+        if (result == null) {
+            result = new DetectionResult(classes, instances.size());
+        } else {
+            result.reset();
+        }
+        for (InstanceSegPostprocessor.Instance instance : instances) {
+            // cropped mask stays at model resolution, upscaled to the box in original image when read
+            InstanceMask mask = InstanceMask.of(instance, inferSize, frame.origWidth, frame.origHeight, frame.padX, frame.padY);
+            result.add(instance.box, instance.score, instance.label, mask);
         }
-        float area1 = (box1[2] - box1[0] + 1) * (box1[3] - box1[1] + 1);
-        float area2 = (box2[2] - box2[0] + 1) * (box2[3] - box2[1] + 1);
-        return inter / (area1 + area2 - inter);
-    }
 
+        metrics.end(StageMetrics.Stage.POSTPROCESS);
+        return result;
+    }
 }
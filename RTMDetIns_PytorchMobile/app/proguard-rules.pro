@@ -18,4 +18,11 @@
 
 # If you keep the line number information, uncomment this to
 # hide the original source file name.
-#-renamesourcefileattribute SourceFile
\ No newline at end of file
+#-renamesourcefileattribute SourceFile
+
+# org.pytorch.TensorBuffers lives in the pytorch package to reach the package-private Tensor.getRawDataBuffer(),
+# keep both from being renamed or repackaged
+-keep class org.pytorch.TensorBuffers { *; }
+-keepclassmembers class org.pytorch.Tensor {
+    java.nio.Buffer getRawDataBuffer();
+}
@@ -15,18 +15,30 @@ import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.MediaStore;
 import android.view.View;
 import android.widget.Button;
 import android.Manifest;
 import android.widget.ImageView;
 
+import com.example.rtmdet_ins_core.ArgbFrame;
+import com.example.rtmdet_ins_core.InferenceExecutor;
+import com.example.rtmdet_ins_core.StageMetrics;
+import com.example.rtmdet_ins_core.StreamingExecutor;
+import com.example.rtmdet_ins_core.TemporalTracker;
 import com.google.android.material.snackbar.Snackbar;
 
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
 
 public class MainActivity extends AppCompatActivity {
     private ActivityResultLauncher<Intent> imagePickerActivityResultLauncher;
-//    private static final int MY_CAMERA_REQUEST_CODE = 100;
+    private static final int MY_CAMERA_REQUEST_CODE = 100;
     private static final int MY_GALLERY_REQUEST_CODE = 101;
 
     private static final int MAX_INPUT_SIZE = 1200;     // avoid OOM for large image
@@ -35,10 +47,27 @@ public class MainActivity extends AppCompatActivity {
     private static int INFER_SIZE;
     private static final int[] MASK_COLOR = {255, 0, 0};    // red
     private static final int[] BOX_COLOR = {0, 255, 0};     // green
+    private static final int POSTPROCESS_THREADS = 4;
+    private static final int METRICS_DUMP_SECONDS = 30;     // period of the stage latency report in the log
+    private static final int STREAM_WIDTH = 640, STREAM_HEIGHT = 480;   // smallest camera capture size used in live mode
+    private static final int FRAME_BITMAPS = 3;        // live frames kept for reuse once off screen
+    // live mode re-runs the detector every TRACK_KEYFRAME_INTERVAL frames or when the scene changes
+    private static final int TRACK_KEYFRAME_INTERVAL = 5;
+    private static final float TRACK_DIFF_THRESHOLD = 0.04F;   // mean absolute luma difference, 0 - 1
+    private static final float TRACK_IOU_THRESHOLD = 0.3F;
 
     private ObjectDetector objectDetector;
+    private InferenceExecutor<Bitmap, Bitmap> inferenceExecutor;
+    private StreamingExecutor<ArgbFrame, Bitmap> streamingExecutor;
+    private final DetectionRenderer renderer = new DetectionRenderer(BOX_COLOR, MASK_COLOR, 0.5f);   // used under the detector lock
+    // live frames that are off screen: taken by the streaming worker to draw on, given back by the UI thread once
+    // the next frame has replaced them in the output view
+    private final BlockingQueue<Bitmap> freeFrameBitmaps = new ArrayBlockingQueue<>(FRAME_BITMAPS);
+    private Bitmap shownFrameBitmap;    // live frame in the output view, only used on the UI thread
+    private final TemporalTracker tracker = new TemporalTracker(TRACK_KEYFRAME_INTERVAL, TRACK_DIFF_THRESHOLD, TRACK_IOU_THRESHOLD);
+    private ObjectDetector.DetectionResult trackedResult;  // last live detection, carried forward on static frames
     private ImageView inputImageView, outputImageView;
-    private Button selectImageBtn, detectBtn;
+    private Button selectImageBtn, detectBtn, liveBtn;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -49,16 +78,94 @@ public class MainActivity extends AppCompatActivity {
 
         INFER_SIZE = 640;
         objectDetector = new ObjectDetector(assetManager, "object_det/rtmdetins_s_640.pth", "object_det/classes.txt",  INFER_SIZE, 0.325F, 0.2F);
+        objectDetector.setPostprocessThreads(POSTPROCESS_THREADS);
+        objectDetector.setAllocationTracking(BuildConfig.DEBUG);     // costly, debug builds only
+        StageMetrics metrics = objectDetector.getMetrics();
+        metrics.startDump(METRICS_DUMP_SECONDS, TimeUnit.SECONDS, report -> {
+            System.out.println("[LOG] Stage latency:\n" + report);
+            if (streamingExecutor.isRunning()) {
+                System.out.println("[LOG] Live: " + streamingExecutor.getStats() + ", detector ran on " + tracker.getDetectedFrames()
+                        + " frames, skipped " + tracker.getSkippedFrames());
+            }
+        });
+
+        // Detect and draw on a worker thread, results are posted back to the UI thread
+        Handler mainHandler = new Handler(Looper.getMainLooper());
+        inferenceExecutor = new InferenceExecutor<>(this::detect, mainHandler::post);
+
+        // Live mode: detect on the latest camera frame, older frames are dropped while the detector is busy
+        streamingExecutor = new StreamingExecutor<>(new CameraFrameSource(this, STREAM_WIDTH, STREAM_HEIGHT), this::detect, new InferenceExecutor.Callback<Bitmap>() {
+            @Override
+            public void onResult(Bitmap outputBm) {
+                setOutputImage(outputBm);
+                if (shownFrameBitmap != null) {
+                    freeFrameBitmaps.offer(shownFrameBitmap);
+                }
+                shownFrameBitmap = outputBm;
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                error.printStackTrace();
+            }
+        }, mainHandler::post);
 
         initViews();
         setupEvents();
     }
 
+    // the single image and the live detection share the detector
+    private Bitmap detect(Bitmap bm) throws Exception {
+        synchronized (objectDetector) {
+            ObjectDetector.DetectionResult result = objectDetector.infer(bm);
+            // the input stays on screen: draw on a new bitmap, once per user request
+            StageMetrics metrics = objectDetector.getMetrics();
+            metrics.begin(StageMetrics.Stage.RENDER);
+            Bitmap outputBm = renderer.draw(result, bm, null);
+            metrics.end(StageMetrics.Stage.RENDER);
+            return outputBm;
+        }
+    }
+
+    private Bitmap detect(ArgbFrame frame) throws Exception {
+        synchronized (objectDetector) {
+            if (tracker.needsDetection(frame) || trackedResult == null) {
+                // the previous result has been drawn already, refill it
+                trackedResult = objectDetector.infer(frame, trackedResult);
+                tracker.update(trackedResult);
+            }
+            ObjectDetector.DetectionResult result = trackedResult;
+            // the renderer creates a new bitmap while every one is still on screen or on its way there
+            Bitmap frameBitmap = freeFrameBitmaps.poll();
+            StageMetrics metrics = objectDetector.getMetrics();
+            metrics.begin(StageMetrics.Stage.RENDER);
+            Bitmap outputBm = renderer.draw(result, frame, frameBitmap);
+            metrics.end(StageMetrics.Stage.RENDER);
+            return outputBm;
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        // release the camera
+        stopLive();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // release the model only after the running detections, if any, have finished: the live frame, then the
+        // single image
+        streamingExecutor.shutdown(() -> inferenceExecutor.shutdown(objectDetector::close));
+    }
+
     private void initViews() {
         inputImageView = findViewById(R.id.inputImageView);
         outputImageView = findViewById(R.id.outputImageView);
         selectImageBtn = findViewById(R.id.selectImageBtn);
         detectBtn = findViewById(R.id.detectBtn);
+        liveBtn = findViewById(R.id.liveBtn);
     }
 
     private void setupEvents() {
@@ -70,6 +177,17 @@ public class MainActivity extends AppCompatActivity {
             }
         });
 
+        liveBtn.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                if (streamingExecutor.isRunning()) {
+                    stopLive();
+                } else {
+                    startLive();
+                }
+            }
+        });
+
         detectBtn.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
@@ -80,14 +198,18 @@ public class MainActivity extends AppCompatActivity {
                     Snackbar.make(view, "Please select an image first", Snackbar.LENGTH_LONG).show();
                     return;
                 }
-                try {
-                    ObjectDetector.DetectionResult result = objectDetector.infer(bm);
-                    Bitmap outputBm = ImageUtils.drawDetectionResult(result, bm, BOX_COLOR, MASK_COLOR, 0.5f);
-                    setOutputImage(outputBm);
+                inferenceExecutor.submit(bm, new InferenceExecutor.Callback<Bitmap>() {
+                    @Override
+                    public void onResult(Bitmap outputBm) {
+                        setOutputImage(outputBm);
+                    }
 
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
+                    @Override
+                    public void onError(Throwable error) {
+                        error.printStackTrace();
+                        Snackbar.make(view, "Detection failed", Snackbar.LENGTH_LONG).show();
+                    }
+                });
             }
         });
     }
@@ -135,7 +257,39 @@ public class MainActivity extends AppCompatActivity {
         );
     }
 
+    private void startLive() {
+        if (checkSelfPermission(Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
+            requestPermissions(new String[]{Manifest.permission.CAMERA}, MY_CAMERA_REQUEST_CODE);
+            return;
+        }
+        inferenceExecutor.cancel();
+        inputImageView.setImageBitmap(null);
+        detectBtn.setEnabled(false);
+        selectImageBtn.setEnabled(false);
+        liveBtn.setText("Stop");
+        synchronized (objectDetector) {
+            tracker.reset();
+            trackedResult = null;
+        }
+        streamingExecutor.start();
+    }
+
+    private void stopLive() {
+        if (!streamingExecutor.isRunning()) {
+            return;
+        }
+        streamingExecutor.stop();
+        StreamingExecutor.Stats stats = streamingExecutor.getStats();
+        System.out.println("[LOG] Live: " + stats);
+        Snackbar.make(findViewById(R.id.parent), String.format(Locale.US, "%.1f FPS, %d of %d frames dropped", stats.fps, stats.dropped, stats.received), Snackbar.LENGTH_LONG).show();
+        detectBtn.setEnabled(true);
+        selectImageBtn.setEnabled(true);
+        liveBtn.setText("Live");
+    }
+
     private void setInputImage(Bitmap bitmap) {
+        // the running detection belongs to the previous image
+        inferenceExecutor.cancel();
         inputImageView.setImageBitmap(bitmap);
         outputImageView.setImageBitmap(null);
     }
@@ -149,14 +303,13 @@ public class MainActivity extends AppCompatActivity {
     public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
         super.onRequestPermissionsResult(requestCode, permissions, grantResults);
         switch (requestCode) {
-//            case MY_CAMERA_REQUEST_CODE:
-//                System.out.println(grantResults[0]);
-//                if (grantResults[0] != PackageManager.PERMISSION_GRANTED) {
-//                    Snackbar.make(findViewById(R.id.parent), "Can not access to camera", Snackbar.LENGTH_LONG).show();
-//                } else {
-//                    runImagePicker();
-//                }
-//                break;
+            case MY_CAMERA_REQUEST_CODE:
+                if (grantResults[0] != PackageManager.PERMISSION_GRANTED) {
+                    Snackbar.make(findViewById(R.id.parent), "Can not access to camera", Snackbar.LENGTH_LONG).show();
+                } else {
+                    startLive();
+                }
+                break;
             case MY_GALLERY_REQUEST_CODE:
                 if (grantResults[0] != PackageManager.PERMISSION_GRANTED) {
                     Snackbar.make(findViewById(R.id.parent), "Can not access to image gallery", Snackbar.LENGTH_LONG).show();
@@ -3,66 +3,118 @@ import android.content.Context;
 import android.content.res.AssetManager;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.Color;
+import android.os.Debug;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import com.example.rtmdet_ins_core.ArgbFrame;
+import com.example.rtmdet_ins_core.ClassTable;
+import com.example.rtmdet_ins_core.DetectorPool;
+import com.example.rtmdet_ins_core.Detections;
+import com.example.rtmdet_ins_core.FrameArena;
+import com.example.rtmdet_ins_core.InstanceMask;
+import com.example.rtmdet_ins_core.InstanceSegPostprocessor;
+import com.example.rtmdet_ins_core.LetterboxPreprocessor;
+import com.example.rtmdet_ins_core.MaskTensor;
+import com.example.rtmdet_ins_core.PipelinedExecutor;
+import com.example.rtmdet_ins_core.StageMetrics;
 
 import org.pytorch.IValue;
 import org.pytorch.LiteModuleLoader;
+import org.pytorch.PyTorchAndroid;
 import org.pytorch.Module;
 import org.pytorch.Tensor;
+import org.pytorch.TensorBuffers;
 
 
 public class ObjectDetector {
     // constant of current model family
     private static final int PAD_VAL = 114;
     private static final float NMS_BOX_IOU_THRES = 0.6F;
-    private static final float BOX_IOU_THRES = 0.7F;
-    private static final float MASK_IOU_THRES = 0.7F;
-    private static final float OVERLAP_THRES = 0.8F;
-    private static final float EPS = 1e-6F;
 
     private static final float[] MEAN = {103.53F, 116.28F, 123.675F};
     private static final float[] STD = {57.375F, 57.12F, 58.395F};
 
-    // constant of post-processing
-    private static final int BOX_THRES = 20;    // ignore too small boxes
+    private static final int PIPELINE_QUEUE_SIZE = 1;  // frames waiting in front of each pipeline stage
+    private static final int INPUT_BUFFER_SETS = PIPELINE_QUEUE_SIZE + 2;     // being filled, queued, in the runtime
+    private static final int ARENA_SETS = PIPELINE_QUEUE_SIZE + 2;            // being extracted, queued, in post-processing
 
-    static class DetectionResult {
-        public ArrayList<int[]> boxes;      // (n, 4) - format x1, y1, x2, y2
-        public ArrayList<Bitmap> masks;    // (n,) - bitmap of mask corresponding to box (size of mask = size of box)
-        public ArrayList<Float> scores;     // (n, ) - confidence score between 0 and 1
-        public ArrayList<String> labels;    // (n, ) - class label
+    /**
+     * Struct-of-arrays result (see {@link Detections}), reusable frame to frame with {@link #infer(ArgbFrame, DetectionResult)}.
+     */
+    static class DetectionResult extends Detections {
+        private Bitmap[] maskBitmaps;       // (capacity,) - created on first getMaskBitmap()
 
-        public DetectionResult(ArrayList<int[]> boxes, ArrayList<Bitmap> masks, ArrayList<Float> scores, ArrayList<String> labels) {
-            this.boxes = boxes;
-            this.masks = masks;
-            this.scores = scores;
-            this.labels = labels;
+        public DetectionResult(ClassTable classes, int capacity) {
+            super(classes, capacity);
+        }
+
+        @Override
+        public synchronized void reset() {
+            if (maskBitmaps != null) {
+                Arrays.fill(maskBitmaps, null);
+            }
+            super.reset();
+        }
+
+        /**
+         * Mask {@code i} as an ALPHA_8 bitmap with the size of its box (255 inside the instance, 0 elsewhere),
+         * created on first call.
+         */
+        public synchronized Bitmap getMaskBitmap(int i) {
+            if (maskBitmaps == null || maskBitmaps.length < masks.length) {
+                maskBitmaps = maskBitmaps == null ? new Bitmap[masks.length] : Arrays.copyOf(maskBitmaps, masks.length);
+            }
+            if (maskBitmaps[i] == null) {
+                InstanceMask mask = masks[i];
+                int width = Math.max(mask.getWidth(), 1), height = Math.max(mask.getHeight(), 1);
+                Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ALPHA_8);
+                byte[] pixels = new byte[bitmap.getRowBytes() * height];
+                mask.upscale(pixels, 0, bitmap.getRowBytes(), (byte) 255);
+                bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(pixels));
+                maskBitmaps[i] = bitmap;
+            }
+            return maskBitmaps[i];
         }
     }
 
 
     private Context context;
     private Resources resources;
-    private HashMap<Integer, String> classMapping;
+    private ClassTable classes;     // class names, shared by all results
     private final int inferSize;      // input size of the model
-    private final float commonThres;  // confidence threshold for common bounding box
-    private final float personThres;  // confidence threshold for person (special case)
+    private final LetterboxPreprocessor preprocessor;
+    private final InstanceSegPostprocessor postprocessor;
+    // direct input buffers written by the preprocessor and read by the runtime, a frame holds one until run()
+    private final BlockingQueue<FloatBuffer> inputPool = new ArrayBlockingQueue<>(INPUT_BUFFER_SETS);
+    // scratch of extract / post-processing, sized by the first outputs of the model and reused by later frames
+    private final BlockingQueue<FrameArena> arenaPool = new ArrayBlockingQueue<>(ARENA_SETS);
+    private PipelinedExecutor<Bitmap, Frame, Frame, DetectionResult> pipeline;    // created on first submit()
+    private final StageMetrics metrics = new StageMetrics();     // latency of every stage, see getMetrics()
 
     private final AssetManager assetManager;
     private Module model;
 
     public ObjectDetector(AssetManager assetManager, String modelPath, String classPath, int inferSize, float commonThres, float personThres) {
         this.inferSize = inferSize;
-        this.commonThres = commonThres;
-        this.personThres = personThres;
+        this.preprocessor = new LetterboxPreprocessor(inferSize, PAD_VAL, MEAN, STD);
+        this.postprocessor = new InstanceSegPostprocessor(inferSize, commonThres, personThres, NMS_BOX_IOU_THRES);
         this.assetManager = assetManager;
 
         readClasses(classPath);
+        allocateInputBuffers();
         try {
             createModel(modelPath);
         } catch (IOException e) {
@@ -70,14 +122,67 @@ public class ObjectDetector {
         }
     }
 
+    /**
+     * Pool of {@code size} detectors for concurrent inference, e.g. one per core on a multi-core device, each with its
+     * own module loaded from the asset. Pytorch Mobile has a single, process-wide thread pool: {@code numThreads}
+     * sets it for all the modules, so that {@code size * numThreads} stays around the number of cores.
+     */
+    public static DetectorPool<ObjectDetector> createPool(AssetManager assetManager, String modelPath, String classPath, int inferSize,
+                                                          float commonThres, float personThres, int size, int numThreads) {
+        if (numThreads > 0) {
+            PyTorchAndroid.setNumThreads(numThreads);
+        }
+        return new DetectorPool<>(size,
+                index -> new ObjectDetector(assetManager, modelPath, classPath, inferSize, commonThres, personThres),
+                ObjectDetector::close);
+    }
+
     private void createModel(String modelPath) throws IOException {
         model = LiteModuleLoader.loadModuleFromAsset(assetManager, modelPath);
         // warm up
-        float[] inputData = new float[inferSize * inferSize * 3];
-        Tensor inputTensor = Tensor.fromBlob(inputData, new long[]{1, 3, inferSize, inferSize});
+        Tensor inputTensor = Tensor.fromBlob(inputPool.peek(), new long[]{1, 3, inferSize, inferSize});
         IValue[] outputTensor = model.forward(IValue.from(inputTensor)).toTuple();
     }
 
+    /**
+     * Threads used for the pairwise mask comparisons of post-processing (1 = calling thread only).
+     */
+    public void setPostprocessThreads(int numThreads) {
+        postprocessor.setNumThreads(numThreads);
+    }
+
+    /**
+     * Latency histograms of pre-process, inference, extract and post-process, in both {@link #infer} and
+     * {@link #submit}. Rendering is not done here, callers can record it as {@link StageMetrics.Stage#RENDER}.
+     */
+    public StageMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Also count the bytes allocated by every stage. Allocation counting of the runtime has a small cost on every
+     * allocation of the app, so it is off by default.
+     */
+    @SuppressWarnings("deprecation")
+    public void setAllocationTracking(boolean enabled) {
+        if (enabled) {
+            Debug.startAllocCounting();
+            metrics.setAllocationCounter(Debug::getThreadAllocSize);
+        } else {
+            metrics.setAllocationCounter(null);
+            Debug.stopAllocCounting();
+        }
+    }
+
+    public synchronized void close() {
+        metrics.stopDump();
+        if (pipeline != null) {
+            pipeline.close();
+        }
+        postprocessor.close();
+        model.destroy();
+    }
+
     private void readClasses(String labelPath) {
         // read file
         InputStream inputStream = null;
@@ -87,336 +192,232 @@ public class ObjectDetector {
             e.printStackTrace();
         }
         // read lines
-        HashMap<Integer, String> readClasses = new HashMap<>();
-        int i = 0;
-        try (java.util.Scanner scanner = new java.util.Scanner(inputStream)) {
-            while (scanner.hasNextLine()) {
-                String line = scanner.nextLine();
-                readClasses.put(i, line);
-                i++;
-            }
-        }
-        classMapping = readClasses;
+        classes = ClassTable.read(inputStream);
     }
 
-    private static class PreprocessedImage {
-        public float[] imageData;
+    /**
+     * State of one image through the stages of detection.
+     */
+    private static class Frame {
+        public int origWidth;
+        public int origHeight;
+        public FloatBuffer inputBuffer;     // (1, 3, h, w) - normalized input, from inputPool
         public int padX;
         public int padY;
-
-        public PreprocessedImage(float[] imageData, int padX, int padY) {
-            this.imageData = imageData;
-            this.padX = padX;
-            this.padY = padY;
-        }
+        public IValue[] outputTensor;       // raw outputs of the model, views are taken by extract()
+        public FrameArena arena;            // raw boxes / scores / labels and scratch, from arenaPool until postprocess()
+        public int n;                       // number of raw detections
+        public MaskTensor masks;            // (n, h, w)
     }
 
-    private PreprocessedImage preprocess(Bitmap image) {
-        // Resize
-        Bitmap resizedBm = ImageUtils.resizeKeepRatio(image, inferSize);
-
-        // Pad
-        ImageUtils.PaddedImage paddedImage = ImageUtils.pad(resizedBm, inferSize, PAD_VAL);
-        Bitmap paddedBm = paddedImage.image;
-        int padX = paddedImage.padX;
-        int padY = paddedImage.padY;
-
-        // Convert to float array
-//        FloatBuffer imageData = ImageUtils.normalizeImage(paddedBm, MEAN, STD);
-        float[] imageData = ImageUtils.normalizeImage(paddedBm, MEAN, STD);
-
-        return new PreprocessedImage(imageData, padX, padY);
+    private Frame preprocess(Bitmap image) {
+        metrics.begin(StageMetrics.Stage.PREPROCESS);
+        Frame frame = letterbox(ImageUtils.readPixels(image), image.getWidth(), image.getHeight());
+        metrics.end(StageMetrics.Stage.PREPROCESS);
+        return frame;
     }
 
+    private Frame preprocess(ArgbFrame image) {
+        metrics.begin(StageMetrics.Stage.PREPROCESS);
+        Frame frame = letterbox(image.pixels, image.width, image.height);
+        metrics.end(StageMetrics.Stage.PREPROCESS);
+        return frame;
+    }
 
-    public DetectionResult infer(Bitmap inputBitmap) {
-        long startTime = 0L;
-        long endTime = 0L;
-        long totalTime = 0L;
-
-        int origWidth = inputBitmap.getWidth();
-        int origHeight = inputBitmap.getHeight();
-
-        ////////////////////////////////////////
-        // Preprocessing
-        startTime = System.currentTimeMillis();
+    private Frame letterbox(int[] pixels, int width, int height) {
+        Frame frame = new Frame();
+        frame.origWidth = width;
+        frame.origHeight = height;
 
-        PreprocessedImage preprocessedImage = preprocess(inputBitmap);
-        float[] inputData = preprocessedImage.imageData;
-        int padX = preprocessedImage.padX;
-        int padY = preprocessedImage.padY;
+        // Resize, pad and normalize in a single pass over the source pixels, straight into an input buffer
+        FloatBuffer inputBuffer = takeInputBuffer();
+        try {
+            LetterboxPreprocessor.Letterbox letterbox = preprocessor.process(pixels, frame.origWidth, frame.origHeight, inputBuffer);
+            frame.padX = letterbox.padX;
+            frame.padY = letterbox.padY;
+        } catch (RuntimeException e) {
+            inputPool.add(inputBuffer);
+            throw e;
+        }
+        frame.inputBuffer = inputBuffer;
 
-        // Create input tensor
-        Tensor inputTensor = Tensor.fromBlob(inputData, new long[]{1, 3, inferSize, inferSize});
+        return frame;
+    }
 
-        endTime = System.currentTimeMillis();
+    private void allocateInputBuffers() {
+        inputPool.clear();
+        for (int i = 0; i < INPUT_BUFFER_SETS; i++) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(3 * inferSize * inferSize * 4);
+            buffer.order(ByteOrder.nativeOrder());
+            inputPool.add(buffer.asFloatBuffer());
+        }
+    }
 
-        totalTime += (endTime - startTime);
-        System.out.println("[LOG] 1. Pre-process time: " + (endTime - startTime) + "ms");
+    private FloatBuffer takeInputBuffer() {
+        try {
+            return inputPool.take();    // waits until an earlier frame has been fed to the runtime
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
 
-        ////////////////////////////////////////
-        // Inference
+    private FrameArena takeArena(int n) {
+        FrameArena arena = arenaPool.poll();
+        if (arena == null) {
+            arena = new FrameArena(n);  // first frames, or the arena of a failed frame was not returned
+        }
+        arena.ensureCapacity(n);
+        return arena;
+    }
 
-        startTime = System.currentTimeMillis();
-        IValue[] outputTensor = model.forward(IValue.from(inputTensor)).toTuple();
-        endTime = System.currentTimeMillis();
-        totalTime += (endTime - startTime);
-        System.out.println("[LOG] 2. Inference time: " + (endTime - startTime) + "ms");
-
-        ////////////////////////////////////////
-        // Postprocessing
-
-        // Extract results from session
-        startTime = System.currentTimeMillis();
-        long[] labels = outputTensor[1].toTensor().getDataAsLongArray();  // in shape (1 * n)
-        float[] detsBuffer = outputTensor[0].toTensor().getDataAsFloatArray();  // in shape (1 * n * 5)
-        int[][] boxes = new int[detsBuffer.length / 5][4];     // in shape (n, 4) - [x1, y1, x2, y2]
-        float[] scores = new float[detsBuffer.length / 5];    // in shape (n)
-        for (int i = 0; i < detsBuffer.length / 5; i++) {
-            boxes[i] = new int[]{(int) detsBuffer[i * 5], (int) detsBuffer[i * 5 + 1], (int) detsBuffer[i * 5 + 2], (int) detsBuffer[i * 5 + 3]};
-            scores[i] = detsBuffer[i * 5 + 4];
+    // give back what a frame dropped by the pipeline still holds: input buffer, arena
+    private void release(Frame frame) {
+        if (frame.inputBuffer != null) {
+            inputPool.add(frame.inputBuffer);
+            frame.inputBuffer = null;
         }
-        detsBuffer = null;
-        byte[] masksBuffer = outputTensor[2].toTensor().getDataAsUnsignedByteArray();      // in shape (n * h * w)
-        byte[][][] masks = new byte[masksBuffer.length / (inferSize * inferSize)][inferSize][inferSize];
-        for (int i = 0; i < masksBuffer.length / (inferSize * inferSize); i++) {
-            for (int j = 0; j < inferSize; j++) {
-                for (int k = 0; k < inferSize; k++) {
-                    masks[i][j][k] = (byte) Math.round(masksBuffer[i * inferSize * inferSize + j * inferSize + k]);
-                }
-            }
+        frame.outputTensor = null;
+        if (frame.arena != null) {
+            arenaPool.offer(frame.arena);
+            frame.arena = null;
         }
-        masksBuffer = null;
-        endTime = System.currentTimeMillis();
-        totalTime += (endTime - startTime);
-        System.out.println("[LOG] 3. Extract result time: " + (endTime - startTime) + "ms");
-
-        startTime = System.currentTimeMillis();
-        DetectionResult result = postprocess(boxes, scores, labels, masks, origWidth, origHeight, padX, padY);
-        endTime = System.currentTimeMillis();
-
-        totalTime += (endTime - startTime);
-        System.out.println("[LOG] 4. Post-process time: " + (endTime - startTime) + "ms");
-
-        System.out.println("[LOG] Total time: " + totalTime + "ms");
-
-        return result;
     }
 
-    private DetectionResult postprocess(int[][] boxes, float[] scores, long[] labels, byte[][][] masks, int origWidth, int origHeight, int padX, int padY) {
-        int n = boxes.length;
-        boolean[] isSkipped = new boolean[n];
-
-        // 1. Filter our low score boxes
-        for (int i = 0; i < n; i++) {
-            if (scores[i] >= commonThres || (labels[i] == 0 && scores[i] >= personThres))
-                continue;
-            isSkipped[i] = true;
+    private void run(Frame frame) {
+        metrics.begin(StageMetrics.Stage.INFERENCE);
+        // every forward returns new output tensors, so frames in flight do not share memory
+        try {
+            Tensor inputTensor = Tensor.fromBlob(frame.inputBuffer, new long[]{1, 3, inferSize, inferSize});
+            frame.outputTensor = model.forward(IValue.from(inputTensor)).toTuple();
+        } finally {
+            inputPool.add(frame.inputBuffer);
+            frame.inputBuffer = null;
         }
+        metrics.end(StageMetrics.Stage.INFERENCE);
+    }
 
-        // 2. NMS
+    private void extract(Frame frame) {
+        metrics.begin(StageMetrics.Stage.EXTRACT);
+        // Extract results from session: views over the output tensors, nothing is copied
+        IValue[] outputTensor = frame.outputTensor;
+        LongBuffer labelsBuffer = TensorBuffers.longBuffer(outputTensor[1].toTensor());  // in shape (1 * n)
+        FloatBuffer detsBuffer = TensorBuffers.floatBuffer(outputTensor[0].toTensor());  // in shape (1 * n * 5)
+        int n = labelsBuffer.capacity();
+        FrameArena arena = takeArena(n);    // boxes in shape (n, 4) - [x1, y1, x2, y2]
         for (int i = 0; i < n; i++) {
-            if (isSkipped[i])
-                continue;
-
-            int[] box1 = boxes[i];
-
-            for (int j = i + 1; j < n; j++) {
-                if (isSkipped[j] || labels[i] != labels[j])
-                    continue;
-
-                int[] box2 = boxes[j];
-
-                float boxIoU = calcBoxIoU(box1, box2);
-
-                if (boxIoU > NMS_BOX_IOU_THRES) {
-                    if (scores[i] > scores[j]) {
-                        isSkipped[j] = true;
-                    } else {
-                        isSkipped[i] = true;
-                    }
-                }
-            }
+            int[] box = arena.boxes[i];
+            arena.labels[i] = labelsBuffer.get(i);
+            box[0] = (int) detsBuffer.get(i * 5);
+            box[1] = (int) detsBuffer.get(i * 5 + 1);
+            box[2] = (int) detsBuffer.get(i * 5 + 2);
+            box[3] = (int) detsBuffer.get(i * 5 + 3);
+            arena.scores[i] = detsBuffer.get(i * 5 + 4);
         }
+        Tensor maskOutput = outputTensor[2].toTensor();
+        long[] maskShape = maskOutput.shape();      // in shape (1, n, h, w)
+        int maskDims = maskShape.length;
+        frame.masks = new MaskTensor(TensorBuffers.byteBuffer(maskOutput),
+                (int) maskShape[maskDims - 3], (int) maskShape[maskDims - 2], (int) maskShape[maskDims - 1]);
+        frame.arena = arena;
+        frame.n = n;
+        metrics.end(StageMetrics.Stage.EXTRACT);
+    }
 
-        // 3. Normalize box coordinates (between 0 and infer size - 1)
-        for (int i = 0; i < n; i++) {
-            if (isSkipped[i])
-                continue;
 
-            int x1 = boxes[i][0];
-            int y1 = boxes[i][1];
-            int x2 = boxes[i][2];
-            int y2 = boxes[i][3];
+    public DetectionResult infer(Bitmap inputBitmap) {
+        // stages are timed into getMetrics()
+        Frame frame = preprocess(inputBitmap);
+        run(frame);
+        extract(frame);
+        return postprocess(frame);
+    }
 
-            if (x1 >= x2 || y1 >= y2) {
-                isSkipped[i] = true;
-                continue;
-            }
+    /**
+     * Detection on a video frame, e.g. from {@link CameraFrameSource}. The frame can be reused once this returns.
+     */
+    public DetectionResult infer(ArgbFrame inputFrame) {
+        return infer(inputFrame, null);
+    }
 
-            x1 = Math.min(Math.max(padX, x1), inferSize - 1 - padX);
-            y1 = Math.min(Math.max(padY, y1), inferSize - 1 - padY);
-            x2 = Math.min(Math.max(padX, x2), inferSize - 1 - padX);
-            y2 = Math.min(Math.max(padY, y2), inferSize - 1 - padY);
+    /**
+     * Same as {@link #infer(ArgbFrame)}, filling {@code result} (reset first) instead of a new result when not null,
+     * e.g. the previous result of a live stream once it has been drawn.
+     */
+    public DetectionResult infer(ArgbFrame inputFrame, DetectionResult result) {
+        Frame frame = preprocess(inputFrame);
+        run(frame);
+        extract(frame);
+        return postprocess(frame, result);
+    }
 
-            boxes[i][0] = x1; boxes[i][1] = y1; boxes[i][2] = x2; boxes[i][3] = y2;
+    /**
+     * Pipelined detection: pre-processing of the next image and post-processing of the previous one overlap
+     * with inference of the current one. Blocks while the pipeline is full. Do not call {@link #infer}
+     * concurrently with pending frames.
+     */
+    public synchronized Future<DetectionResult> submit(Bitmap inputBitmap) {
+        if (pipeline == null) {
+            pipeline = new PipelinedExecutor<>(this::preprocess, this::release, frame -> {
+                run(frame);
+                extract(frame);
+                return frame;
+            }, this::release, this::postprocess, PIPELINE_QUEUE_SIZE);
         }
+        return pipeline.submit(inputBitmap);
+    }
 
-        // 4. Reduce redundant boxes: moreover NMS + Merged overlapping boxes
-        HashMap<Integer, ArrayList<Integer>> mergeDict = new HashMap<>();
-        for (int i = 0; i < n; i++) {
-            if (isSkipped[i]) {
-                continue;
-            }
-            if (!mergeDict.containsKey(i)) {
-                mergeDict.put(i, new ArrayList<Integer>());
-            }
-            int[] box1 = boxes[i];
-
-            for (int j = i + 1; j < n; j++) {
-                if (isSkipped[j]) {
-                    continue;
-                }
-                if (!mergeDict.containsKey(j)) {
-                    mergeDict.put(j, new ArrayList<Integer>());
-                }
-                int[] box2 = boxes[j];
-
-                float boxIoU = calcBoxIoU(box1, box2);
-
-                // crop 2 masks to the same shape
-                int x1 = Math.min(box1[0], box2[0]);
-                int y1 = Math.min(box1[1], box2[1]);
-                int x2 = Math.max(box1[2], box2[2]);
-                int y2 = Math.max(box1[3], box2[3]);
-                // calculate mask IoU and overlap
-                float maskInter = 0, mask1Area = 0, mask2Area = 0;
-                for (int yy = y1; yy < y2; yy++) {
-                    for (int xx = x1; xx < x2; xx++) {
-                        byte mask1Value = masks[i][yy][xx];
-                        byte mask2Value = masks[j][yy][xx];
-                        mask1Area += mask1Value;
-                        mask2Area += mask2Value;
-                        maskInter += mask1Value * mask2Value;
-                    }
-                }
-
-                float maskIoU = (float) maskInter / (mask1Area + mask2Area - maskInter + EPS);
-                float mask1Overlap = (float) (maskInter / ((float) mask1Area + EPS));
-                float mask2Overlap = (float) (maskInter / ((float) mask2Area + EPS));
-
-                // check condition
-                if ((boxIoU > BOX_IOU_THRES && maskIoU > MASK_IOU_THRES) ||
-                        (labels[i] == labels[j] && (Math.max(mask1Overlap, mask2Overlap) > OVERLAP_THRES))) {
-                    if (scores[i] > scores[j]) {
-                        isSkipped[j] = true;
-                        mergeDict.get(i).add(j); mergeDict.get(i).addAll(mergeDict.get(j));
-                        mergeDict.remove(j);
-                    } else {
-                        isSkipped[i] = true;
-                        mergeDict.get(j).add(i); mergeDict.get(j).addAll(mergeDict.get(i));
-                        mergeDict.remove(i);
-                    }
-                }
-
-                if (isSkipped[i]) {
-                    break;
-                }
-            }
+    /**
+     * Detection on many images, e.g. a whole photo library: optimized for throughput rather than latency.
+     * Lite modules do not tell whether they were traced with a dynamic batch, so the images go through the
+     * pipeline of {@link #submit} one by one. Results are in the order of {@code images}.
+     */
+    public ArrayList<DetectionResult> inferBatch(List<Bitmap> images) {
+        ArrayList<Future<DetectionResult>> futures = new ArrayList<>();
+        for (Bitmap image : images) {
+            futures.add(submit(image));
         }
-
-        // 4. Merge masks
-        for (int i = 0; i < n; i++) {
-            if (isSkipped[i] || !mergeDict.containsKey(i)) {
-                continue;
+        ArrayList<DetectionResult> results = new ArrayList<>();
+        for (Future<DetectionResult> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
             }
+        }
+        return results;
+    }
 
-            int[] curBox = boxes[i];
-            byte[][] curMask = masks[i];
-
-            for (int j = 0; j < mergeDict.get(i).size(); j++) {
-                int idx = mergeDict.get(i).get(j);
-                int[] box2 = boxes[idx];
-                byte[][] mask2 = masks[idx];
-
-                // merge box
-                curBox[0] = Math.min(curBox[0], box2[0]);
-                curBox[1] = Math.min(curBox[1], box2[1]);
-                curBox[2] = Math.max(curBox[2], box2[2]);
-                curBox[3] = Math.max(curBox[3], box2[3]);
-                // merge mask
-                for (int k = box2[1]; k <= box2[3]; k++) {
-                    for (int l = box2[0]; l <= box2[2]; l++) {
-                        curMask[k][l] = (byte) Math.max(curMask[k][l], mask2[k][l]);
-                    }
-                }
-            }
+    private DetectionResult postprocess(Frame frame) {
+        return postprocess(frame, null);
+    }
 
-            boxes[i] = curBox;
-            masks[i] = curMask;
+    // fill result after a reset, or a new one if null
+    private DetectionResult postprocess(Frame frame, DetectionResult result) {
+        metrics.begin(StageMetrics.Stage.POSTPROCESS);
+        ArrayList<InstanceSegPostprocessor.Instance> instances;
+        try {
+            instances = postprocessor.process(frame.arena, frame.n, frame.masks, frame.origWidth, frame.origHeight, frame.padX, frame.padY);
+        } finally {
+            arenaPool.offer(frame.arena);   // instances own their boxes and masks
+            frame.arena = null;
         }
-        
-        // 5. Refine boxes coordinates
-        ArrayList<Float> finalScores = new ArrayList<>();
-        ArrayList<int[]> finalBoxes = new ArrayList<>();
-        ArrayList<String> finalLabels = new ArrayList<>();
-        ArrayList<Bitmap> finalMasks = new ArrayList<>();
 
-        for (int i = 0; i < n; i++) {
-            if (isSkipped[i]) {
-                continue;
-            }
-            
-            // actual box coordinates
-            int x1 = boxes[i][0];
-            int y1 = boxes[i][1];
-            int x2 = boxes[i][2];
-            int y2 = boxes[i][3];
-            int actualX1 = (int) ((x1 - padX) / (float) (inferSize - padX * 2) * origWidth);
-            int actualY1 = (int) ((y1 - padY) / (float) (inferSize - padY * 2) * origHeight);
-            int actualX2 = (int) ((x2 - padX) / (float) (inferSize - padX * 2) * origWidth);
-            int actualY2 = (int) ((y2 - padY) / (float) (inferSize - padY * 2) * origHeight);
-            // check box size
-            if ((actualX2 - actualX1 + 1) + (actualY2 - actualY1 + 1) < BOX_THRES)
-                continue;
-
-            // crop current mask (H x W) to final mask (same size with box)
-            int maskHeight = y2 - y1;
-            int maskWidth = x2 - x1;
-            Bitmap maskBitmap = Bitmap.createBitmap(maskWidth, maskHeight, Bitmap.Config.ARGB_8888);
-            int[] binValues = new int[maskWidth * maskHeight];
-            int idx = 0;
-            for (int j = 0; j < maskHeight; j++) {
-                for (int k = 0; k < maskWidth; k++) {
-                    int val = Math.round(masks[i][y1 + j][x1 + k]);
-                    binValues[idx++] = Color.rgb(val, val, val);
-                }
-            }
-            int maskNewWidth = actualX2 - actualX1;
-            int maskNewHeight = actualY2 - actualY1;
-            maskBitmap.setPixels(binValues, 0, maskWidth, 0, 0, maskWidth, maskHeight);
-            Bitmap actualMaskBitmap = Bitmap.createScaledBitmap(maskBitmap, maskNewWidth, maskNewHeight, false);
-
-            finalBoxes.add(new int[]{actualX1, actualY1, actualX2, actualY2});
-            finalMasks.add(actualMaskBitmap);
-            finalScores.add(scores[i]);
-            finalLabels.add(classMapping.get((int)labels[i]));
+        if (result == null) {
+            result = new DetectionResult(classes, instances.size());
+        } else {
+            result.reset();
         }
-        
-        return new DetectionResult(finalBoxes, finalMasks, finalScores, finalLabels);
-    }
-
-    private float calcBoxIoU(int[] box1, int[] box2) {
-        int x1 = Math.max(box1[0], box2[0]);
-        int y1 = Math.max(box1[1], box2[1]);
-        int x2 = Math.min(box1[2], box2[2]);
-        int y2 = Math.min(box1[3], box2[3]);
-        float inter = Math.max(0, x2 - x1 + 1) * Math.max(0, y2 - y1 + 1);
-        if (inter == 0) {
-            return 0;
+        for (InstanceSegPostprocessor.Instance instance : instances) {
+            // cropped mask stays at model resolution, upscaled to the box in original image when read
+            InstanceMask mask = InstanceMask.of(instance, inferSize, frame.origWidth, frame.origHeight, frame.padX, frame.padY);
+            result.add(instance.box, instance.score, instance.label, mask);
         }
-        float area1 = (box1[2] - box1[0] + 1) * (box1[3] - box1[1] + 1);
-        float area2 = (box2[2] - box2[0] + 1) * (box2[3] - box2[1] + 1);
-        return inter / (area1 + area2 - inter);
+
+        metrics.end(StageMetrics.Stage.POSTPROCESS);
+        return result;
     }
 }
@@ -0,0 +1,69 @@
+package org.pytorch;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * Views over the data of a {@link Tensor} without copying it.
+ * <p>
+ * The public getDataAs*Array() accessors copy the whole tensor into a new java array, which for the
+ * (1, 100, 640, 640) mask output means ~41 MB per frame. The underlying buffer is only reachable from
+ * this package, hence the location of this class.
+ * <p>
+ * {@code Tensor.getRawDataBuffer()} is package-private, so pytorch_android_lite is pinned to the version this was
+ * written against (see app/build.gradle) and the class is kept as is by R8 (see proguard-rules.pro). Should the
+ * method still be missing or inaccessible at runtime, the public copying accessors are used instead.
+ */
+public final class TensorBuffers {
+    private static volatile boolean rawBufferAvailable = true;
+
+    private TensorBuffers() {
+    }
+
+    public static ByteBuffer byteBuffer(Tensor tensor) {
+        checkType(tensor, DType.UINT8, DType.INT8);
+        Buffer buffer = rawDataBuffer(tensor);
+        if (buffer != null) {
+            return (ByteBuffer) buffer;
+        }
+        return ByteBuffer.wrap(tensor.dtype() == DType.UINT8 ? tensor.getDataAsUnsignedByteArray() : tensor.getDataAsByteArray());
+    }
+
+    public static FloatBuffer floatBuffer(Tensor tensor) {
+        checkType(tensor, DType.FLOAT32);
+        Buffer buffer = rawDataBuffer(tensor);
+        return buffer != null ? (FloatBuffer) buffer : FloatBuffer.wrap(tensor.getDataAsFloatArray());
+    }
+
+    public static LongBuffer longBuffer(Tensor tensor) {
+        checkType(tensor, DType.INT64);
+        Buffer buffer = rawDataBuffer(tensor);
+        return buffer != null ? (LongBuffer) buffer : LongBuffer.wrap(tensor.getDataAsLongArray());
+    }
+
+    // the raw buffer, or null if this version of the library does not expose it to the package
+    private static Buffer rawDataBuffer(Tensor tensor) {
+        if (!rawBufferAvailable) {
+            return null;
+        }
+        try {
+            return tensor.getRawDataBuffer();
+        } catch (LinkageError e) {
+            // NoSuchMethodError / IllegalAccessError after an upgrade of the library
+            System.out.println("[LOG] Tensor.getRawDataBuffer() not available, copying outputs: " + e);
+            rawBufferAvailable = false;
+            return null;
+        }
+    }
+
+    private static void checkType(Tensor tensor, DType... expected) {
+        for (DType dType : expected) {
+            if (tensor.dtype() == dType) {
+                return;
+            }
+        }
+        throw new IllegalStateException("Tensor of type " + tensor.dtype() + " can not be viewed as " + expected[0]);
+    }
+}
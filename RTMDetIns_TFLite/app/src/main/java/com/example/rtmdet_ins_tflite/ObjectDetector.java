@@ -6,143 +6,332 @@ import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.Color;
 import android.os.Build;
+import android.os.Debug;
 
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.example.rtmdet_ins_core.ArgbFrame;
+import com.example.rtmdet_ins_core.ClassTable;
+import com.example.rtmdet_ins_core.DetectorPool;
+import com.example.rtmdet_ins_core.Detections;
+import com.example.rtmdet_ins_core.FrameArena;
+import com.example.rtmdet_ins_core.InstanceMask;
+import com.example.rtmdet_ins_core.InstanceSegPostprocessor;
+import com.example.rtmdet_ins_core.LetterboxPreprocessor;
+import com.example.rtmdet_ins_core.MaskTensor;
+import com.example.rtmdet_ins_core.PipelinedExecutor;
+import com.example.rtmdet_ins_core.StageMetrics;
 
 import org.tensorflow.lite.DataType;
 import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
 import org.tensorflow.lite.gpu.CompatibilityList;
 import org.tensorflow.lite.gpu.GpuDelegate;
 import org.tensorflow.lite.nnapi.NnApiDelegate;
 
-import org.tensorflow.lite.support.tensorbuffer.TensorBuffer;
-
 
 public class ObjectDetector {
     // constant of current model family
     private static final int PAD_VAL = 114;
-    private static final float BOX_IOU_THRES = 0.7F;
-    private static final float MASK_IOU_THRES = 0.7F;
-    private static final float OVERLAP_THRES = 0.8F;
-    private static final float EPS = 1e-6F;
 
     private static final float[] MEAN = {103.53F, 116.28F, 123.675F};
     private static final float[] STD = {57.375F, 57.12F, 58.395F};
 
-    // constant of post-processing
-    private static final int BOX_THRES = 20;    // ignore too small boxes
+    private static final int PIPELINE_QUEUE_SIZE = 1;  // frames waiting in front of each pipeline stage
+    private static final int INPUT_BUFFER_SETS = PIPELINE_QUEUE_SIZE + 2;     // being filled, queued, in the runtime
+    private static final int OUTPUT_BUFFER_SETS = 2;   // inference of a frame overlaps post-processing of the previous one
+    private static final int BATCH_SIZE = 4;           // max images per run of inferBatch(), fewer on a small heap, see getBatchSize()
 
-    static class DetectionResult {
-        public ArrayList<int[]> boxes;      // (n, 4) - format x1, y1, x2, y2
-        public ArrayList<Bitmap> masks;    // (n,) - bitmap of mask corresponding to box (size of mask = size of box)
-        public ArrayList<Float> scores;     // (n, ) - confidence score between 0 and 1
-        public ArrayList<String> labels;    // (n, ) - class label
+    /**
+     * Struct-of-arrays result (see {@link Detections}), reusable frame to frame with {@link #infer(ArgbFrame, DetectionResult)}.
+     */
+    static class DetectionResult extends Detections {
+        private Bitmap[] maskBitmaps;       // (capacity,) - created on first getMaskBitmap()
 
-        public DetectionResult(ArrayList<int[]> boxes, ArrayList<Bitmap> masks, ArrayList<Float> scores, ArrayList<String> labels) {
-            this.boxes = boxes;
-            this.masks = masks;
-            this.scores = scores;
-            this.labels = labels;
+        public DetectionResult(ClassTable classes, int capacity) {
+            super(classes, capacity);
+        }
+
+        @Override
+        public synchronized void reset() {
+            if (maskBitmaps != null) {
+                Arrays.fill(maskBitmaps, null);
+            }
+            super.reset();
+        }
+
+        /**
+         * Mask {@code i} as an ALPHA_8 bitmap with the size of its box (255 inside the instance, 0 elsewhere),
+         * created on first call.
+         */
+        public synchronized Bitmap getMaskBitmap(int i) {
+            if (maskBitmaps == null || maskBitmaps.length < masks.length) {
+                maskBitmaps = maskBitmaps == null ? new Bitmap[masks.length] : Arrays.copyOf(maskBitmaps, masks.length);
+            }
+            if (maskBitmaps[i] == null) {
+                InstanceMask mask = masks[i];
+                int width = Math.max(mask.getWidth(), 1), height = Math.max(mask.getHeight(), 1);
+                Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ALPHA_8);
+                byte[] pixels = new byte[bitmap.getRowBytes() * height];
+                mask.upscale(pixels, 0, bitmap.getRowBytes(), (byte) 255);
+                bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(pixels));
+                maskBitmaps[i] = bitmap;
+            }
+            return maskBitmaps[i];
         }
     }
 
 
     private Context context;
     private Resources resources;
-    private HashMap<Integer, String> classMapping;
+    private ClassTable classes;     // class names, shared by all results
     private final int inferSize;      // input size of the model
-    private final float commonThres;  // confidence threshold for common bounding box
-    private final float personThres;  // confidence threshold for person (special case)
+    private final LetterboxPreprocessor preprocessor;
+    private final InstanceSegPostprocessor postprocessor;
+    // direct input buffers written by the preprocessor and read by the runtime, a frame holds one until run()
+    private final BlockingQueue<ByteBuffer> inputPool = new ArrayBlockingQueue<>(INPUT_BUFFER_SETS);
 
     private final AssetManager assetManager;
     private Interpreter interpreter = null;
 
+    /**
+     * Output buffers of one interpreter run and the detections decoded from them.
+     */
+    private static class OutputBuffers {
+        public final Map<Integer, Object> outputs = new HashMap<>();
+        public ByteBuffer labelsBuffer;    // (1, n) - int64
+        public ByteBuffer detsBuffer;      // (1, n, 5) - float32 [x1, y1, x2, y2, score]
+        public MaskTensor masks;           // (n, h, w) - view over the uint8 mask output
+        public FrameArena arena;           // (n,) labels / boxes / scores decoded from the buffers, and post-processing scratch
+        public boolean pooled = true;      // false for views over the batch outputs, not returned to outputPool
+    }
+
+    // output buffers of the interpreter, allocated once from the output tensor shapes and reused:
+    // a frame holds one set from run() until its masks are cropped
+    private final BlockingQueue<OutputBuffers> outputPool = new ArrayBlockingQueue<>(OUTPUT_BUFFER_SETS);
+    private int numDets;
+    private PipelinedExecutor<Bitmap, Frame, Frame, DetectionResult> pipeline;    // created on first submit()
+    private final StageMetrics metrics = new StageMetrics();     // latency of every stage, see getMetrics()
+    private boolean dynamicBatch;                   // whether the batch dimension of the model input is dynamic
+    private MappedByteBuffer readModel;             // kept for the batch interpreter
+    private int numThreads;
+    private int batchSize;                          // images per run of inferBatch(), 0 until computed
+    private Interpreter batchInterpreter;           // resized to batchSize once, created on first inferBatch()
+    private ByteBuffer batchInput;                  // (batchSize, ...) - created on first inferBatch()
+    private Map<Integer, Object> batchOutputs;      // outputs of a batchSize run
+    private ExecutorService batchExecutor;          // pre-processes the images of a batch in parallel
+    private FrameArena batchArena;                  // shared by the images of a batch, post-processed one after the other
+
     public ObjectDetector(AssetManager assetManager, String modelPath, String classPath, int inferSize, float commonThres, float personThres) {
+        this(assetManager, readModelFile(assetManager, modelPath), classPath, inferSize, commonThres, personThres, 0);
+    }
+
+    /**
+     * @param readModel memory-mapped .tflite file, shared by all the detectors of a {@link #createPool pool}
+     * @param numThreads CPU threads of the interpreter, 0 = TFLite default (4 on the CPU fallback)
+     */
+    private ObjectDetector(AssetManager assetManager, MappedByteBuffer readModel, String classPath, int inferSize, float commonThres, float personThres, int numThreads) {
         this.inferSize = inferSize;
-        this.commonThres = commonThres;
-        this.personThres = personThres;
+        this.postprocessor = new InstanceSegPostprocessor(inferSize, commonThres, personThres);
         this.assetManager = assetManager;
+        this.readModel = readModel;
+        this.numThreads = numThreads;
 
         readClasses(classPath);
         try {
-            createTFLiteModel(modelPath, true);
+            createTFLiteModel(readModel, true, numThreads);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        this.preprocessor = createPreprocessor();
+    }
+
+    /**
+     * Pool of {@code size} detectors for concurrent inference, e.g. one per core on a multi-core device. The model
+     * file is mapped once and its weights are shared by all the interpreters, each with {@code numThreads} threads,
+     * so that {@code size * numThreads} stays around the number of cores.
+     */
+    public static DetectorPool<ObjectDetector> createPool(AssetManager assetManager, String modelPath, String classPath, int inferSize,
+                                                          float commonThres, float personThres, int size, int numThreads) {
+        final MappedByteBuffer readModel = readModelFile(assetManager, modelPath);
+        return new DetectorPool<>(size,
+                index -> new ObjectDetector(assetManager, readModel, classPath, inferSize, commonThres, personThres, numThreads),
+                ObjectDetector::close);
+    }
+
+    /**
+     * Preprocessor matching the model input: float32, or raw uint8 / int8 with the scale and zero point of the
+     * input tensor for quantized models.
+     */
+    private LetterboxPreprocessor createPreprocessor() {
+        Tensor input = interpreter.getInputTensor(0);
+        LetterboxPreprocessor.Layout layout = getInputLayout();
+        DataType dataType = input.dataType();
+        if (dataType == DataType.FLOAT32) {
+            return new LetterboxPreprocessor(inferSize, PAD_VAL, MEAN, STD, layout);
+        }
+        if (dataType != DataType.UINT8 && dataType != DataType.INT8) {
+            throw new RuntimeException("Unsupported input type: " + dataType);
+        }
+
+        Tensor.QuantizationParams quantization = input.quantizationParams();
+        System.out.println("[LOG] Quantized " + dataType + " input, scale: " + quantization.getScale() + ", zero point: " + quantization.getZeroPoint());
+        LetterboxPreprocessor.InputType inputType = dataType == DataType.UINT8 ? LetterboxPreprocessor.InputType.UINT8 : LetterboxPreprocessor.InputType.INT8;
+        return new LetterboxPreprocessor(inferSize, PAD_VAL, MEAN, STD, layout, inputType, quantization.getScale(), quantization.getZeroPoint());
     }
 
-    private void createTFLiteModel(String modelPath, boolean useNNAPI) throws IOException {
-        MappedByteBuffer readModel = readModelFile(modelPath);
+    /**
+     * Layout of the model input, read from its shape: (1, h, w, 3) or (1, 3, h, w).
+     */
+    private LetterboxPreprocessor.Layout getInputLayout() {
+        int[] shape = interpreter.getInputTensor(0).shape();
+        if (shape.length == 4 && shape[3] == 3) {
+            return LetterboxPreprocessor.Layout.NHWC;
+        }
+        if (shape.length == 4 && shape[1] == 3) {
+            return LetterboxPreprocessor.Layout.NCHW;
+        }
+        throw new RuntimeException("Unsupported input shape: " + Arrays.toString(shape));
+    }
+
+    private void createTFLiteModel(MappedByteBuffer readModel, boolean useNNAPI, int numThreads) throws IOException {
         if (readModel == null) {
             throw new RuntimeException("Error reading model file");
         }
 
-        interpreter = null;
+        interpreter = createInterpreter(readModel, useNNAPI, numThreads, null);
 
+        allocateOutputBuffers();
+        allocateInputBuffers();
+        dynamicBatch = interpreter.getInputTensor(0).shapeSignature()[0] == -1;
+        System.out.println("[LOG] Dynamic batch: " + dynamicBatch);
+
+        // warm up
+        Object[] input = {inputPool.peek()};
+        interpreter.runForMultipleInputsOutputs(input, outputPool.peek().outputs);
+    }
+
+    /**
+     * Interpreter on the mapped model, delegated to NNAPI if possible, else to the GPU, else on the CPU.
+     *
+     * @param inputShape shape the input is resized to before allocating the tensors, null to keep the one of the
+     *                   model. A delegate may reject the resized graph (e.g. an NNAPI driver or the GPU without
+     *                   support for a larger batch), the next one is then tried, down to the CPU which takes any
+     *                   shape.
+     */
+    private static Interpreter createInterpreter(MappedByteBuffer readModel, boolean useNNAPI, int numThreads, int[] inputShape) {
         // NNAPI
-        try {
-            Interpreter.Options options = new Interpreter.Options();
-            NnApiDelegate.Options nnApiDelegateOptions = new NnApiDelegate.Options();
-            nnApiDelegateOptions.setAllowFp16(true);
-            NnApiDelegate nnApiDelegate = new NnApiDelegate(nnApiDelegateOptions);
-            options.addDelegate(nnApiDelegate);
-            interpreter = new Interpreter(readModel, options);
-            System.out.println("[LOG] Use NNAPI for inference");
-        }
-        catch (Exception e) {
-            System.out.println("[LOG] Use NNAPI delegate failed");
-
-//            try {
-//                Interpreter.Options options = new Interpreter.Options();
-//                options.setUseXNNPACK(true);
-//                interpreter = new Interpreter(readModel, options);
-//                System.out.println("[LOG] Use XNNPACK delegate for inference");
-//            }
-//            catch (Exception ex) {
-//                System.out.println("[LOG] Use XNNPACK delegate failed");
+        if (useNNAPI) {
+            try {
                 Interpreter.Options options = new Interpreter.Options();
-                String msg = "";
-
-                // GPU
-                CompatibilityList compatList = new CompatibilityList();
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && compatList.isDelegateSupportedOnThisDevice()) {
-                    GpuDelegate gpuDelegate = new GpuDelegate();
-                    options.addDelegate(gpuDelegate);
-                    msg = "[LOG] Use GPU for inference";
-                }
-                else {
-                    msg = "[LOG] Use more CPU threads for inference";
-                    options.setNumThreads(4);
+                if (numThreads > 0) {
+                    options.setNumThreads(numThreads);
                 }
-                try {
-                    interpreter = new Interpreter(readModel, options);
-                    System.out.println(msg);
-                } catch (Exception exx) {
-                    System.out.println("[LOG] Can't apply delegate for inference");
-                    interpreter = new Interpreter(readModel);
-                }
-//            }
+                NnApiDelegate.Options nnApiDelegateOptions = new NnApiDelegate.Options();
+                nnApiDelegateOptions.setAllowFp16(true);
+                NnApiDelegate nnApiDelegate = new NnApiDelegate(nnApiDelegateOptions);
+                options.addDelegate(nnApiDelegate);
+                Interpreter interpreter = openInterpreter(readModel, options, inputShape);
+                System.out.println("[LOG] Use NNAPI for inference");
+                return interpreter;
+            }
+            catch (Exception e) {
+                System.out.println("[LOG] Use NNAPI delegate failed");
+            }
         }
 
-        // warm up
-        float[] inputData = new float[inferSize * inferSize * 3];
-        TensorBuffer inputTensor = TensorBuffer.createFixedSize(new int[]{1, inferSize, inferSize, 3}, DataType.FLOAT32);
-        inputTensor.loadArray(inputData);
-        Object[] input = {inputTensor.getBuffer()};
-        Map<Integer, Object> outputs = new HashMap<>();
-        interpreter.runForMultipleInputsOutputs(input, outputs);
+//        try {
+//            Interpreter.Options options = new Interpreter.Options();
+//            options.setUseXNNPACK(true);
+//            interpreter = new Interpreter(readModel, options);
+//            System.out.println("[LOG] Use XNNPACK delegate for inference");
+//        }
+//        catch (Exception ex) {
+//            System.out.println("[LOG] Use XNNPACK delegate failed");
+//        }
+        Interpreter.Options options = new Interpreter.Options();
+        String msg = "";
+
+        // GPU
+        CompatibilityList compatList = new CompatibilityList();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && compatList.isDelegateSupportedOnThisDevice()) {
+            GpuDelegate gpuDelegate = new GpuDelegate();
+            options.addDelegate(gpuDelegate);
+            msg = "[LOG] Use GPU for inference";
+        }
+        else {
+            msg = "[LOG] Use more CPU threads for inference";
+            options.setNumThreads(numThreads > 0 ? numThreads : 4);
+        }
+        try {
+            Interpreter interpreter = openInterpreter(readModel, options, inputShape);
+            System.out.println(msg);
+            return interpreter;
+        } catch (Exception exx) {
+            System.out.println("[LOG] Can't apply delegate for inference");
+        }
+        Interpreter.Options cpuOptions = new Interpreter.Options();
+        if (numThreads > 0) {
+            cpuOptions.setNumThreads(numThreads);
+        }
+        return openInterpreter(readModel, cpuOptions, inputShape);
+    }
+
+    // the delegates are applied again when the tensors of the resized input are allocated, failing there if they
+    // can't run it
+    private static Interpreter openInterpreter(MappedByteBuffer readModel, Interpreter.Options options, int[] inputShape) {
+        Interpreter interpreter = new Interpreter(readModel, options);
+        if (inputShape != null) {
+            try {
+                interpreter.resizeInput(0, inputShape);
+                interpreter.allocateTensors();
+            } catch (RuntimeException e) {
+                interpreter.close();
+                throw e;
+            }
+        }
+        return interpreter;
     }
 
-    private MappedByteBuffer  readModelFile(String modelPath) throws IOException {
+    private void allocateOutputBuffers() {
+        outputPool.clear();
+        int[] maskShape = interpreter.getOutputTensor(2).shape();   // (1, n, h, w)
+        numDets = maskShape[1];
+
+        for (int k = 0; k < OUTPUT_BUFFER_SETS; k++) {
+            OutputBuffers buffers = new OutputBuffers();
+            for (int i = 0; i < interpreter.getOutputTensorCount(); i++) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(interpreter.getOutputTensor(i).numBytes());
+                buffer.order(ByteOrder.nativeOrder());
+                buffers.outputs.put(i, buffer);
+            }
+            buffers.labelsBuffer = (ByteBuffer) buffers.outputs.get(0);
+            buffers.detsBuffer = (ByteBuffer) buffers.outputs.get(1);
+            buffers.masks = new MaskTensor((ByteBuffer) buffers.outputs.get(2), maskShape[1], maskShape[2], maskShape[3]);
+            buffers.arena = new FrameArena(numDets);
+            outputPool.add(buffers);
+        }
+    }
+
+    private static MappedByteBuffer readModelFile(AssetManager assetManager, String modelPath) {
         AssetFileDescriptor fileDescriptor = null;
         try {
             fileDescriptor = assetManager.openFd(modelPath);
@@ -158,6 +347,51 @@ public class ObjectDetector {
         return null;
     }
 
+    /**
+     * Threads used for the pairwise mask comparisons of post-processing (1 = calling thread only).
+     */
+    public void setPostprocessThreads(int numThreads) {
+        postprocessor.setNumThreads(numThreads);
+    }
+
+    /**
+     * Latency histograms of pre-process, inference, extract and post-process, in both {@link #infer} and
+     * {@link #submit}. Rendering is not done here, callers can record it as {@link StageMetrics.Stage#RENDER}.
+     */
+    public StageMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Also count the bytes allocated by every stage. Allocation counting of the runtime has a small cost on every
+     * allocation of the app, so it is off by default.
+     */
+    @SuppressWarnings("deprecation")
+    public void setAllocationTracking(boolean enabled) {
+        if (enabled) {
+            Debug.startAllocCounting();
+            metrics.setAllocationCounter(Debug::getThreadAllocSize);
+        } else {
+            metrics.setAllocationCounter(null);
+            Debug.stopAllocCounting();
+        }
+    }
+
+    public synchronized void close() {
+        metrics.stopDump();
+        if (pipeline != null) {
+            pipeline.close();
+        }
+        if (batchExecutor != null) {
+            batchExecutor.shutdown();
+        }
+        postprocessor.close();
+        interpreter.close();
+        if (batchInterpreter != null) {
+            batchInterpreter.close();
+        }
+    }
+
     private void readClasses(String labelPath) {
         // read file
         InputStream inputStream = null;
@@ -167,312 +401,365 @@ public class ObjectDetector {
             e.printStackTrace();
         }
         // read lines
-        HashMap<Integer, String> readClasses = new HashMap<>();
-        int i = 0;
-        try (java.util.Scanner scanner = new java.util.Scanner(inputStream)) {
-            while (scanner.hasNextLine()) {
-                String line = scanner.nextLine();
-                readClasses.put(i, line);
-                i++;
-            }
-        }
-        classMapping = readClasses;
+        classes = ClassTable.read(inputStream);
     }
 
-    private static class PreprocessedImage {
-        public float[] imageData;
+    /**
+     * State of one image through the stages of detection.
+     */
+    private static class Frame {
+        public int origWidth;
+        public int origHeight;
+        public ByteBuffer inputBuffer;      // normalized input in the model layout and type, from inputPool
         public int padX;
         public int padY;
-
-        public PreprocessedImage(float[] imageData, int padX, int padY) {
-            this.imageData = imageData;
-            this.padX = padX;
-            this.padY = padY;
-        }
+        public OutputBuffers outputBuffers; // held from run() until post-processing
     }
 
-    private PreprocessedImage preprocess(Bitmap image) {
-        // Resize
-        Bitmap resizedBm = ImageUtils.resizeKeepRatio(image, inferSize);
-
-        // Pad
-        ImageUtils.PaddedImage paddedImage = ImageUtils.pad(resizedBm, inferSize, PAD_VAL);
-        Bitmap paddedBm = paddedImage.image;
-        int padX = paddedImage.padX;
-        int padY = paddedImage.padY;
-
-        // Convert to float array
-//        FloatBuffer imageData = ImageUtils.normalizeImage(paddedBm, MEAN, STD);
-        float[] imageData = ImageUtils.normalizeImage(paddedBm, MEAN, STD);
+    private Frame preprocess(Bitmap image) {
+        metrics.begin(StageMetrics.Stage.PREPROCESS);
+        Frame frame = letterbox(ImageUtils.readPixels(image), image.getWidth(), image.getHeight());
+        metrics.end(StageMetrics.Stage.PREPROCESS);
+        return frame;
+    }
 
-        return new PreprocessedImage(imageData, padX, padY);
+    private Frame preprocess(ArgbFrame image) {
+        metrics.begin(StageMetrics.Stage.PREPROCESS);
+        Frame frame = letterbox(image.pixels, image.width, image.height);
+        metrics.end(StageMetrics.Stage.PREPROCESS);
+        return frame;
     }
 
+    private Frame letterbox(int[] pixels, int width, int height) {
+        Frame frame = new Frame();
+        frame.origWidth = width;
+        frame.origHeight = height;
 
-    public DetectionResult infer(Bitmap inputBitmap) {
-        long startTime = 0L;
-        long endTime = 0L;
-        long totalTime = 0L;
+        // Resize, pad and normalize in a single pass over the source pixels, straight into an input buffer
+        ByteBuffer inputBuffer = takeInputBuffer();
+        try {
+            LetterboxPreprocessor.Letterbox letterbox = preprocessor.process(pixels, frame.origWidth, frame.origHeight, inputBuffer);
+            frame.padX = letterbox.padX;
+            frame.padY = letterbox.padY;
+        } catch (RuntimeException e) {
+            inputPool.add(inputBuffer);
+            throw e;
+        }
+        frame.inputBuffer = inputBuffer;
 
-        int origWidth = inputBitmap.getWidth();
-        int origHeight = inputBitmap.getHeight();
+        return frame;
+    }
 
-        ////////////////////////////////////////
-        // Preprocessing
-        startTime = System.currentTimeMillis();
+    private void allocateInputBuffers() {
+        inputPool.clear();
+        for (int i = 0; i < INPUT_BUFFER_SETS; i++) {
+            // float32 or quantized bytes, in the model layout
+            ByteBuffer buffer = ByteBuffer.allocateDirect(interpreter.getInputTensor(0).numBytes());
+            buffer.order(ByteOrder.nativeOrder());
+            inputPool.add(buffer);
+        }
+    }
 
-        PreprocessedImage preprocessedImage = preprocess(inputBitmap);
-//        FloatBuffer inputData = preprocessedImage.imageData;
-        float[] inputData = preprocessedImage.imageData;
-        int padX = preprocessedImage.padX;
-        int padY = preprocessedImage.padY;
+    private ByteBuffer takeInputBuffer() {
+        try {
+            return inputPool.take();    // waits until an earlier frame has been fed to the runtime
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
 
-        // Create input tensor
-        TensorBuffer inputTensor = TensorBuffer.createFixedSize(new int[]{1, inferSize, inferSize, 3}, DataType.FLOAT32);
-        inputTensor.loadArray(inputData);
+    // give back what a frame dropped by the pipeline still holds: input and output buffers
+    private void release(Frame frame) {
+        if (frame.inputBuffer != null) {
+            inputPool.add(frame.inputBuffer);
+            frame.inputBuffer = null;
+        }
+        if (frame.outputBuffers != null) {
+            if (frame.outputBuffers.pooled) {
+                outputPool.add(frame.outputBuffers);
+            }
+            frame.outputBuffers = null;
+        }
+    }
 
-        endTime = System.currentTimeMillis();
+    private void run(Frame frame) {
+        OutputBuffers buffers;
+        try {
+            buffers = outputPool.take();    // waits for the post-processing of an earlier frame
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
 
-        totalTime += (endTime - startTime);
-        System.out.println("[LOG] 1. Pre-process time: " + (endTime - startTime) + "ms");
+        metrics.begin(StageMetrics.Stage.INFERENCE);
+        try {
+            Object[] input = {frame.inputBuffer};
+            for (Object buffer : buffers.outputs.values()) {
+                ((ByteBuffer) buffer).rewind();
+            }
+            interpreter.runForMultipleInputsOutputs(input, buffers.outputs);
+        } catch (RuntimeException e) {
+            outputPool.add(buffers);
+            throw e;
+        } finally {
+            inputPool.add(frame.inputBuffer);
+            frame.inputBuffer = null;
+        }
+        frame.outputBuffers = buffers;
+        metrics.end(StageMetrics.Stage.INFERENCE);
+    }
 
-        ////////////////////////////////////////
-        // Inference
+    private void extract(Frame frame) {
+        metrics.begin(StageMetrics.Stage.EXTRACT);
+        // Extract results from the output buffers (masks are read in place)
+        OutputBuffers buffers = frame.outputBuffers;
+        ByteBuffer labelsBuffer = buffers.labelsBuffer;
+        ByteBuffer detsBuffer = buffers.detsBuffer;
+        FrameArena arena = buffers.arena;
+        for (int i = 0; i < numDets; i++) {
+            arena.labels[i] = labelsBuffer.getLong(i * 8);
+            int offset = i * 5 * 4;
+            int[] box = arena.boxes[i];
+            box[0] = (int) detsBuffer.getFloat(offset);
+            box[1] = (int) detsBuffer.getFloat(offset + 4);
+            box[2] = (int) detsBuffer.getFloat(offset + 8);
+            box[3] = (int) detsBuffer.getFloat(offset + 12);
+            arena.scores[i] = detsBuffer.getFloat(offset + 16);
+        }
+        metrics.end(StageMetrics.Stage.EXTRACT);
+    }
 
-        startTime = System.currentTimeMillis();
-        Object[] input = {inputTensor.getBuffer()};
-        Map<Integer, Object> outputs = new HashMap<>();
-        outputs.put(0, new long[1][100]);
-        outputs.put(1, new float[1][100][5]);
-        outputs.put(2, new byte[1][100][inferSize][inferSize]);
-        interpreter.runForMultipleInputsOutputs(input, outputs);
-        endTime = System.currentTimeMillis();
 
-        totalTime += (endTime - startTime);
-        System.out.println("[LOG] 2. Inference time: " + (endTime - startTime) + "ms");
+    public DetectionResult infer(Bitmap inputBitmap) {
+        // stages are timed into getMetrics()
+        Frame frame = preprocess(inputBitmap);
+        run(frame);
+        extract(frame);
+        return postprocess(frame);
+    }
 
-        ////////////////////////////////////////
-        // Postprocessing
+    /**
+     * Detection on a video frame, e.g. from {@link CameraFrameSource}. The frame can be reused once this returns.
+     */
+    public DetectionResult infer(ArgbFrame inputFrame) {
+        return infer(inputFrame, null);
+    }
 
-        startTime = System.currentTimeMillis();
+    /**
+     * Same as {@link #infer(ArgbFrame)}, filling {@code result} (reset first) instead of a new result when not null,
+     * e.g. the previous result of a live stream once it has been drawn.
+     */
+    public DetectionResult infer(ArgbFrame inputFrame, DetectionResult result) {
+        Frame frame = preprocess(inputFrame);
+        run(frame);
+        extract(frame);
+        return postprocess(frame, result);
+    }
 
-        // Extract results from session
-        long[] labels = ((long[][]) outputs.get(0))[0];  // in shape (n)
-        float[][] dets = ((float[][][]) outputs.get(1))[0];  // in shape (n, 5) - [x1, y1, x2, y2, score]
-        int[][] boxes = new int[dets.length][4];     // in shape (n, 4) - [x1, y1, x2, y2]
-        float[] scores = new float[dets.length];    // in shape (n)
-        for (int i = 0; i < dets.length; i++) {
-            boxes[i] = new int[]{(int) dets[i][0], (int) dets[i][1], (int) dets[i][2], (int) dets[i][3]};
-            scores[i] = dets[i][4];
+    /**
+     * Pipelined detection: pre-processing of the next image and post-processing of the previous one overlap
+     * with inference of the current one. Blocks while the pipeline is full. Do not call {@link #infer}
+     * concurrently with pending frames.
+     */
+    public synchronized Future<DetectionResult> submit(Bitmap inputBitmap) {
+        if (pipeline == null) {
+            pipeline = new PipelinedExecutor<>(this::preprocess, this::release, frame -> {
+                run(frame);
+                extract(frame);
+                return frame;
+            }, this::release, this::postprocess, PIPELINE_QUEUE_SIZE);
         }
-        byte[][][] masks = ((byte[][][][]) outputs.get(2))[0];      // in shape (n, h, w)
+        return pipeline.submit(inputBitmap);
+    }
 
-        endTime = System.currentTimeMillis();
-//
-        totalTime += (endTime - startTime);
-        System.out.println("[LOG] 3. Extract result time: " + (endTime - startTime) + "ms");
-//
-        startTime = System.currentTimeMillis();
-        DetectionResult result = postprocess(boxes, scores, labels, masks, origWidth, origHeight, padX, padY);
-        endTime = System.currentTimeMillis();
+    /**
+     * Detection on many images, e.g. a whole photo library: optimized for throughput rather than latency.
+     * Models converted with a dynamic batch run {@link #getBatchSize} images at once on an interpreter of their own,
+     * pre-processed in parallel; otherwise the images go through the pipeline of {@link #submit}. Results are in the
+     * order of {@code images}.
+     */
+    public ArrayList<DetectionResult> inferBatch(List<Bitmap> images) {
+        ArrayList<DetectionResult> results = new ArrayList<>();
+        int batchSize = getBatchSize();
+        if (batchSize < 2) {
+            // batch of 1 only: overlap the stages of consecutive images instead
+            ArrayList<Future<DetectionResult>> futures = new ArrayList<>();
+            for (Bitmap image : images) {
+                futures.add(submit(image));
+            }
+            for (Future<DetectionResult> future : futures) {
+                results.add(getResult(future));
+            }
+            return results;
+        }
 
-        totalTime += (endTime - startTime);
-        System.out.println("[LOG] 4. Post-process time: " + (endTime - startTime) + "ms");
+        for (int start = 0; start < images.size(); start += batchSize) {
+            results.addAll(runBatch(images.subList(start, Math.min(images.size(), start + batchSize))));
+        }
+        return results;
+    }
 
-        System.out.println("[LOG] Total time: " + totalTime + "ms");
+    /**
+     * Images per run of {@link #inferBatch}, 1 if the model has a fixed batch. The outputs of a run (~40 MB of masks
+     * per image for 100 detections at 640x640) take at most a quarter of the heap size, used as the memory budget
+     * of the app.
+     */
+    public synchronized int getBatchSize() {
+        if (batchSize > 0) {
+            return batchSize;
+        }
+        if (!dynamicBatch) {
+            batchSize = 1;
+            return batchSize;
+        }
 
-        return result;
+        long outputBytes = 0;   // of one image
+        for (int i = 0; i < interpreter.getOutputTensorCount(); i++) {
+            outputBytes += interpreter.getOutputTensor(i).numBytes();
+        }
+        long budget = Runtime.getRuntime().maxMemory() / 4;
+        batchSize = (int) Math.max(1, Math.min(BATCH_SIZE, budget / outputBytes));
+        System.out.println("[LOG] Batch size: " + batchSize + " (" + outputBytes / (1024 * 1024) + " MB of outputs per image)");
+        return batchSize;
     }
 
-    private DetectionResult postprocess(int[][] boxes, float[] scores, long[] labels, byte[][][] masks, int origWidth, int origHeight, int padX, int padY) {
-        int n = boxes.length;
-        boolean[] isSkipped = new boolean[n];
+    /**
+     * Interpreter of {@link #inferBatch}, on the same mapped model, resized to {@code batchSize} once: the
+     * interpreter of {@link #infer} / {@link #submit} is never resized, so both can run at the same time. Same
+     * NNAPI / GPU / CPU choice as the main interpreter, see {@link #createInterpreter} for the fallback when a
+     * delegate can't run the batch.
+     */
+    private void createBatchInterpreter() {
+        int[] batchShape = interpreter.getInputTensor(0).shape().clone();
+        batchShape[0] = batchSize;
+        batchInterpreter = createInterpreter(readModel, true, numThreads, batchShape);
+
+        batchInput = ByteBuffer.allocateDirect(batchInterpreter.getInputTensor(0).numBytes());
+        batchInput.order(ByteOrder.nativeOrder());
+        batchOutputs = new HashMap<>();
+        for (int i = 0; i < batchInterpreter.getOutputTensorCount(); i++) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(batchInterpreter.getOutputTensor(i).numBytes());
+            buffer.order(ByteOrder.nativeOrder());
+            batchOutputs.put(i, buffer);
+        }
+        batchExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+            Thread thread = new Thread(r, "batch-preprocess");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
 
-        // 1. Filter our low score boxes
-        for (int i = 0; i < n; i++) {
-            if (scores[i] >= commonThres || (labels[i] == 0 && scores[i] >= personThres))
-                continue;
-            isSkipped[i] = true;
+    private static <T> T getResult(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
         }
+    }
 
-        // 2. Normalize box coordinates (between 0 and infer size - 1)
-        for (int i = 0; i < n; i++) {
-            if (isSkipped[i])
-                continue;
+    /**
+     * A partial batch leaves stale slots in the batch input, their outputs are ignored.
+     */
+    private synchronized ArrayList<DetectionResult> runBatch(List<Bitmap> images) {
+        int batch = images.size();
+        if (batchInterpreter == null) {
+            createBatchInterpreter();
+        }
 
-            int x1 = boxes[i][0];
-            int y1 = boxes[i][1];
-            int x2 = boxes[i][2];
-            int y2 = boxes[i][3];
+        int inputBytes = batchInput.capacity() / batchSize;
+
+        // Pre-process every image into its slot of the batch input, in parallel
+        ArrayList<Future<Frame>> preprocessed = new ArrayList<>();
+        for (int b = 0; b < batch; b++) {
+            final Bitmap image = images.get(b);
+            final ByteBuffer slot = slice(batchInput, b * inputBytes, inputBytes);
+            preprocessed.add(batchExecutor.submit(() -> {
+                Frame frame = new Frame();
+                frame.origWidth = image.getWidth();
+                frame.origHeight = image.getHeight();
+                LetterboxPreprocessor.Letterbox letterbox = preprocessor.process(ImageUtils.readPixels(image), frame.origWidth, frame.origHeight, slot);
+                frame.padX = letterbox.padX;
+                frame.padY = letterbox.padY;
+                return frame;
+            }));
+        }
+        Frame[] frames = new Frame[batch];
+        for (int b = 0; b < batch; b++) {
+            frames[b] = getResult(preprocessed.get(b));
+        }
 
-            if (x1 >= x2 || y1 >= y2) {
-                isSkipped[i] = true;
-                continue;
+        for (Object buffer : batchOutputs.values()) {
+            ((ByteBuffer) buffer).rewind();
+        }
+        batchInterpreter.runForMultipleInputsOutputs(new Object[]{batchInput}, batchOutputs);
+
+        // per image views over the batch outputs: (b, n) labels, (b, n, 5) dets, (b, n, h, w) masks
+        int[] maskShape = batchInterpreter.getOutputTensor(2).shape();
+        int maskBytes = maskShape[1] * maskShape[2] * maskShape[3];
+        ArrayList<DetectionResult> results = new ArrayList<>();
+        for (int b = 0; b < batch; b++) {
+            OutputBuffers view = new OutputBuffers();
+            view.pooled = false;
+            view.labelsBuffer = slice((ByteBuffer) batchOutputs.get(0), b * numDets * 8, numDets * 8);
+            view.detsBuffer = slice((ByteBuffer) batchOutputs.get(1), b * numDets * 5 * 4, numDets * 5 * 4);
+            view.masks = new MaskTensor(slice((ByteBuffer) batchOutputs.get(2), b * maskBytes, maskBytes), maskShape[1], maskShape[2], maskShape[3]);
+            if (batchArena == null) {
+                batchArena = new FrameArena(numDets);
             }
+            view.arena = batchArena;
 
-            x1 = Math.min(Math.max(padX, x1), inferSize - 1 - padX);
-            y1 = Math.min(Math.max(padY, y1), inferSize - 1 - padY);
-            x2 = Math.min(Math.max(padX, x2), inferSize - 1 - padX);
-            y2 = Math.min(Math.max(padY, y2), inferSize - 1 - padY);
-
-            boxes[i][0] = x1; boxes[i][1] = y1; boxes[i][2] = x2; boxes[i][3] = y2;
+            Frame frame = frames[b];
+            frame.outputBuffers = view;
+            extract(frame);
+            results.add(postprocess(frame));
         }
+        return results;
+    }
 
-        // 3. Reduce redundant boxes: NMS + Merged overlapping boxes
-        HashMap<Integer, ArrayList<Integer>> mergeDict = new HashMap<>();
-        for (int i = 0; i < n; i++) {
-            if (isSkipped[i]) {
-                continue;
-            }
-            if (!mergeDict.containsKey(i)) {
-                mergeDict.put(i, new ArrayList<Integer>());
-            }
-            int[] box1 = boxes[i];
-
-            for (int j = i + 1; j < n; j++) {
-                if (isSkipped[j]) {
-                    continue;
-                }
-                if (!mergeDict.containsKey(j)) {
-                    mergeDict.put(j, new ArrayList<Integer>());
-                }
-                int[] box2 = boxes[j];
-
-                float boxIoU = calcBoxIoU(box1, box2);
-
-                // crop 2 masks to the same shape
-                int x1 = Math.min(box1[0], box2[0]);
-                int y1 = Math.min(box1[1], box2[1]);
-                int x2 = Math.max(box1[2], box2[2]);
-                int y2 = Math.max(box1[3], box2[3]);
-                // calculate mask IoU and overlap
-                float maskInter = 0, mask1Area = 0, mask2Area = 0;
-                for (int yy = y1; yy < y2; yy++) {
-                    for (int xx = x1; xx < x2; xx++) {
-                        byte mask1Value = masks[i][yy][xx];
-                        byte mask2Value = masks[j][yy][xx];
-                        mask1Area += mask1Value;
-                        mask2Area += mask2Value;
-                        maskInter += mask1Value * mask2Value;
-                    }
-                }
+    // bytes [offset, offset + length) of buffer as a buffer of its own, in native order
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice().order(ByteOrder.nativeOrder());
+    }
 
-                float maskIoU = (float) maskInter / (mask1Area + mask2Area - maskInter + EPS);
-                float mask1Overlap = (float) (maskInter / ((float) mask1Area + EPS));
-                float mask2Overlap = (float) (maskInter / ((float) mask2Area + EPS));
-
-                // check condition
-                if ((boxIoU > BOX_IOU_THRES && maskIoU > MASK_IOU_THRES) ||
-                        (labels[i] == labels[j] && (Math.max(mask1Overlap, mask2Overlap) > OVERLAP_THRES))) {
-                    if (scores[i] > scores[j]) {
-                        isSkipped[j] = true;
-                        mergeDict.get(i).add(j); mergeDict.get(i).addAll(mergeDict.get(j));
-                        mergeDict.remove(j);
-                    } else {
-                        isSkipped[i] = true;
-                        mergeDict.get(j).add(i); mergeDict.get(j).addAll(mergeDict.get(i));
-                        mergeDict.remove(i);
-                    }
-                }
+    private DetectionResult postprocess(Frame frame) {
+        return postprocess(frame, null);
+    }
 
-                if (isSkipped[i]) {
-                    break;
-                }
+    // fill result after a reset, or a new one if null
+    private DetectionResult postprocess(Frame frame, DetectionResult result) {
+        metrics.begin(StageMetrics.Stage.POSTPROCESS);
+        OutputBuffers buffers = frame.outputBuffers;
+        ArrayList<InstanceSegPostprocessor.Instance> instances;
+        try {
+            instances = postprocessor.process(buffers.arena, numDets, buffers.masks,
+                    frame.origWidth, frame.origHeight, frame.padX, frame.padY);
+        } finally {
+            // masks are cropped, the buffers can take the next frame
+            frame.outputBuffers = null;
+            if (buffers.pooled) {
+                outputPool.add(buffers);
             }
         }
 
-        // 4. Merge masks
-        for (int i = 0; i < n; i++) {
-            if (isSkipped[i] || !mergeDict.containsKey(i)) {
-                continue;
-            }
-
-            int[] curBox = boxes[i];
-            byte[][] curMask = masks[i];
-
-            for (int j = 0; j < mergeDict.get(i).size(); j++) {
-                int idx = mergeDict.get(i).get(j);
-                int[] box2 = boxes[idx];
-                byte[][] mask2 = masks[idx];
-
-                // merge box
-                curBox[0] = Math.min(curBox[0], box2[0]);
-                curBox[1] = Math.min(curBox[1], box2[1]);
-                curBox[2] = Math.max(curBox[2], box2[2]);
-                curBox[3] = Math.max(curBox[3], box2[3]);
-                // merge mask
-                for (int k = box2[1]; k <= box2[3]; k++) {
-                    for (int l = box2[0]; l <= box2[2]; l++) {
-                        curMask[k][l] = (byte) Math.max(curMask[k][l], mask2[k][l]);
-                    }
-                }
-            }
-
-            boxes[i] = curBox;
-            masks[i] = curMask;
+        if (result == null) {
+            result = new DetectionResult(classes, instances.size());
+        } else {
+            result.reset();
+        }
+        for (InstanceSegPostprocessor.Instance instance : instances) {
+            // cropped mask stays at model resolution, upscaled to the box in original image when read
+            InstanceMask mask = InstanceMask.of(instance, inferSize, frame.origWidth, frame.origHeight, frame.padX, frame.padY);
+            result.add(instance.box, instance.score, instance.label, mask);
         }
-        
-        // 5. Refine boxes coordinates
-        ArrayList<Float> finalScores = new ArrayList<>();
-        ArrayList<int[]> finalBoxes = new ArrayList<>();
-        ArrayList<String> finalLabels = new ArrayList<>();
-        ArrayList<Bitmap> finalMasks = new ArrayList<>();
 
-        for (int i = 0; i < n; i++) {
-            if (isSkipped[i]) {
-                continue;
-            }
-            
-            // actual box coordinates
-            int x1 = boxes[i][0];
-            int y1 = boxes[i][1];
-            int x2 = boxes[i][2];
-            int y2 = boxes[i][3];
-            int actualX1 = (int) ((x1 - padX) / (float) (inferSize - padX * 2) * origWidth);
-            int actualY1 = (int) ((y1 - padY) / (float) (inferSize - padY * 2) * origHeight);
-            int actualX2 = (int) ((x2 - padX) / (float) (inferSize - padX * 2) * origWidth);
-            int actualY2 = (int) ((y2 - padY) / (float) (inferSize - padY * 2) * origHeight);
-            // check box size
-            if ((actualX2 - actualX1 + 1) + (actualY2 - actualY1 + 1) < BOX_THRES)
-                continue;
-
-            // crop current mask (H x W) to final mask (same size with box)
-            int maskHeight = y2 - y1;
-            int maskWidth = x2 - x1;
-            Bitmap maskBitmap = Bitmap.createBitmap(maskWidth, maskHeight, Bitmap.Config.ARGB_8888);
-            int[] binValues = new int[maskWidth * maskHeight];
-            int idx = 0;
-            for (int j = 0; j < maskHeight; j++) {
-                for (int k = 0; k < maskWidth; k++) {
-                    int val = (int) masks[i][y1 + j][x1 + k];
-                    binValues[idx++] = Color.rgb(val, val, val);
-                }
-            }
-            int maskNewWidth = actualX2 - actualX1;
-            int maskNewHeight = actualY2 - actualY1;
-            maskBitmap.setPixels(binValues, 0, maskWidth, 0, 0, maskWidth, maskHeight);
-            Bitmap actualMaskBitmap = Bitmap.createScaledBitmap(maskBitmap, maskNewWidth, maskNewHeight, false);
-
-            finalBoxes.add(new int[]{actualX1, actualY1, actualX2, actualY2});
-            finalMasks.add(actualMaskBitmap);
-            finalScores.add(scores[i]);
-            finalLabels.add(classMapping.get((int)labels[i]));
-        }
-        
-        return new DetectionResult(finalBoxes, finalMasks, finalScores, finalLabels);
-    }
-
-    private float calcBoxIoU(int[] box1, int[] box2) {
-        int x1 = Math.max(box1[0], box2[0]);
-        int y1 = Math.max(box1[1], box2[1]);
-        int x2 = Math.min(box1[2], box2[2]);
-        int y2 = Math.min(box1[3], box2[3]);
-        float inter = Math.max(0, x2 - x1 + 1) * Math.max(0, y2 - y1 + 1);
-        if (inter == 0) {
-            return 0;
-        }
-        float area1 = (box1[2] - box1[0] + 1) * (box1[3] - box1[1] + 1);
-        float area2 = (box2[2] - box2[0] + 1) * (box2[3] - box2[1] + 1);
-        return inter / (area1 + area2 - inter);
+        metrics.end(StageMetrics.Stage.POSTPROCESS);
+        return result;
     }
 }